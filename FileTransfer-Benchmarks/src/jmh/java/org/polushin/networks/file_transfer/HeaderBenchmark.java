@@ -0,0 +1,82 @@
+package org.polushin.networks.file_transfer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.polushin.networks.file_transfer.Utils.*;
+
+/**
+ * Кодирование и разбор заголовков запроса загрузки и проверка отправляемых файлов.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+    @Param({"a.bin", "photos/2018/summer/very long name of some holiday photo.jpeg"})
+    private String filename;
+
+    private byte[] nameInBytes;
+    // Размер файла и длина имени в том виде, в котором они приходят серверу
+    private ByteArrayInputStream fileSizeInput;
+    private ByteArrayInputStream filenameSizeInput;
+    private final ByteBuffer sizesBuffer = ByteBuffer.wrap(new byte[LONG_IN_BYTES_SIZE]);
+    private final ByteBuffer fileSizeBuffer = ByteBuffer.allocate(LONG_IN_BYTES_SIZE);
+    private File file;
+    private int requestId;
+
+    @Setup
+    public void setUp() throws IOException {
+        nameInBytes = filename.getBytes(CHARSET);
+        ByteBuffer header = FileSender.uploadHeader(ClientRequests.UPLOAD, 1, 123456789L, nameInBytes);
+        // Поток начинается с размера файла, reset() возвращает его к этому смещению
+        fileSizeInput = new ByteArrayInputStream(header.array(), 1 + REQUEST_ID_SIZE, FILE_LEN_SIZE);
+        filenameSizeInput = new ByteArrayInputStream(header.array(), 1 + REQUEST_ID_SIZE + FILE_LEN_SIZE,
+                                                     FILENAME_LEN_SIZE);
+        file = Files.createTempFile("header-benchmark", ".bin").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (!file.delete())
+            System.out.format("Cannot delete \"%s\"\n", file);
+    }
+
+    @Benchmark
+    public ByteBuffer uploadHeader() {
+        return FileSender.uploadHeader(ClientRequests.UPLOAD, requestId++, 123456789L, nameInBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer legacyFileSize() {
+        fileSizeBuffer.clear();
+        FileSender.putFileSize(fileSizeBuffer, 123456789L);
+        return fileSizeBuffer;
+    }
+
+    @Benchmark
+    public long readFileSize() throws IOException {
+        fileSizeInput.reset();
+        return ClientHandler.readFileSize(fileSizeInput, sizesBuffer);
+    }
+
+    @Benchmark
+    public int readFilenameSize() throws IOException {
+        filenameSizeInput.reset();
+        return ClientHandler.readFilenameSize(filenameSizeInput, sizesBuffer);
+    }
+
+    @Benchmark
+    public File prepareFile() {
+        return Main.prepareFile(file.getPath());
+    }
+}
@@ -0,0 +1,126 @@
+package org.polushin.networks.file_transfer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Загрузка файлов через локальную петлю на {@link StorageServer}: от подключения отправителей
+ * до подтверждения сохранения последнего файла.
+ *
+ * Исходные файлы и хранилище размещаются в каталоге из свойства benchmark.storage (по умолчанию /dev/shm),
+ * чтобы результат определялся передачей, а не диском. Сохраненные файлы удаляются после каждой итерации.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final String STORAGE_PROPERTY = "benchmark.storage";
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    @Param({"4096", "1048576", "16777216"})
+    private long fileSize;
+    @Param({"1", "32"})
+    private int fileCount;
+    // Количество соединений отправителя
+    @Param({"1", "4"})
+    private int senders;
+    // Размер буферов приема сервера
+    @Param({"16384", "262144", "1048576"})
+    private int bufferSize;
+
+    private File directory;
+    private File storage;
+    private final List<File> sources = new ArrayList<>();
+    private StorageServer server;
+    private int port;
+    private final SenderOptions senderOptions = new SenderOptions();
+    // Номер итерации в именах файлов: индекс имен сервера помнит удаленные файлы
+    private int iteration;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        File root = new File(System.getProperty(STORAGE_PROPERTY, "/dev/shm"));
+        directory = Files.createTempDirectory(root.toPath(), "file-transfer-benchmark").toFile();
+        File sourceDirectory = new File(directory, "source");
+        storage = new File(directory, "storage");
+        if (!sourceDirectory.mkdir() || !storage.mkdir())
+            throw new IOException("Cannot create benchmark directories in " + directory);
+        Random random = new Random(fileSize);
+        byte[] data = new byte[WRITE_BUFFER_SIZE];
+        for (int i = 0; i < fileCount; i++) {
+            File file = new File(sourceDirectory, "file-" + i);
+            try (OutputStream output = new FileOutputStream(file)) {
+                for (long written = 0; written < fileSize; written += data.length) {
+                    random.nextBytes(data);
+                    output.write(data, 0, (int) Math.min(data.length, fileSize - written));
+                }
+            }
+            sources.add(file);
+        }
+
+        ServerOptions options = new ServerOptions();
+        options.setBufferSize(bufferSize);
+        port = freePort();
+        server = new StorageServer(port, storage, options);
+        server.startServer();
+        senderOptions.setConnections(senders);
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeStored() throws IOException {
+        File[] stored = storage.listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+        if (stored == null)
+            throw new IOException("Cannot read storage " + storage);
+        for (File file : stored)
+            Files.delete(file.toPath());
+        iteration++;
+        if (stored.length != fileCount)
+            throw new IllegalStateException(String.format("Stored %d of %d files.", stored.length, fileCount));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.stopServer();
+        delete(directory);
+    }
+
+    @Benchmark
+    public void upload() throws IOException {
+        List<UploadPool.SourceFile> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++)
+            files.add(new UploadPool.SourceFile(sources.get(i), iteration + "-" + i));
+        try (UploadPool pool = new UploadPool(InetAddress.getLoopbackAddress(), port, senderOptions)) {
+            pool.send(files);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
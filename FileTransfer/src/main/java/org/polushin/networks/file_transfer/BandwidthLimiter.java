@@ -0,0 +1,384 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Ограничение скорости передачи данных сервером.
+ *
+ * Скорость ограничивается корзинами токенов: общей для всего сервера и отдельной для каждого адреса
+ * клиента. Общая полоса делится между клиентами справедливой очередью с весами: каждой порции данных
+ * назначается виртуальное время окончания, которое растет тем медленнее, чем больше вес клиента,
+ * и порции получают полосу в порядке этого времени. Поэтому одно быстрое соединение не вытесняет
+ * остальные, а клиент, ненадолго прервавший передачу, не теряет свою очередь. Ограничения меняются
+ * во время работы через JMX, время ожидания из-за ограничений учитывается для каждого адреса.
+ * Адрес без открытых соединений и без отдельных настроек забывается вместе со своей статистикой.
+ */
+class BandwidthLimiter implements BandwidthLimiterMBean {
+
+    private static final String MBEAN_NAME = "org.polushin.networks.file_transfer:type=BandwidthLimiter,port=";
+
+    private final TokenBucket global;
+    private volatile long clientLimit;
+    // Порции, ожидающие общей полосы, в порядке виртуального времени окончания
+    private final PriorityQueue<Turn> turns = new PriorityQueue<>();
+    // Виртуальное время окончания порции, получившей полосу последней
+    private double virtualTime;
+    private long nextTurn;
+    private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>();
+    private ObjectName mbeanName;
+
+    /**
+     * @param globalLimit Общее ограничение скорости сервера в байт/секунду (0 - без ограничения).
+     * @param clientLimit Ограничение скорости одного адреса клиента в байт/секунду (0 - без ограничения).
+     */
+    BandwidthLimiter(long globalLimit, long clientLimit) {
+        global = new TokenBucket(globalLimit);
+        this.clientLimit = clientLimit;
+    }
+
+    /**
+     * Учитывает новое соединение клиента. По закрытии соединения нужно вызвать {@link Client#release()}.
+     *
+     * @return Учет передач клиента с указанным адресом.
+     */
+    Client client(InetAddress address) {
+        return clients.compute(address, (key, client) -> {
+            if (client == null)
+                client = new Client(key);
+            client.connections++;
+            return client;
+        });
+    }
+
+    /**
+     * @return Учет передач адреса для изменения его настроек без учета соединения.
+     */
+    private Client settings(InetAddress address) {
+        return clients.computeIfAbsent(address, Client::new);
+    }
+
+    /**
+     * Регистрирует управление ограничениями в JMX.
+     *
+     * @param port Порт сервера, отличающий его от других серверов в том же процессе.
+     */
+    void register(int port) {
+        try {
+            mbeanName = new ObjectName(MBEAN_NAME + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, mbeanName);
+        } catch (JMException e) {
+            mbeanName = null;
+            System.out.format("Bandwidth limits cannot be managed over JMX: %s\n", e.getMessage());
+        }
+    }
+
+    void unregister() {
+        if (mbeanName == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        mbeanName = null;
+    }
+
+    @Override
+    public long getGlobalLimit() {
+        return global.getRate();
+    }
+
+    @Override
+    public void setGlobalLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Limit must not be negative.");
+        global.setRate(bytesPerSecond);
+    }
+
+    @Override
+    public long getClientLimit() {
+        return clientLimit;
+    }
+
+    @Override
+    public void setClientLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Limit must not be negative.");
+        clientLimit = bytesPerSecond;
+        for (Client client : clients.values())
+            if (!client.customLimit)
+                client.bucket.setRate(bytesPerSecond);
+    }
+
+    @Override
+    public void setAddressLimit(String address, long bytesPerSecond) throws UnknownHostException {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Limit must not be negative.");
+        Client client = settings(InetAddress.getByName(address));
+        client.customLimit = true;
+        client.bucket.setRate(bytesPerSecond);
+    }
+
+    @Override
+    public void setAddressWeight(String address, int weight) throws UnknownHostException {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight must be positive.");
+        settings(InetAddress.getByName(address)).weight = weight;
+    }
+
+    @Override
+    public String[] getClientStatistics() {
+        List<String> result = new ArrayList<>();
+        for (Client client : clients.values())
+            result.add(client.toString());
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * Передачи одного адреса клиента.
+     */
+    class Client {
+
+        private final InetAddress address;
+        private final TokenBucket bucket;
+        // Ограничение адреса задано отдельно и не меняется вместе с общим ограничением клиентов
+        private volatile boolean customLimit = false;
+        private volatile int weight = 1;
+        // Виртуальное время окончания последней порции клиента в общей полосе
+        private double lastFinish;
+        // Открытые соединения адреса, изменяются только под блокировкой записи таблицы клиентов
+        private int connections;
+        private final LongAdder transferred = new LongAdder();
+        private final LongAdder throttledNanos = new LongAdder();
+
+        private Client(InetAddress address) {
+            this.address = address;
+            bucket = new TokenBucket(clientLimit);
+        }
+
+        /**
+         * Отмечает закрытие соединения клиента. Адрес без соединений и без отдельных настроек удаляется
+         * из таблицы клиентов.
+         */
+        void release() {
+            clients.computeIfPresent(address, (key, client) -> {
+                if (client != this)
+                    return client;
+                connections--;
+                return connections == 0 && !customLimit && weight == 1 ? null : client;
+            });
+        }
+
+        /**
+         * Учитывает переданные данные и приостанавливает поток, пока они не уложатся в ограничения.
+         */
+        void acquire(long bytes) throws InterruptedIOException {
+            transferred.add(bytes);
+            if (bucket.getRate() == 0 && global.getRate() == 0)
+                return;
+
+            long beginTime = System.nanoTime();
+            try {
+                sleep(bucket.reserve(bytes));
+                if (global.getRate() != 0)
+                    acquireGlobal(bytes);
+            } finally {
+                throttledNanos.add(System.nanoTime() - beginTime);
+            }
+        }
+
+        /**
+         * Дожидается очереди порции в общей полосе и оплачивает ее токенами общей корзины.
+         *
+         * Очередная порция выбирается, только когда оплачены все предыдущие, а получившая полосу передача
+         * продолжается без ожидания. Пока оплачивается ее порция, передача успевает встать в очередь
+         * со следующей, и выбор идет между всеми активными клиентами.
+         */
+        private void acquireGlobal(long bytes) throws InterruptedIOException {
+            synchronized (turns) {
+                double start = Math.max(virtualTime, lastFinish);
+                Turn turn = new Turn(start + (double) bytes / weight, nextTurn++);
+                lastFinish = turn.finish;
+                turns.add(turn);
+                try {
+                    while (true) {
+                        if (turns.peek() != turn) {
+                            turns.wait();
+                            continue;
+                        }
+                        long delay = global.delay();
+                        if (delay <= 0)
+                            break;
+                        TimeUnit.NANOSECONDS.timedWait(turns, delay);
+                    }
+                } catch (InterruptedException e) {
+                    turns.remove(turn);
+                    turns.notifyAll();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled.");
+                }
+                turns.poll();
+                virtualTime = turn.finish;
+                global.consume(bytes);
+                turns.notifyAll();
+            }
+        }
+
+        /**
+         * @return Поток, данные которого учитываются этим клиентом.
+         */
+        InputStream limit(InputStream inputStream) {
+            return new FilterInputStream(inputStream) {
+                @Override
+                public int read() throws IOException {
+                    int value = super.read();
+                    if (value != -1)
+                        acquire(1);
+                    return value;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count > 0)
+                        acquire(count);
+                    return count;
+                }
+            };
+        }
+
+        /**
+         * @return Время ожидания из-за ограничений в миллисекундах.
+         */
+        long getThrottledTime() {
+            return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d bytes, throttled %d ms, limit %d bytes/sec, weight %d",
+                                 address.getHostAddress(), transferred.sum(), getThrottledTime(),
+                                 bucket.getRate(), weight);
+        }
+
+        private void sleep(long nanos) throws InterruptedIOException {
+            if (nanos <= 0)
+                return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled.");
+            }
+        }
+    }
+
+    /**
+     * Порция данных в очереди общей полосы.
+     */
+    private static class Turn implements Comparable<Turn> {
+
+        private final double finish;
+        // Порядок постановки в очередь при равном времени окончания
+        private final long order;
+
+        Turn(double finish, long order) {
+            this.finish = finish;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Turn other) {
+            int result = Double.compare(finish, other.finish);
+            return result != 0 ? result : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Корзина токенов. Данные резервируются сразу, даже если токенов не хватает, а недостаток
+     * оплачивается ожиданием: следующие резервирования ждут дольше, поэтому очередность сохраняется.
+     */
+    private static class TokenBucket {
+
+        // Запас токенов на время всплеска
+        private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private volatile long rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            tokens = burst();
+        }
+
+        long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            refill(System.nanoTime());
+            this.rate = rate;
+            tokens = Math.min(tokens, burst());
+        }
+
+        /**
+         * Резервирует токены.
+         *
+         * @return Время в наносекундах, через которое зарезервированные данные можно передать.
+         */
+        synchronized long reserve(long bytes) {
+            if (rate == 0)
+                return 0;
+            refill(System.nanoTime());
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+
+        /**
+         * @return Время в наносекундах до оплаты всех зарезервированных данных.
+         */
+        synchronized long delay() {
+            if (rate == 0)
+                return 0;
+            refill(System.nanoTime());
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+
+        /**
+         * Резервирует токены без ожидания.
+         */
+        synchronized void consume(long bytes) {
+            if (rate != 0)
+                tokens -= bytes;
+        }
+
+        private void refill(long now) {
+            if (rate != 0)
+                tokens = Math.min(tokens + (double) (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1),
+                                  burst());
+            lastRefill = now;
+        }
+
+        private double burst() {
+            return (double) rate * BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+}
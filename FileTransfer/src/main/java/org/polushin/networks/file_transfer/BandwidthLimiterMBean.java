@@ -0,0 +1,36 @@
+package org.polushin.networks.file_transfer;
+
+import java.net.UnknownHostException;
+
+/**
+ * Управление ограничениями скорости сервера через JMX (см. {@link BandwidthLimiter}).
+ * Ограничения задаются в байт/секунду, 0 означает отсутствие ограничения.
+ */
+public interface BandwidthLimiterMBean {
+
+    long getGlobalLimit();
+
+    void setGlobalLimit(long bytesPerSecond);
+
+    /**
+     * @return Ограничение для адресов, которым не задано отдельное ограничение.
+     */
+    long getClientLimit();
+
+    void setClientLimit(long bytesPerSecond);
+
+    /**
+     * Задает отдельное ограничение для адреса клиента.
+     */
+    void setAddressLimit(String address, long bytesPerSecond) throws UnknownHostException;
+
+    /**
+     * Задает долю общей полосы, которую получают передачи адреса клиента относительно остальных.
+     */
+    void setAddressWeight(String address, int weight) throws UnknownHostException;
+
+    /**
+     * @return Переданный объем, время ожидания из-за ограничений, ограничение и вес каждого адреса.
+     */
+    String[] getClientStatistics();
+}
@@ -0,0 +1,113 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Контрольные суммы CRC32 блоков передаваемого тела файла.
+ *
+ * Суммы вычисляются по ходу передачи по тем же буферам, которые отправляются в сокет или записываются
+ * на диск, поэтому проверка не требует повторного чтения файла. Тело делится на блоки по 1 Мб
+ * от его первого байта, сумма каждого блока передается отдельно: при расхождении известен первый
+ * испорченный блок, и возобновляемая загрузка продолжается с него.
+ *
+ * Суммы передаются после тела файла: по 4 байта на блок, их количество определяется размером тела.
+ */
+final class BlockChecksums {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final CRC32 crc = new CRC32();
+    private final long size;
+    private final int[] values;
+    // Количество учтенных байт тела
+    private long processed;
+
+    /**
+     * @param size Размер тела файла.
+     */
+    BlockChecksums(long size) {
+        this.size = size;
+        values = new int[count(size)];
+    }
+
+    /**
+     * @return Количество блоков тела указанного размера.
+     */
+    static int count(long size) {
+        return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * Учитывает очередные данные тела. Позиция буфера не меняется.
+     *
+     * @param buffer Буфер, подготовленный для чтения из него.
+     */
+    void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        while (buffer.position() < limit) {
+            int length = (int) Math.min(limit - buffer.position(), BLOCK_SIZE - processed % BLOCK_SIZE);
+            buffer.limit(buffer.position() + length);
+            crc.update(buffer);
+            advance(length);
+        }
+        buffer.limit(limit).position(position);
+    }
+
+    /**
+     * Учитывает очередные данные тела.
+     */
+    void update(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int part = (int) Math.min(length, BLOCK_SIZE - processed % BLOCK_SIZE);
+            crc.update(data, offset, part);
+            advance(part);
+            offset += part;
+            length -= part;
+        }
+    }
+
+    /**
+     * @return Суммы блоков для передачи после тела файла.
+     */
+    ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Utils.INT_IN_BYTES_SIZE);
+        for (int value : values)
+            buffer.putInt(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Считывает суммы, переданные после тела, и сравнивает их с вычисленными по принятым данным.
+     *
+     * @param inputStream Поток сокета.
+     *
+     * @return Смещение первого испорченного блока от начала тела или -1, если все суммы совпали.
+     */
+    long verify(InputStream inputStream) throws IOException {
+        if (processed != size)
+            throw new IllegalStateException("Body is not received completely.");
+        // Суммы считываются все, даже после расхождения: следом идет следующий запрос
+        byte[] trailer = new byte[values.length * Utils.INT_IN_BYTES_SIZE];
+        new DataInputStream(inputStream).readFully(trailer);
+        ByteBuffer expected = ByteBuffer.wrap(trailer);
+        for (int i = 0; i < values.length; i++) {
+            if (expected.getInt() != values[i])
+                return (long) i * BLOCK_SIZE;
+        }
+        return -1;
+    }
+
+    private void advance(int length) {
+        processed += length;
+        if (processed % BLOCK_SIZE == 0 || processed == size) {
+            values[(int) ((processed - 1) / BLOCK_SIZE)] = (int) crc.getValue();
+            crc.reset();
+        }
+    }
+}
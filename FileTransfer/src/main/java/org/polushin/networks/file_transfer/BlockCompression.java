@@ -0,0 +1,212 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Передача тела файла блоками со сжатием.
+ *
+ * Тело делится на блоки до 128 Кб. Каждый блок передается с заголовком: тип (1 байт), исходная
+ * длина (4 байта) и длина передаваемых данных (4 байта). Блок сжимается Deflate, только если это
+ * заметно уменьшает его, иначе передается как есть. После несжимаемого блока попытки сжатия
+ * пропускаются для нескольких следующих блоков, поэтому медиафайлы и архивы почти не тратят процессор.
+ */
+final class BlockCompression {
+
+    // Максимальная исходная длина блока
+    static final int BLOCK_SIZE = 128 * 1024;
+    private static final int HEADER_SIZE = 1 + 2 * Utils.INT_IN_BYTES_SIZE;
+    private static final byte RAW_BLOCK = 0;
+    private static final byte DEFLATE_BLOCK = 1;
+    // Максимальное количество блоков подряд, которые отправляются без попытки сжатия
+    private static final int MAX_SKIPPED_BLOCKS = 64;
+
+    private BlockCompression() {
+    }
+
+    /**
+     * Сжимает и отправляет тела файлов. Используется одним потоком.
+     */
+    static class Encoder {
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private final byte[] compressed = new byte[BLOCK_SIZE];
+        // Количество следующих блоков без попытки сжатия и длина последней такой серии
+        private int skippedBlocks;
+        private int skipStreak;
+
+        /**
+         * Отправляет диапазон файла блоками.
+         *
+         * @param fileChannel Канал файла.
+         * @param position Смещение начала диапазона.
+         * @param count Размер диапазона, объявленный серверу.
+         * @param socketChannel Канал сокета.
+         * @param meter Счетчик скорости отправки.
+         * @param checksums Контрольные суммы, обновляемые исходными данными, или null.
+         */
+        void send(FileChannel fileChannel, long position, long count, SocketChannel socketChannel,
+                  SpeedMeter meter, BlockChecksums checksums) throws IOException {
+            // Сжимаемость другого файла ничего не говорит об этом
+            skippedBlocks = 0;
+            skipStreak = 0;
+            long end = position + count;
+            while (position < end) {
+                block.clear();
+                if (block.remaining() > end - position)
+                    block.limit((int) (end - position));
+                while (block.hasRemaining()) {
+                    if (fileChannel.read(block, position + block.position()) == -1)
+                        throw new IOException("File was truncated during upload.");
+                }
+                int length = block.position();
+                if (checksums != null)
+                    checksums.update(block.array(), 0, length);
+
+                int stored = compress(length);
+                header.clear();
+                header.put(stored < length ? DEFLATE_BLOCK : RAW_BLOCK).putInt(length).putInt(stored).flip();
+                if (stored < length)
+                    FileSender.writeFully(socketChannel, header, ByteBuffer.wrap(compressed, 0, stored));
+                else
+                    FileSender.writeFully(socketChannel, header, (ByteBuffer) block.flip());
+
+                position += length;
+                meter.add(length, HEADER_SIZE + stored);
+            }
+        }
+
+        void close() {
+            deflater.end();
+        }
+
+        /**
+         * Пробует сжать блок.
+         *
+         * @return Длина сжатых данных или исходная длина, если блок передается без сжатия.
+         */
+        private int compress(int length) {
+            if (skippedBlocks > 0) {
+                skippedBlocks--;
+                return length;
+            }
+
+            deflater.reset();
+            deflater.setInput(block.array(), 0, length);
+            deflater.finish();
+            int stored = deflater.deflate(compressed, 0, compressed.length);
+            // Сжатие должно экономить хотя бы восьмую часть блока
+            if (deflater.finished() && stored < length - length / 8) {
+                skipStreak = 0;
+                return stored;
+            }
+
+            skipStreak = Math.min(Math.max(1, skipStreak * 2), MAX_SKIPPED_BLOCKS);
+            skippedBlocks = skipStreak;
+            return length;
+        }
+    }
+
+    /**
+     * Принимает и распаковывает тела файлов. Используется одним потоком.
+     */
+    static class Decoder {
+
+        private final Inflater inflater = new Inflater();
+        private final byte[] header = new byte[HEADER_SIZE];
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] compressed = new byte[BLOCK_SIZE];
+
+        /**
+         * Принимает тело файла и записывает его по указанному смещению.
+         *
+         * @param inputStream Поток сокета.
+         * @param fileChannel Канал файла.
+         * @param position Смещение первого байта в файле.
+         * @param size Исходный размер тела.
+         * @param meter Счетчик скорости приема.
+         * @param checksums Контрольные суммы, обновляемые распакованными данными, или null.
+         */
+        void receive(InputStream inputStream, FileChannel fileChannel, long position, long size,
+                     SpeedMeter meter, BlockChecksums checksums) throws IOException {
+            DataInputStream input = new DataInputStream(inputStream);
+            long received = 0;
+            while (received < size) {
+                input.readFully(header);
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                byte type = fields.get();
+                int length = fields.getInt();
+                int stored = fields.getInt();
+                if (length <= 0 || length > BLOCK_SIZE || length > size - received || stored <= 0 ||
+                    stored > length || type == RAW_BLOCK && stored != length ||
+                    type != RAW_BLOCK && type != DEFLATE_BLOCK)
+                    throw new IOException("Malformed compressed block.");
+
+                if (type == RAW_BLOCK) {
+                    input.readFully(block, 0, length);
+                } else {
+                    input.readFully(compressed, 0, stored);
+                    inflate(stored, length);
+                }
+
+                if (checksums != null)
+                    checksums.update(block, 0, length);
+                ByteBuffer data = ByteBuffer.wrap(block, 0, length);
+                long blockPosition = position + received;
+                while (data.hasRemaining())
+                    blockPosition += fileChannel.write(data, blockPosition);
+                received += length;
+                meter.add(length, HEADER_SIZE + stored);
+            }
+        }
+
+        /**
+         * Пропускает тело файла, которое не будет сохранено. Блоки не распаковываются, проверяются только
+         * их заголовки, чтобы не прочитать следующий запрос.
+         *
+         * @param inputStream Поток сокета.
+         * @param size Исходный размер тела.
+         */
+        void skip(InputStream inputStream, long size) throws IOException {
+            DataInputStream input = new DataInputStream(inputStream);
+            long received = 0;
+            while (received < size) {
+                input.readFully(header);
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                byte type = fields.get();
+                int length = fields.getInt();
+                int stored = fields.getInt();
+                if (length <= 0 || length > BLOCK_SIZE || length > size - received || stored <= 0 ||
+                    stored > length || type == RAW_BLOCK && stored != length ||
+                    type != RAW_BLOCK && type != DEFLATE_BLOCK)
+                    throw new IOException("Malformed compressed block.");
+                input.readFully(compressed, 0, stored);
+                received += length;
+            }
+        }
+
+        void close() {
+            inflater.end();
+        }
+
+        private void inflate(int stored, int length) throws IOException {
+            inflater.reset();
+            inflater.setInput(compressed, 0, stored);
+            try {
+                if (inflater.inflate(block, 0, length) != length || !inflater.finished())
+                    throw new IOException("Compressed block has wrong length.");
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted compressed block.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Ограниченный пул прямых буферов, общий для всех соединений сервера.
+ *
+ * Память под данные, передаваемые потокам записи, определяется настройками, а не количеством соединений.
+ * Когда свободных буферов нет, поток приема ожидает их возврата, перестает читать сокет, и TCP сам
+ * притормаживает отправителей.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> buffers;
+
+    /**
+     * @param count Количество буферов.
+     * @param bufferSize Размер одного буфера.
+     */
+    BufferPool(int count, int bufferSize) {
+        this.bufferSize = bufferSize;
+        buffers = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++)
+            buffers.add(ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Берет свободный буфер, ожидая его при необходимости.
+     *
+     * @return Очищенный буфер, который необходимо вернуть через {@link #release(ByteBuffer)}.
+     */
+    ByteBuffer acquire() throws InterruptedIOException {
+        try {
+            ByteBuffer buffer = buffers.take();
+            buffer.clear();
+            return buffer;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer.");
+        }
+    }
+
+    /**
+     * Возвращает буфер в пул.
+     */
+    void release(ByteBuffer buffer) {
+        buffers.add(buffer);
+    }
+}
@@ -3,6 +3,22 @@ package org.polushin.networks.file_transfer;
 import java.io.*;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.polushin.networks.file_transfer.Utils.*;
 
@@ -11,36 +27,117 @@ import static org.polushin.networks.file_transfer.Utils.*;
  */
 public class ClientHandler implements Runnable {
 
-    // Размер буфера для записи имени файла в UTF-8 (4096 символов, до 4-х байт каждый)
-    private static final int FILENAME_BUFFER_SIZE = 4096 * 4;
-    private static final int BUFFER_SIZE = 1024;
-    // Задержка переодического отображения скорости выгрузки файла
-    private static final long DUMP_SPEED_DELAY = 3 * 1000;
+    // Максимальная длина имени файла в UTF-8 (4096 символов, до 4-х байт каждый)
+    private static final int MAX_FILENAME_SIZE = 4096 * 4;
+    // Маска возможностей расширенного протокола
+    private static final int SUPPORTED_FEATURES = ProtocolFeatures.STRIPING.mask() | ProtocolFeatures.RESUME.mask() |
+                                                  ProtocolFeatures.DEDUPLICATION.mask() |
+                                                  ProtocolFeatures.COMPRESSION.mask() |
+                                                  ProtocolFeatures.DOWNLOAD.mask() |
+                                                  ProtocolFeatures.PATHS.mask() |
+                                                  ProtocolFeatures.DELTA.mask() |
+                                                  ProtocolFeatures.CHECKSUM.mask();
+    // Максимальный объем одной передачи из сокета в файл (между ними обновляется статистика скорости)
+    private static final int TRANSFER_CHUNK_SIZE = 1024 * 1024;
+    // Размер буфера соединения, в который данные принимаются и сразу записываются в том же потоке
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // Начальный размер буфера имен, больше него приходят только длинные пути
+    private static final int FILENAME_BUFFER_SIZE = 256;
+    // Время без поступления частей файла, после которого загрузка частями прерывается
+    private static final long STRIPES_IDLE_TIMEOUT = 60 * 1000;
+    // Файлы не больше этого размера, не попавшие в кеш, отправляются из отображения в память одной записью
+    private static final long MAP_THRESHOLD = 256 * 1024;
+    // Объем данных возобновляемой загрузки между контрольными точками
+    private static final long CHECKPOINT_INTERVAL = 64L * 1024 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
-    private final File storage;
     private final Socket socket;
     private final InputStream inputStream;
     private final OutputStream outputStream;
+    // Канал сокета или null, если сокет создан без него
+    private final SocketChannel socketChannel;
+    // Канал для чтения данных в буферы пула
+    private final ReadableByteChannel input;
+    // Канал для отправки файлов
+    private final WritableByteChannel output;
+    private final BufferPool bufferPool;
+    private final DiskWriters diskWriters;
+    private final ServerOptions.ReceiveMode receiveMode;
+    private final StorageLayout layout;
+    private final FileCache fileCache;
+    private final FileCommitter committer;
+    private final SpaceLedger spaceLedger;
+    // Ответы на запросы, отправляемые после фиксации файлов
+    private final List<CompletableFuture<Void>> pendingResponses = new ArrayList<>();
+    // Поток отправки ответов после фиксации: поток фиксации не должен ждать записи в сокет клиента.
+    // Запускается при первом таком ответе
+    private final ExecutorService responder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "responder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final StripedUploads stripedUploads;
+    // Ключи незавершенных загрузок частями, начатых этим соединением
+    private final Set<Long> ownStripedUploads = new HashSet<>();
+    private final ResumableUploads resumableUploads;
+    private final DigestIndex digestIndex;
+    // Учет и ограничение скорости передачи данных клиента
+    private final BandwidthLimiter.Client throttle;
+    private final TransferMetrics metrics;
 
-    // Буферы предварительно выделены во избежание излишних аллокаций памяти
+    // Буферы заголовков предварительно выделены во избежание излишних аллокаций памяти.
+    // Буферы общего пула сервера берутся только для передачи тел потокам записи: ожидающее
+    // сокета соединение не должно занимать их у остальных
     private final ByteBuffer sizesBuffer = ByteBuffer.wrap(new byte[LONG_IN_BYTES_SIZE]);
-    private final byte[] filenameBuffer = new byte[FILENAME_BUFFER_SIZE];
-    private final byte[] buffer = new byte[BUFFER_SIZE];
+    // Увеличивается до длины самого длинного принятого имени
+    private ByteBuffer filenameBuffer = ByteBuffer.allocate(FILENAME_BUFFER_SIZE);
+    // Создается при первом приеме данных без передачи потокам записи
+    private ByteBuffer streamBuffer;
+    private final byte[] uploadKeyBuffer = new byte[UPLOAD_KEY_SIZE];
+    private final byte[] digestBuffer = new byte[ContentDigest.DIGEST_SIZE];
+    // Возможности расширенного протокола, выбранные клиентом
+    private int features;
+    // Создается при первом приеме сжатого тела файла
+    private BlockCompression.Decoder decoder;
 
-    public ClientHandler(Socket socket, File storage) throws IOException {
-        this.storage = storage;
+    public ClientHandler(Socket socket, StorageServer server) throws IOException {
         this.socket = socket;
+        spaceLedger = server.getSpaceLedger();
         inputStream = socket.getInputStream();
         outputStream = socket.getOutputStream();
+        socketChannel = socket.getChannel();
+        input = socketChannel != null ? socketChannel : Channels.newChannel(inputStream);
+        output = socketChannel != null ? socketChannel : Channels.newChannel(outputStream);
+        bufferPool = server.getBufferPool();
+        diskWriters = server.getDiskWriters();
+        receiveMode = socketChannel == null ? ServerOptions.ReceiveMode.STREAM : server.getOptions().getReceiveMode();
+        layout = server.getLayout();
+        fileCache = server.getFileCache();
+        committer = server.getCommitter();
+        stripedUploads = server.getStripedUploads();
+        resumableUploads = server.getResumableUploads();
+        digestIndex = server.getDigestIndex();
+        throttle = server.getBandwidthLimiter().client(socket.getInetAddress());
+        metrics = server.getMetrics();
     }
 
     @Override
     public void run() {
+        metrics.connectionOpened();
         try {
             System.out.println("Connected " + socket.getInetAddress());
             handleConnection(socket);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            metrics.connectionClosed();
+            throttle.release();
+            responder.shutdown();
+            if (decoder != null)
+                decoder.close();
+            // Без соединения, ожидающего итогового ответа, загрузку частями не завершить
+            for (long key : ownStripedUploads)
+                stripedUploads.abort(key);
         }
     }
 
@@ -56,19 +153,32 @@ public class ClientHandler implements Runnable {
                 return;
             }
 
-            // Проверяем свободное место
-            if (storage.getFreeSpace() <= fileSize) {
+            // Клиент предлагает перейти на расширенный протокол
+            if (fileSize == PROTOCOL_HANDSHAKE) {
+                acceptProtocol();
+                handleRequests(socket);
+                return;
+            }
+
+            // Резервируем место под файл
+            long begin = TransferMetrics.begin();
+            SpaceLedger.Reservation reservation = spaceLedger.reserve(fileSize);
+            if (reservation == null) {
+                metrics.failed(0);
                 outputStream.write(ServerResponses.NOT_ENOUGH_FREE_SPACE.ordinal());
                 continue;
             }
 
             // Подтверждаем отправку
             outputStream.write(ServerResponses.UPLOAD_APPROVED.ordinal());
+            metrics.approved(begin, fileSize);
 
             // Сохраняем файл
             try {
-                uploadFile(prepareFile(readFilename(readFilenameSize())), fileSize);
+                FileCommitter.await(uploadFile(begin, clientName(readFilename(readFilenameSize())), fileSize, false,
+                                               null, reservation).whenComplete(reservation::complete));
             } catch (IOException e) {
+                reservation.release();
                 outputStream.write(ServerResponses.UNKNOWN_ERROR.ordinal());
                 socket.close();
                 throw e;
@@ -80,76 +190,953 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Загружает и сохраняет файл.
+     * Подтверждает переход на расширенный протокол и получает выбранные клиентом возможности.
+     */
+    private void acceptProtocol() throws IOException {
+        outputStream.write(ByteBuffer.allocate(1 + FEATURES_SIZE)
+                                     .put((byte) ServerResponses.PROTOCOL_ACCEPTED.ordinal())
+                                     .putInt(SUPPORTED_FEATURES)
+                                     .array());
+
+        clearSizesBuffer(sizesBuffer);
+        readAtLeastBytes(sizesBuffer.array(), 0, FEATURES_SIZE);
+        features = sizesBuffer.getInt(0);
+        if ((features & ~SUPPORTED_FEATURES) != 0)
+            throw new IOException("Client requested unsupported protocol features.");
+    }
+
+    /**
+     * Обрабатывает запросы расширенного протокола.
      *
-     * @param file Место сохранения файла.
-     * @param fileSize Размер файла.
+     * Клиент отправляет файлы один за другим, не дожидаясь ответов, поэтому каждый ответ
+     * сопровождается идентификатором запроса.
      */
-    private void uploadFile(File file, long fileSize) throws IOException {
-        System.out.format("Uploading \"%s\" from %s...\n", file.getName(), socket.getInetAddress());
+    private void handleRequests(Socket socket) throws IOException {
+        // Ответы отправляются отдельно от запросов, и клиент ждет их, только когда окно заполнено
+        socket.setTcpNoDelay(true);
+        while (true) {
+            int request = inputStream.read();
+            if (request == ClientRequests.FINISH.ordinal() || request == -1) {
+                awaitStripedUploads();
+                awaitPendingResponses();
+                socket.close();
+                return;
+            }
+            if (request < 0 || request >= ClientRequests.values().length)
+                throw new IOException(String.format("Unknown request %d from %s", request, socket.getInetAddress()));
 
-        long fullLen = 0;
-        long beginTime = System.currentTimeMillis();
-        long nextUpdateTime = beginTime;
-        long currentDelayLen = 0;
-        int len;
-
-        try (OutputStream fileOutput = new FileOutputStream(file)) {
-            do {
-                len = inputStream.read(buffer, 0, buffer.length);
-                if (len == -1)
-                    throw new IOException(String.format("Cannot receive file from %s", socket.getInetAddress()));
-                fullLen += len;
-                currentDelayLen += len;
-                fileOutput.write(buffer, 0, len);
-
-                long time = System.currentTimeMillis();
-                if (nextUpdateTime <= time) {
-                    float sub = time - nextUpdateTime;
-                    long current = (long) (sub == 0 ? currentDelayLen : currentDelayLen / sub);
-                    sub = time - beginTime;
-                    long average = (long) (sub == 0 ? fullLen : fullLen / sub) * 1000;
-                    System.out.format("Host: %s, Current speed: %s, Average speed: %s\n", socket.getInetAddress(),
-                            formatSpeed(current), formatSpeed(average));
-                    nextUpdateTime = time + DUMP_SPEED_DELAY;
-                    currentDelayLen = 0;
+            switch (ClientRequests.values()[request]) {
+                case UPLOAD:
+                    handleUpload();
+                    break;
+                case STRIPED_UPLOAD:
+                    handleStripedUpload();
+                    break;
+                case STRIPE:
+                    handleStripe();
+                    break;
+                case RESUMABLE_UPLOAD:
+                    handleResumableUpload();
+                    break;
+                case DIGEST_PROBE:
+                    handleDigestProbe();
+                    break;
+                case DOWNLOAD:
+                    handleDownload();
+                    break;
+                case DELTA_UPLOAD:
+                    handleDeltaUpload();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Ожидает завершения загрузок частями, начатых этим соединением, чтобы отправить по ним итоговые ответы.
+     */
+    private void awaitStripedUploads() {
+        for (long key : ownStripedUploads) {
+            StripedUpload upload = stripedUploads.get(key);
+            try {
+                if (upload != null && !upload.awaitCompletion(STRIPES_IDLE_TIMEOUT))
+                    upload.abort();
+            } catch (InterruptedException e) {
+                upload.abort();
+            }
+        }
+        ownStripedUploads.clear();
+    }
+
+    /**
+     * Ожидает отправки ответов по файлам, которые еще фиксируются, и итоговых ответов загрузок частями.
+     */
+    private void awaitPendingResponses() {
+        for (CompletableFuture<Void> response : pendingResponses)
+            response.join();
+        pendingResponses.clear();
+        responder.shutdown();
+        try {
+            responder.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Передает отправку ответа потоку ответов. После закрытия соединения ответы отбрасываются.
+     */
+    private void respondLater(Runnable response) {
+        try {
+            responder.execute(response);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    /**
+     * Отправляет ответ на запрос после фиксации файла, не останавливая прием следующих запросов.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param commit Фиксация файла.
+     * @param saved Ответ при успешной фиксации.
+     * @param failed Ответ при ошибке.
+     */
+    private void respondWhenCommitted(int requestId, CompletableFuture<File> commit, ServerResponses saved,
+                                      ServerResponses failed) {
+        pendingResponses.removeIf(CompletableFuture::isDone);
+        pendingResponses.add(commit.handleAsync((file, error) -> {
+            if (error != null)
+                error.printStackTrace();
+            try {
+                respond(requestId, error == null ? saved : failed);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }, this::respondLater));
+    }
+
+    /**
+     * Принимает файл, тело которого следует сразу за заголовком.
+     */
+    private void handleUpload() throws IOException {
+        long begin = TransferMetrics.begin();
+        int requestId = readRequestId();
+        long fileSize = readFileSize();
+        String filename = clientName(readFilename(readFilenameSize()));
+
+        // Тело файла уже передается, поэтому при нехватке места его нужно пропустить
+        SpaceLedger.Reservation reservation = spaceLedger.reserve(fileSize);
+        if (reservation == null) {
+            metrics.failed(0);
+            respond(requestId, ServerResponses.NOT_ENOUGH_FREE_SPACE);
+            skipUpload(fileSize);
+            return;
+        }
+
+        respond(requestId, ServerResponses.UPLOAD_APPROVED);
+        metrics.approved(begin, fileSize);
+
+        CompletableFuture<File> commit;
+        try {
+            // При выбранном сжатии тело передается блоками
+            commit = uploadFile(begin, filename, fileSize, (features & ProtocolFeatures.COMPRESSION.mask()) != 0,
+                                checksums(fileSize), reservation);
+        } catch (IOException e) {
+            reservation.release();
+            respond(requestId, ServerResponses.UNKNOWN_ERROR);
+            socket.close();
+            throw e;
+        }
+        if (commit == null) {
+            reservation.release();
+            respond(requestId, ServerResponses.CHECKSUM_MISMATCH);
+            return;
+        }
+
+        respondWhenCommitted(requestId, commit.whenComplete(reservation::complete), ServerResponses.FILE_SAVED,
+                             ServerResponses.UNKNOWN_ERROR);
+    }
+
+    /**
+     * Создает временный файл полного размера для загрузки частями по другим соединениям.
+     * Итоговый ответ отправляется этому соединению, когда будут получены все части.
+     */
+    private void handleStripedUpload() throws IOException {
+        long begin = TransferMetrics.begin();
+        int requestId = readRequestId();
+        long fileSize = readFileSize();
+        String filename = clientName(readFilename(readFilenameSize()));
+
+        SpaceLedger.Reservation reservation = spaceLedger.reserve(fileSize);
+        if (reservation == null) {
+            metrics.failed(0);
+            respond(requestId, ServerResponses.NOT_ENOUGH_FREE_SPACE);
+            return;
+        }
+
+        StripedUpload upload;
+        try {
+            upload = stripedUploads.create(filename, fileSize, reservation, (response, file) -> {
+                if (response == ServerResponses.FILE_SAVED) {
+                    reservation.stored();
+                    digestIndex.add(file);
+                    metrics.stored(begin, fileSize, TransferMetrics.speed(begin, fileSize));
+                } else {
+                    reservation.release();
+                    metrics.failed(fileSize);
+                }
+                respondLater(() -> {
+                    try {
+                        respond(requestId, response);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+            });
+        } catch (IOException e) {
+            reservation.release();
+            metrics.failed(0);
+            respond(requestId, ServerResponses.UNKNOWN_ERROR);
+            socket.close();
+            throw e;
+        }
+
+        ownStripedUploads.removeIf(key -> stripedUploads.get(key) == null);
+        ownStripedUploads.add(upload.getKey());
+        System.out.format("Uploading \"%s\" from %s in stripes...\n", upload.getFilename(), socket.getInetAddress());
+        respond(requestId, ServerResponses.STRIPES_APPROVED, upload.getKey());
+        metrics.approved(begin, fileSize);
+    }
+
+    /**
+     * Принимает часть файла, загружаемого по нескольким соединениям, и записывает ее по своему смещению.
+     */
+    private void handleStripe() throws IOException {
+        int requestId = readRequestId();
+        long key = readLong();
+        long offset = readLong();
+        long length = readFileSize();
+
+        StripedUpload upload = stripedUploads.get(key);
+        if (upload == null || offset < 0 || offset > upload.getSize() - length) {
+            respond(requestId, ServerResponses.UNKNOWN_ERROR);
+            skipBytes(length);
+            return;
+        }
+
+        upload.stripeStarted();
+        try {
+            receiveBody(upload.getChannel(), offset, length, upload.getReservation());
+        } catch (IOException e) {
+            upload.abort();
+            respond(requestId, ServerResponses.UNKNOWN_ERROR);
+            socket.close();
+            throw e;
+        }
+
+        respond(requestId, ServerResponses.FILE_SAVED);
+        upload.landed(offset, length);
+    }
+
+    /**
+     * Принимает файл с возможностью продолжить загрузку после разрыва соединения.
+     *
+     * Клиент ждет ответа со смещением, с которого нужно отправлять тело файла. Полученные данные
+     * периодически сбрасываются на диск вместе с контрольной точкой.
+     */
+    private void handleResumableUpload() throws IOException {
+        long begin = TransferMetrics.begin();
+        int requestId = readRequestId();
+        String key = readUploadKey();
+        long fileSize = readFileSize();
+        String filename = clientName(readFilename(readFilenameSize()));
+
+        ResumableUpload upload;
+        try {
+            upload = resumableUploads.open(key, filename, fileSize, socket);
+        } catch (IOException e) {
+            // Тело файла еще не отправлялось, поэтому соединение можно продолжить
+            e.printStackTrace();
+            metrics.failed(0);
+            respond(requestId, ServerResponses.UNKNOWN_ERROR);
+            return;
+        }
+
+        SpaceLedger.Reservation reservation = null;
+        // Объем, учтенный в метриках как передаваемый, и признак сохранения файла
+        long inFlight = 0;
+        boolean stored = false;
+        try {
+            long offset = upload.getCommitted();
+            reservation = spaceLedger.reserve(fileSize - offset);
+            if (reservation == null) {
+                respond(requestId, ServerResponses.NOT_ENOUGH_FREE_SPACE);
+                return;
+            }
+
+            respond(requestId, ServerResponses.RESUME_FROM, offset);
+            inFlight = fileSize - offset;
+            metrics.approved(begin, inFlight);
+            if (offset == 0)
+                System.out.format("Uploading \"%s\" from %s...\n", filename, socket.getInetAddress());
+            else
+                System.out.format("Resuming \"%s\" from %s at %d bytes...\n", filename, socket.getInetAddress(),
+                                  offset);
+
+            BlockChecksums checksums = checksums(fileSize - offset);
+            long average;
+            long mismatch;
+            try {
+                average = receiveResumable(upload, offset, checksums, reservation);
+                mismatch = verifyChecksums(filename, checksums, offset);
+            } catch (IOException e) {
+                saveCheckpoint(upload);
+                socket.close();
+                throw e;
+            }
+
+            if (mismatch >= 0) {
+                // Клиент продолжит загрузку с первого испорченного блока
+                try {
+                    upload.rollback(mismatch);
+                } catch (IOException e) {
+                    respond(requestId, ServerResponses.UNKNOWN_ERROR);
+                    socket.close();
+                    throw e;
                 }
-            } while (fullLen < fileSize);
+                respond(requestId, ServerResponses.CHECKSUM_MISMATCH);
+                return;
+            }
+
+            File file;
+            try {
+                file = upload.complete(committer);
+            } catch (IOException e) {
+                respond(requestId, ServerResponses.UNKNOWN_ERROR);
+                socket.close();
+                throw e;
+            }
+            reservation.stored();
+            System.out.format("File \"%s\" from %s stored. Average speed: %s\n", file.getName(),
+                              socket.getInetAddress(), formatSpeed(average));
+            digestIndex.add(file);
+            stored = true;
+            metrics.stored(begin, inFlight, average);
+        } finally {
+            // Данные прерванной загрузки остаются на диске и учитываются следующим измерением
+            if (reservation != null)
+                reservation.release();
+            if (!stored)
+                metrics.failed(inFlight);
+            upload.close();
         }
 
-        long average = fullLen / (System.currentTimeMillis() - beginTime) * 1000;
-        System.out.format("File \"%s\" from %s stored. Average speed: %s\n", file.getName(), socket.getInetAddress(),
-                          formatSpeed(average));
+        respond(requestId, ServerResponses.FILE_SAVED);
     }
 
     /**
-     * Подготавливает файл для записи (выбирает свободное имя файла).
+     * Принимает оставшуюся часть файла возобновляемой загрузки, сохраняя контрольные точки.
+     *
+     * @param upload Загрузка.
+     * @param offset Позиция, с которой клиент отправляет тело файла.
+     * @param checksums Контрольные суммы тела или null, если они не передаются.
+     * @param reservation Место, зарезервированное под оставшуюся часть файла.
      *
-     * @return Файл.
+     * @return Средняя скорость приема в байт/секунду.
+     */
+    private long receiveResumable(ResumableUpload upload, long offset, BlockChecksums checksums,
+                                  SpaceLedger.Reservation reservation) throws IOException {
+        SpeedMeter meter = new SpeedMeter(metrics.received(), reservation::written);
+        long position = offset;
+        while (position < upload.getSize()) {
+            long chunk = Math.min(CHECKPOINT_INTERVAL, upload.getSize() - position);
+            receiveBody(upload.getChannel(), position, chunk, meter, checksums);
+            position += chunk;
+            upload.checkpoint(position);
+        }
+        return meter.getAverageSpeed();
+    }
+
+    /**
+     * Сохраняет контрольную точку прерванной загрузки, чтобы клиент продолжил ее с полученных данных.
+     */
+    private void saveCheckpoint(ResumableUpload upload) {
+        try {
+            upload.checkpointReceived();
+            System.out.format("Upload of \"%s\" from %s interrupted at %d bytes.\n", upload.getFilename(),
+                              socket.getInetAddress(), upload.getCommitted());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ищет в хранилище файл с тем же содержимым. Если он найден, его копия сохраняется под новым именем
+     * и клиенту не нужно отправлять тело файла.
      */
-    private File prepareFile(String filename) {
-        // Обход опасных имен вида ../../filename
-        filename = new File(filename).getName();
-        File file = new File(storage, filename);
-        if (!file.exists())
+    private void handleDigestProbe() throws IOException {
+        int requestId = readRequestId();
+        readAtLeastBytes(digestBuffer, 0, ContentDigest.DIGEST_SIZE);
+        long fileSize = readFileSize();
+        String filename = clientName(readFilename(readFilenameSize()));
+
+        CompletableFuture<File> link = digestIndex.link(digestBuffer, fileSize, filename);
+        if (link == null) {
+            respond(requestId, ServerResponses.DIGEST_UNKNOWN);
+            return;
+        }
+
+        // Если копию не удалось сохранить, клиент отправит файл целиком
+        respondWhenCommitted(requestId, link.thenApply(file -> {
+            System.out.format("File \"%s\" from %s stored as a copy of existing content.\n", file.getName(),
+                              socket.getInetAddress());
             return file;
+        }), ServerResponses.FILE_LINKED, ServerResponses.DIGEST_UNKNOWN);
+    }
 
-        int pos = filename.lastIndexOf('.');
-        String prefix, suffix;
-        if (pos == -1) {
-            prefix = filename;
-            suffix = "";
+    /**
+     * Обновляет сохраненный файл по разности, отправленной клиентом (см. {@link DeltaSync}).
+     *
+     * Клиенту отправляются сигнатуры блоков сохраненной версии, а новая версия собирается во временном
+     * файле из блоков прежней и данных разности и заменяет прежнюю под тем же именем. Если файла нет,
+     * сервер отвечает FILE_NOT_FOUND, и клиент загружает файл обычным запросом.
+     */
+    private void handleDeltaUpload() throws IOException {
+        long begin = TransferMetrics.begin();
+        int requestId = readRequestId();
+        long fileSize = readFileSize();
+        String filename = StorageLayout.normalize(clientName(readFilename(readFilenameSize())));
+
+        File base = filename == null ? null : layout.find(filename);
+        FileChannel baseChannel = null;
+        if (base != null) {
+            try {
+                baseChannel = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+            } catch (IOException ignored) {
+                // Файл удален после проверки
+            }
+        }
+        if (baseChannel == null) {
+            respond(requestId, ServerResponses.FILE_NOT_FOUND);
+            return;
+        }
+
+        File temp = committer.tempFile();
+        SpaceLedger.Reservation reservation = null;
+        long literalBytes;
+        try (FileChannel channel = baseChannel) {
+            // Новая версия записывается целиком рядом с прежней
+            reservation = spaceLedger.reserve(fileSize);
+            if (reservation == null) {
+                metrics.failed(0);
+                respond(requestId, ServerResponses.NOT_ENOUGH_FREE_SPACE);
+                return;
+            }
+
+            DeltaSync.Signatures signatures = DeltaSync.compute(channel);
+            byte[] encoded = signatures.encode();
+            throttle.acquire(encoded.length);
+            synchronized (outputStream) {
+                respond(requestId, ServerResponses.BLOCK_SIGNATURES);
+                outputStream.write(encoded);
+            }
+            metrics.approved(begin, fileSize);
+
+            System.out.format("Updating \"%s\" from %s...\n", filename, socket.getInetAddress());
+            try (FileChannel target = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW,
+                                                       StandardOpenOption.WRITE)) {
+                literalBytes = DeltaSync.apply(throttle.limit(inputStream), channel, signatures, target, fileSize);
+            }
+        } catch (IOException e) {
+            if (reservation != null)
+                reservation.release();
+            metrics.failed(reservation != null ? fileSize : 0);
+            deleteTemp(temp);
+            // Команды разности могли быть прочитаны не полностью, продолжить чтение запросов нельзя
+            respond(requestId, ServerResponses.UNKNOWN_ERROR);
+            socket.close();
+            throw e;
+        }
+
+        SpaceLedger.Reservation committing = reservation;
+        CompletableFuture<File> commit = committer.replace(temp, filename).thenApply(file -> {
+            System.out.format("File \"%s\" from %s updated, %d of %d bytes transferred.\n", filename,
+                              socket.getInetAddress(), literalBytes, fileSize);
+            digestIndex.add(file);
+            metrics.stored(begin, fileSize, TransferMetrics.speed(begin, fileSize));
+            return file;
+        }).whenComplete(committing::complete).whenComplete((file, error) -> {
+            if (error != null)
+                metrics.failed(fileSize);
+        });
+        respondWhenCommitted(requestId, commit, ServerResponses.FILE_SAVED, ServerResponses.UNKNOWN_ERROR);
+    }
+
+    /**
+     * Отправляет сохраненный файл или его диапазон.
+     */
+    private void handleDownload() throws IOException {
+        int requestId = readRequestId();
+        long offset = readLong();
+        long length = readLong();
+        String filename = StorageLayout.normalize(clientName(readFilename(readFilenameSize())));
+        if (filename == null || offset < 0 || length < 0) {
+            respond(requestId, ServerResponses.FILE_NOT_FOUND);
+            return;
+        }
+
+        ByteBuffer cached = fileCache.get(filename);
+        if (cached != null) {
+            sendContent(requestId, filename, cached, offset, length);
+            return;
+        }
+
+        File file = layout.find(filename);
+        FileChannel fileChannel = null;
+        if (file != null) {
+            try {
+                fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } catch (IOException ignored) {
+                // Файл удален после проверки
+            }
+        }
+        if (fileChannel == null) {
+            respond(requestId, ServerResponses.FILE_NOT_FOUND);
+            return;
+        }
+
+        try (FileChannel channel = fileChannel) {
+            ByteBuffer content = fileCache.isEnabled() ? fileCache.load(filename, channel) : null;
+            if (content != null) {
+                sendContent(requestId, filename, content, offset, length);
+                return;
+            }
+
+            long size = channel.size();
+            long position = Math.min(offset, size);
+            long count = Math.min(length, size - position);
+            SpeedMeter meter = new SpeedMeter(metrics.sent());
+            // Данные следуют сразу за заголовком, поэтому другие ответы не должны вклиниться между ними
+            synchronized (outputStream) {
+                outputStream.write(contentHeader(requestId, size, count));
+                sendFileRange(channel, position, count, meter);
+            }
+            if (count > 0)
+                System.out.format("File \"%s\" sent to %s (%d bytes from %d). Average speed: %s\n", filename,
+                                  socket.getInetAddress(), count, position, formatSpeed(meter.getAverageSpeed()));
+        }
+    }
+
+    /**
+     * Отправляет диапазон содержимого файла из кеша прямо из буфера вне кучи.
+     *
+     * @param content Содержимое файла, позиция и граница буфера изменяются.
+     */
+    private void sendContent(int requestId, String filename, ByteBuffer content, long offset, long length)
+            throws IOException {
+        int size = content.remaining();
+        int position = (int) Math.min(offset, size);
+        int count = (int) Math.min(length, size - position);
+        content.limit(position + count).position(position);
+        throttle.acquire(count);
+        synchronized (outputStream) {
+            outputStream.write(contentHeader(requestId, size, count));
+            while (content.hasRemaining())
+                output.write(content);
+        }
+        metrics.sent().add(count);
+        if (count > 0)
+            System.out.format("File \"%s\" sent to %s from cache (%d bytes from %d)\n", filename,
+                              socket.getInetAddress(), count, position);
+    }
+
+    /**
+     * @return Заголовок ответа FILE_CONTENT.
+     */
+    private static byte[] contentHeader(int requestId, long size, long count) {
+        return ByteBuffer.allocate(REQUEST_ID_SIZE + 1 + 2 * LONG_IN_BYTES_SIZE)
+                         .putInt(requestId)
+                         .put((byte) ServerResponses.FILE_CONTENT.ordinal())
+                         .putLong(size)
+                         .putLong(count)
+                         .array();
+    }
+
+    /**
+     * Отправляет диапазон файла. Небольшой файл отображается в память и отправляется одной записью,
+     * остальные передаются из канала файла в канал сокета (на Linux через sendfile).
+     *
+     * @param channel Канал файла.
+     * @param position Смещение начала диапазона.
+     * @param count Размер диапазона.
+     * @param meter Счетчик скорости отправки.
+     */
+    private void sendFileRange(FileChannel channel, long position, long count, SpeedMeter meter)
+            throws IOException {
+        if (count == 0)
+            return;
+        if (channel.size() <= MAP_THRESHOLD) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, count);
+            throttle.acquire(count);
+            while (mapped.hasRemaining())
+                output.write(mapped);
+            meter.add(count);
+            return;
+        }
+
+        long end = position + count;
+        while (position < end) {
+            long len = channel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, end - position), output);
+            if (len == 0 && position >= channel.size())
+                throw new IOException("File was truncated during download.");
+            position += len;
+            meter.add(len);
+            throttle.acquire(len);
+        }
+    }
+
+    /**
+     * Отправляет ответ на запрос расширенного протокола.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param response Ответ.
+     */
+    private void respond(int requestId, ServerResponses response) throws IOException {
+        byte[] message = ByteBuffer.allocate(REQUEST_ID_SIZE + 1)
+                                   .putInt(requestId)
+                                   .put((byte) response.ordinal())
+                                   .array();
+        synchronized (outputStream) {
+            outputStream.write(message);
+        }
+    }
+
+    /**
+     * Отправляет ответ на запрос расширенного протокола вместе с числовым значением.
+     *
+     * @param requestId Идентификатор запроса.
+     * @param response Ответ.
+     * @param value Значение, сопровождающее ответ.
+     */
+    private void respond(int requestId, ServerResponses response, long value) throws IOException {
+        byte[] message = ByteBuffer.allocate(REQUEST_ID_SIZE + 1 + LONG_IN_BYTES_SIZE)
+                                   .putInt(requestId)
+                                   .put((byte) response.ordinal())
+                                   .putLong(value)
+                                   .array();
+        synchronized (outputStream) {
+            outputStream.write(message);
+        }
+    }
+
+    /**
+     * Пропускает тело файла, которое не будет сохранено.
+     *
+     * @param size Размер файла.
+     */
+    private void skipBytes(long size) throws IOException {
+        ByteBuffer buffer = streamBuffer();
+        while (size > 0)
+            size -= readChunk(buffer, size);
+    }
+
+    /**
+     * Пропускает тело файла, которое не будет сохранено, в том виде, в котором его передает клиент:
+     * сжатыми блоками, если выбрано сжатие, и с контрольными суммами после тела, если они передаются.
+     *
+     * @param size Размер файла.
+     */
+    private void skipUpload(long size) throws IOException {
+        if ((features & ProtocolFeatures.COMPRESSION.mask()) != 0) {
+            if (decoder == null)
+                decoder = new BlockCompression.Decoder();
+            decoder.skip(throttle.limit(inputStream), size);
         } else {
-            prefix = filename.substring(0, pos);
-            suffix = filename.substring(pos);
+            skipBytes(size);
         }
+        if ((features & ProtocolFeatures.CHECKSUM.mask()) != 0)
+            skipBytes((long) BlockChecksums.count(size) * INT_IN_BYTES_SIZE);
+    }
 
-        int number = 1;
-        do {
-            file = new File(storage, String.format("%s (%d)%s", prefix, number++, suffix));
-        } while (file.exists());
+    /**
+     * Загружает файл во временный файл и передает его на фиксацию в хранилище.
+     * Результат загрузки учитывается в метриках.
+     *
+     * @param begin Момент начала запроса.
+     * @param filename Имя файла, переданное клиентом.
+     * @param fileSize Размер файла.
+     * @param compressed Передается ли тело файла сжатыми блоками.
+     * @param checksums Контрольные суммы тела или null, если они не передаются.
+     * @param reservation Место, зарезервированное под файл.
+     *
+     * @return Сохраненный файл, доступный после фиксации, или null, если принятые данные испорчены.
+     */
+    private CompletableFuture<File> uploadFile(long begin, String filename, long fileSize, boolean compressed,
+                                               BlockChecksums checksums, SpaceLedger.Reservation reservation)
+            throws IOException {
+        System.out.format("Uploading \"%s\" from %s...\n", filename, socket.getInetAddress());
 
-        return file;
+        SpeedMeter meter = new SpeedMeter(metrics.received(), reservation::written);
+        File temp = committer.tempFile();
+        boolean intact;
+        try (FileOutputStream fileOutput = new FileOutputStream(temp)) {
+            if (compressed) {
+                if (decoder == null)
+                    decoder = new BlockCompression.Decoder();
+                decoder.receive(throttle.limit(inputStream), fileOutput.getChannel(), 0, fileSize, meter,
+                                checksums);
+            } else {
+                receiveBody(fileOutput.getChannel(), 0, fileSize, meter, checksums);
+            }
+            intact = verifyChecksums(filename, checksums, 0) < 0;
+        } catch (IOException e) {
+            deleteTemp(temp);
+            metrics.failed(fileSize);
+            throw e;
+        }
+        if (!intact) {
+            deleteTemp(temp);
+            metrics.failed(fileSize);
+            return null;
+        }
+
+        // Скорость приема не должна учитывать ожидание фиксации
+        long average = meter.getAverageSpeed();
+        String speed = formatSpeed(average) + meter.formatWireSpeed();
+        return committer.commit(temp, filename).thenApply(file -> {
+            System.out.format("File \"%s\" from %s stored. Average speed: %s\n", file.getName(),
+                              socket.getInetAddress(), speed);
+            digestIndex.add(file);
+            metrics.stored(begin, fileSize, average);
+            return file;
+        }).whenComplete((file, error) -> {
+            if (error != null)
+                metrics.failed(fileSize);
+        });
+    }
+
+    /**
+     * Удаляет временный файл несохраненной загрузки.
+     */
+    private static void deleteTemp(File temp) {
+        if (!temp.delete() && temp.exists())
+            System.out.format("Cannot delete incomplete file \"%s\"\n", temp.getName());
+    }
+
+    /**
+     * @param size Размер тела файла.
+     *
+     * @return Контрольные суммы тела или null, если клиент их не передает.
+     */
+    private BlockChecksums checksums(long size) {
+        return (features & ProtocolFeatures.CHECKSUM.mask()) != 0 ? new BlockChecksums(size) : null;
+    }
+
+    /**
+     * Сверяет контрольные суммы, переданные клиентом после тела файла, с вычисленными при приеме.
+     *
+     * @param filename Имя файла.
+     * @param checksums Контрольные суммы тела или null, если они не передаются.
+     * @param offset Смещение тела в файле.
+     *
+     * @return Смещение первого испорченного блока в файле или -1, если данные не испорчены.
+     */
+    private long verifyChecksums(String filename, BlockChecksums checksums, long offset) throws IOException {
+        if (checksums == null)
+            return -1;
+        long mismatch = checksums.verify(inputStream);
+        if (mismatch < 0)
+            return -1;
+        System.out.format("Checksum mismatch in \"%s\" from %s at %d bytes.\n", filename, socket.getInetAddress(),
+                          offset + mismatch);
+        return offset + mismatch;
+    }
+
+    /**
+     * Принимает данные файла и записывает их по указанному смещению.
+     *
+     * @param fileChannel Канал файла.
+     * @param position Смещение первого байта в файле.
+     * @param size Количество принимаемых байт.
+     * @param reservation Место, зарезервированное под файл.
+     *
+     * @return Средняя скорость приема в байт/секунду.
+     */
+    private long receiveBody(FileChannel fileChannel, long position, long size, SpaceLedger.Reservation reservation)
+            throws IOException {
+        SpeedMeter meter = new SpeedMeter(metrics.received(), reservation::written);
+        receiveBody(fileChannel, position, size, meter, null);
+        return meter.getAverageSpeed();
+    }
+
+    /**
+     * Принимает данные файла и записывает их по указанному смещению.
+     *
+     * @param fileChannel Канал файла.
+     * @param position Смещение первого байта в файле.
+     * @param size Количество принимаемых байт.
+     * @param meter Счетчик скорости приема.
+     * @param checksums Контрольные суммы, обновляемые принятыми данными, или null.
+     */
+    private void receiveBody(FileChannel fileChannel, long position, long size, SpeedMeter meter,
+                             BlockChecksums checksums) throws IOException {
+        // В расширенном протоколе допускаются пустые файлы
+        switch (receiveMode) {
+            case PIPELINE:
+                receivePipelined(fileChannel, position, size, meter, checksums);
+                break;
+            case TRANSFER:
+                long fullLen = 0;
+                while (fullLen < size) {
+                    int len = receiveChunk(fileChannel, position + fullLen, size - fullLen, checksums);
+                    fullLen += len;
+                    meter.add(len);
+                }
+                break;
+            default:
+                receiveStreamed(fileChannel, position, size, meter, checksums);
+        }
+    }
+
+    /**
+     * Принимает данные файла в буферы пула и передает их потокам записи на диск.
+     * Возвращает управление, когда все данные записаны.
+     */
+    private void receivePipelined(FileChannel fileChannel, long position, long size, SpeedMeter meter,
+                                  BlockChecksums checksums) throws IOException {
+        DiskWriters.FileWrites writes = diskWriters.open(fileChannel);
+        try {
+            long fullLen = 0;
+            while (fullLen < size) {
+                // Если свободных буферов нет, чтение сокета приостанавливается до их возврата
+                ByteBuffer buffer = bufferPool.acquire();
+                int len;
+                try {
+                    len = fillChunk(buffer, size - fullLen);
+                } catch (IOException e) {
+                    bufferPool.release(buffer);
+                    throw e;
+                }
+                // Сумма считается до передачи буфера потоку записи, который вернет его в пул
+                if (checksums != null)
+                    checksums.update(buffer);
+                writes.write(buffer, position + fullLen);
+                fullLen += len;
+                meter.add(len);
+            }
+        } catch (IOException e) {
+            // Канал файла закрывается после выхода, поэтому сначала дожидаемся уже принятых записей
+            writes.awaitQuietly();
+            throw e;
+        }
+        writes.await();
+    }
+
+    /**
+     * Принимает данные файла в буфер соединения и записывает их в том же потоке.
+     */
+    private void receiveStreamed(FileChannel fileChannel, long position, long size, SpeedMeter meter,
+                                 BlockChecksums checksums) throws IOException {
+        ByteBuffer buffer = streamBuffer();
+        long fullLen = 0;
+        while (fullLen < size) {
+            int len = readChunk(buffer, size - fullLen);
+            if (checksums != null)
+                checksums.update(buffer);
+            writeChunk(fileChannel, buffer, position + fullLen);
+            fullLen += len;
+            meter.add(len);
+        }
+    }
+
+    /**
+     * @return Буфер соединения для приема данных, которые записываются в том же потоке.
+     */
+    private ByteBuffer streamBuffer() {
+        if (streamBuffer == null)
+            streamBuffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        return streamBuffer;
+    }
+
+    /**
+     * Считывает в буфер очередную порцию данных, но не больше оставшегося размера:
+     * следом может идти следующий запрос.
+     *
+     * @param buffer Буфер, подготавливается для чтения из него.
+     * @param remaining Оставшийся размер принимаемых данных.
+     *
+     * @return Количество считанных байт.
+     */
+    private int readChunk(ByteBuffer buffer, long remaining) throws IOException {
+        buffer.clear();
+        if (buffer.remaining() > remaining)
+            buffer.limit((int) remaining);
+        int len = input.read(buffer);
+        if (len == -1)
+            throw new IOException(String.format("Cannot receive file from %s", socket.getInetAddress()));
+        buffer.flip();
+        throttle.acquire(len);
+        return len;
+    }
+
+    /**
+     * Заполняет буфер данными целиком или до оставшегося размера, чтобы потокам записи доставались
+     * крупные части.
+     *
+     * @param buffer Буфер, подготавливается для чтения из него.
+     * @param remaining Оставшийся размер принимаемых данных.
+     *
+     * @return Количество считанных байт.
+     */
+    private int fillChunk(ByteBuffer buffer, long remaining) throws IOException {
+        buffer.clear();
+        if (buffer.remaining() > remaining)
+            buffer.limit((int) remaining);
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer) == -1)
+                throw new IOException(String.format("Cannot receive file from %s", socket.getInetAddress()));
+        }
+        buffer.flip();
+        throttle.acquire(buffer.limit());
+        return buffer.limit();
+    }
+
+    private static void writeChunk(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += fileChannel.write(buffer, position);
+    }
+
+    /**
+     * Принимает очередную часть файла, передавая данные из канала сокета напрямую в канал файла.
+     *
+     * Если передача не продвигается (платформа не поддерживает ее для сокетов или канал
+     * не готов к чтению), часть принимается через буфер соединения. Через буфер принимаются и данные,
+     * по которым считаются контрольные суммы: при прямой передаче они не попадают в память процесса.
+     *
+     * @param fileChannel Канал файла.
+     * @param position Позиция записи в файле.
+     * @param remaining Оставшийся размер файла.
+     * @param checksums Контрольные суммы, обновляемые принятыми данными, или null.
+     *
+     * @return Количество принятых байт.
+     */
+    private int receiveChunk(FileChannel fileChannel, long position, long remaining, BlockChecksums checksums)
+            throws IOException {
+        int count = (int) Math.min(TRANSFER_CHUNK_SIZE, remaining);
+        if (checksums == null) {
+            long len = fileChannel.transferFrom(socketChannel, position, count);
+            if (len > 0) {
+                throttle.acquire(len);
+                return (int) len;
+            }
+        }
+
+        ByteBuffer buffer = streamBuffer();
+        int read = readChunk(buffer, count);
+        if (checksums != null)
+            checksums.update(buffer);
+        writeChunk(fileChannel, buffer, position);
+        return read;
     }
 
     /**
@@ -160,35 +1147,103 @@ public class ClientHandler implements Runnable {
      * @return Имя файла.
      */
     private String readFilename(int size) throws IOException {
-        readAtLeastBytes(filenameBuffer, 0, size);
-        return new String(filenameBuffer, 0, size, CHARSET);
+        if (size > MAX_FILENAME_SIZE)
+            throw new IOException(String.format("Too long filename from %s", socket.getInetAddress()));
+        if (filenameBuffer.capacity() < size)
+            filenameBuffer = ByteBuffer.allocate(size);
+        ByteBuffer buffer = filenameBuffer;
+        buffer.clear().limit(size);
+        readAtLeastBytes(buffer.array(), 0, size);
+        return CHARSET.decode(buffer).toString();
+    }
+
+    /**
+     * @param filename Имя файла, переданное клиентом.
+     *
+     * @return Имя без пути, если клиент не выбрал передачу путей.
+     */
+    private String clientName(String filename) {
+        return (features & ProtocolFeatures.PATHS.mask()) != 0 ? filename : new File(filename).getName();
+    }
+
+    /**
+     * @return Считаный идентификатор запроса.
+     */
+    private int readRequestId() throws IOException {
+        clearSizesBuffer(sizesBuffer);
+        readAtLeastBytes(sizesBuffer.array(), 0, REQUEST_ID_SIZE);
+        return sizesBuffer.getInt(0);
+    }
+
+    /**
+     * @return Считаный ключ возобновляемой загрузки в шестнадцатеричной записи.
+     */
+    private String readUploadKey() throws IOException {
+        readAtLeastBytes(uploadKeyBuffer, 0, UPLOAD_KEY_SIZE);
+        // Ключ становится именем файла, поэтому клиент не может передать в нем путь
+        char[] hex = new char[UPLOAD_KEY_SIZE * 2];
+        for (int i = 0; i < UPLOAD_KEY_SIZE; i++) {
+            hex[i * 2] = HEX_DIGITS[(uploadKeyBuffer[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[uploadKeyBuffer[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return Считаное 8-байтовое число.
+     */
+    private long readLong() throws IOException {
+        readAtLeastBytes(sizesBuffer.array(), 0, LONG_IN_BYTES_SIZE);
+        return sizesBuffer.getLong(0);
     }
 
     /**
      * @return Считаная длина имени файла.
      */
     private int readFilenameSize() throws IOException {
-        clearSizesBuffer();
-        readAtLeastBytes(sizesBuffer.array(), LONG_IN_BYTES_SIZE - FILENAME_LEN_SIZE, FILENAME_LEN_SIZE);
-        return sizesBuffer.getInt(INT_IN_BYTES_SIZE);
+        return readFilenameSize(inputStream, sizesBuffer);
     }
 
     /**
      * @return Считаный размер файла.
      */
     private long readFileSize() throws IOException {
-        clearSizesBuffer();
-        readAtLeastBytes(sizesBuffer.array(), LONG_IN_BYTES_SIZE - FILE_LEN_SIZE, FILE_LEN_SIZE);
+        return readFileSize(inputStream, sizesBuffer);
+    }
+
+    /**
+     * Считывает длину имени файла.
+     *
+     * @param sizesBuffer Буфер размеров с массивом на {@link Utils#LONG_IN_BYTES_SIZE} байт.
+     */
+    static int readFilenameSize(InputStream inputStream, ByteBuffer sizesBuffer) throws IOException {
+        clearSizesBuffer(sizesBuffer);
+        readAtLeastBytes(inputStream, sizesBuffer.array(), LONG_IN_BYTES_SIZE - FILENAME_LEN_SIZE, FILENAME_LEN_SIZE);
+        return sizesBuffer.getInt(INT_IN_BYTES_SIZE);
+    }
+
+    /**
+     * Считывает 5-байтовый размер файла.
+     *
+     * @param sizesBuffer Буфер размеров с массивом на {@link Utils#LONG_IN_BYTES_SIZE} байт.
+     */
+    static long readFileSize(InputStream inputStream, ByteBuffer sizesBuffer) throws IOException {
+        clearSizesBuffer(sizesBuffer);
+        readAtLeastBytes(inputStream, sizesBuffer.array(), LONG_IN_BYTES_SIZE - FILE_LEN_SIZE, FILE_LEN_SIZE);
         return sizesBuffer.getLong();
     }
 
     /**
      * Очищает буфер размеров и заполняет его нулями.
      */
-    private void clearSizesBuffer() {
+    private static void clearSizesBuffer(ByteBuffer sizesBuffer) {
         sizesBuffer.putLong(0, 0).clear();
     }
 
+    private void readAtLeastBytes(byte[] buffer, int offset, int required) throws IOException {
+        readAtLeastBytes(inputStream, buffer, offset, required);
+    }
+
     /**
      * Считывает требуемое количество байт в массив.
      *
@@ -196,7 +1251,8 @@ public class ClientHandler implements Runnable {
      * @param offset Смещение от начала буфера.
      * @param required Минимальное количество байт для возврата.
      */
-    private void readAtLeastBytes(byte[] buffer, int offset, int required) throws IOException {
+    private static void readAtLeastBytes(InputStream inputStream, byte[] buffer, int offset, int required)
+            throws IOException {
         int len = 0;
         while (len < required) {
             int count = inputStream.read(buffer, offset + len, required - len);
@@ -205,22 +1261,4 @@ public class ClientHandler implements Runnable {
             len += count;
         }
     }
-
-    /**
-     * Создает форматированную стоку с отображением скорости передачи данных.
-     *
-     * @param speed Скорость в байт/секунду
-     *
-     * @return Форматированная строка.
-     */
-    private static String formatSpeed(long speed) {
-        if (speed < 1024)
-            return speed + " Bytes/sec";
-        else if (speed < 1024 * 1024)
-            return speed / 1024 + " Kb/sec";
-        else if (speed < 1024 * 1024 * 1024)
-            return speed / (1024 * 1024) + " Mb/sec";
-        else
-            return speed / (1024 * 1024 * 1024) + " Gb/sec";
-    }
 }
@@ -0,0 +1,141 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static org.polushin.networks.file_transfer.Utils.LONG_IN_BYTES_SIZE;
+
+/**
+ * Дайджест содержимого файла для поиска копий в хранилище.
+ *
+ * Файл делится на блоки по 4 Мб, каждый блок хешируется SHA-256 независимо, а дайджест файла равен
+ * SHA-256 от размера файла и хешей блоков по порядку. Поэтому блоки большого файла можно хешировать
+ * параллельно, а отправитель и сервер получают одинаковый результат.
+ */
+final class ContentDigest {
+
+    // Длина дайджеста в байтах
+    static final int DIGEST_SIZE = 32;
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final String ALGORITHM = "SHA-256";
+
+    private ContentDigest() {
+    }
+
+    /**
+     * Вычисляет дайджест файла в текущем потоке.
+     */
+    static byte[] compute(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            List<byte[]> blocks = new ArrayList<>();
+            for (long offset = 0; offset < size; offset += BLOCK_SIZE)
+                blocks.add(hashBlock(channel, offset, Math.min(BLOCK_SIZE, size - offset), buffer));
+            return combine(size, blocks);
+        }
+    }
+
+    /**
+     * Вычисляет дайджест файла, хешируя блоки параллельно.
+     *
+     * @param file Файл.
+     * @param executor Исполнитель задач хеширования блоков.
+     *
+     * @return Дайджест, который будет вычислен. Ошибки чтения завершают его с {@link UncheckedIOException}.
+     */
+    static CompletableFuture<byte[]> computeAsync(File file, Executor executor) {
+        FileChannel channel;
+        long size;
+        try {
+            channel = new FileInputStream(file).getChannel();
+            size = channel.size();
+        } catch (IOException e) {
+            CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new UncheckedIOException(e));
+            return failed;
+        }
+
+        // Позиционное чтение канала допускается из нескольких потоков
+        List<CompletableFuture<byte[]>> blocks = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += BLOCK_SIZE) {
+            long blockOffset = offset;
+            long length = Math.min(BLOCK_SIZE, size - offset);
+            blocks.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return hashBlock(channel, blockOffset, length, ByteBuffer.allocate(READ_BUFFER_SIZE));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+
+        return CompletableFuture.allOf(blocks.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            List<byte[]> digests = new ArrayList<>(blocks.size());
+            for (CompletableFuture<byte[]> block : blocks)
+                digests.add(block.join());
+            return combine(size, digests);
+        });
+    }
+
+    /**
+     * @return Шестнадцатеричная запись дайджеста.
+     */
+    static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return builder.toString();
+    }
+
+    private static byte[] hashBlock(FileChannel channel, long offset, long length, ByteBuffer buffer)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        long end = offset + length;
+        while (offset < end) {
+            buffer.clear();
+            if (buffer.remaining() > end - offset)
+                buffer.limit((int) (end - offset));
+            int len = channel.read(buffer, offset);
+            if (len == -1)
+                throw new IOException("File was truncated during hashing.");
+            buffer.flip();
+            digest.update(buffer);
+            offset += len;
+        }
+        return digest.digest();
+    }
+
+    private static byte[] combine(long size, List<byte[]> blocks) {
+        MessageDigest digest = newDigest();
+        digest.update(ByteBuffer.allocate(LONG_IN_BYTES_SIZE).putLong(0, size));
+        for (byte[] block : blocks)
+            digest.update(block);
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Реализация SHA-256 обязательна для любой JVM
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static org.polushin.networks.file_transfer.Utils.INT_IN_BYTES_SIZE;
+import static org.polushin.networks.file_transfer.Utils.LONG_IN_BYTES_SIZE;
+
+/**
+ * Разностная передача новой версии файла, уже сохраненного на сервере (по алгоритму rsync).
+ *
+ * Сервер делит сохраненную версию на блоки и отправляет для каждого слабую скользящую контрольную сумму
+ * и MD5. Отправитель проходит новую версию окном длиной в блок: слабая сумма окна пересчитывается
+ * при сдвиге на байт за постоянное время, и только при ее совпадении окно сравнивается по MD5.
+ * Совпавшие блоки передаются ссылками, остальные данные - как есть. Сервер собирает новую версию
+ * из блоков прежней и полученных данных и сверяет ее SHA-256 с переданным отправителем.
+ *
+ * Разность состоит из команд, каждая начинается с кода (1 байт):
+ * {@link #LITERAL} (длина, 4 байта)(данные), {@link #COPY} (номер первого блока, 4 байта)(количество блоков,
+ * 4 байта) и завершающая {@link #END} (SHA-256 новой версии, 32 байта).
+ */
+final class DeltaSync {
+
+    static final int END = 0;
+    static final int LITERAL = 1;
+    static final int COPY = 2;
+
+    // Длина MD5 блока
+    private static final int STRONG_SIZE = 16;
+    private static final int SIGNATURE_SIZE = INT_IN_BYTES_SIZE + STRONG_SIZE;
+    private static final int HEADER_SIZE = LONG_IN_BYTES_SIZE + 2 * INT_IN_BYTES_SIZE;
+    private static final int FILE_DIGEST_SIZE = 32;
+    // Размер блока растет как корень из размера файла: число блоков и доля данных в несовпавшем блоке
+    // растут одинаково медленно
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int BLOCK_SIZE_STEP = 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    // Размер буфера команд отправителя и максимальная длина одной команды LITERAL
+    private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_LITERAL = OUTPUT_BUFFER_SIZE - 1 - INT_IN_BYTES_SIZE;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * @return Размер блока для файла указанного размера.
+     */
+    static int blockSize(long fileSize) {
+        long size = (long) Math.ceil(Math.sqrt(fileSize) / BLOCK_SIZE_STEP) * BLOCK_SIZE_STEP;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Вычисляет сигнатуры блоков файла.
+     */
+    static Signatures compute(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int blockSize = blockSize(fileSize);
+        int count = (int) ((fileSize + blockSize - 1) / blockSize);
+        Signatures signatures = new Signatures(fileSize, blockSize, count);
+        MessageDigest md5 = messageDigest("MD5");
+
+        // Буфер вмещает целое число блоков
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(1, READ_BUFFER_SIZE / blockSize) * blockSize);
+        long position = 0;
+        int index = 0;
+        while (index < count) {
+            buffer.clear();
+            while (buffer.hasRemaining() && position + buffer.position() < fileSize) {
+                if (channel.read(buffer, position + buffer.position()) == -1)
+                    throw new IOException("File was truncated while computing signatures.");
+            }
+            int length = buffer.position();
+            for (int offset = 0; offset < length; offset += blockSize, index++) {
+                int blockLength = Math.min(blockSize, length - offset);
+                signatures.rolling[index] = rolling(buffer.array(), offset, blockLength);
+                md5.update(buffer.array(), offset, blockLength);
+                digestInto(md5, signatures.strong, index * STRONG_SIZE);
+            }
+            position += length;
+        }
+        return signatures;
+    }
+
+    /**
+     * Вычисляет слабую контрольную сумму окна: сумму байт и сумму байт, взвешенных по расстоянию
+     * до конца окна, обе по модулю 2^16.
+     */
+    private static int rolling(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return checksum(a, b);
+    }
+
+    private static int checksum(int a, int b) {
+        return (b & 0xFFFF) << 16 | (a & 0xFFFF);
+    }
+
+    private static MessageDigest messageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void digestInto(MessageDigest digest, byte[] target, int offset) {
+        try {
+            digest.digest(target, offset, digest.getDigestLength());
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Применяет разность к прежней версии файла.
+     *
+     * @param input Поток команд разности.
+     * @param base Канал прежней версии.
+     * @param signatures Сигнатуры прежней версии, отправленные отправителю.
+     * @param target Канал новой версии.
+     * @param fileSize Размер новой версии.
+     *
+     * @return Объем данных, переданных командами LITERAL.
+     *
+     * @throws IOException Ошибка ввода-вывода, неверная команда или новая версия не совпала с версией
+     * отправителя.
+     */
+    static long apply(InputStream input, FileChannel base, Signatures signatures, FileChannel target,
+                      long fileSize) throws IOException {
+        MessageDigest digest = messageDigest("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, signatures.blockSize));
+        byte[] header = new byte[2 * INT_IN_BYTES_SIZE];
+        long position = 0;
+        long literalBytes = 0;
+        while (true) {
+            int command = input.read();
+            if (command == -1)
+                throw new IOException("Connection closed during delta transfer.");
+            if (command == END)
+                break;
+            if (command == LITERAL) {
+                readFully(input, header, 0, INT_IN_BYTES_SIZE);
+                int length = ByteBuffer.wrap(header).getInt();
+                if (length < 0 || position + length > fileSize)
+                    throw new IOException("Delta exceeds file size.");
+                for (int left = length; left > 0; ) {
+                    int chunk = Math.min(left, buffer.capacity());
+                    readFully(input, buffer.array(), 0, chunk);
+                    buffer.clear().limit(chunk);
+                    position = write(buffer, target, position, digest);
+                    left -= chunk;
+                }
+                literalBytes += length;
+            } else if (command == COPY) {
+                readFully(input, header, 0, header.length);
+                ByteBuffer values = ByteBuffer.wrap(header);
+                int first = values.getInt();
+                int count = values.getInt();
+                if (first < 0 || count < 0 || (long) first + count > signatures.count)
+                    throw new IOException("Delta refers to unknown block.");
+                long from = (long) first * signatures.blockSize;
+                long end = Math.min(signatures.fileSize, (long) (first + count) * signatures.blockSize);
+                if (position + end - from > fileSize)
+                    throw new IOException("Delta exceeds file size.");
+                while (from < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - from));
+                    while (buffer.hasRemaining()) {
+                        if (base.read(buffer, from + buffer.position()) == -1)
+                            throw new IOException("Stored file was truncated during update.");
+                    }
+                    buffer.flip();
+                    from += buffer.remaining();
+                    position = write(buffer, target, position, digest);
+                }
+            } else {
+                throw new IOException(String.format("Unknown delta command %d", command));
+            }
+        }
+
+        byte[] expected = new byte[FILE_DIGEST_SIZE];
+        readFully(input, expected, 0, expected.length);
+        if (position != fileSize || !Arrays.equals(expected, digest.digest()))
+            throw new IOException("Updated file does not match sender's version.");
+        return literalBytes;
+    }
+
+    /**
+     * Записывает буфер в файл и учитывает его в дайджесте.
+     *
+     * @return Позиция после записанных данных.
+     */
+    private static long write(ByteBuffer buffer, FileChannel target, long position, MessageDigest digest)
+            throws IOException {
+        digest.update(buffer.array(), buffer.position(), buffer.remaining());
+        while (buffer.hasRemaining())
+            position += target.write(buffer, position);
+        return position;
+    }
+
+    private static void readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = input.read(buffer, offset, length);
+            if (count == -1)
+                throw new IOException("Connection closed during delta transfer.");
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Сигнатуры блоков сохраненной версии файла.
+     */
+    static class Signatures {
+
+        private final long fileSize;
+        private final int blockSize;
+        private final int count;
+        private final int[] rolling;
+        // MD5 блоков подряд
+        private final byte[] strong;
+
+        private Signatures(long fileSize, int blockSize, int count) {
+            this.fileSize = fileSize;
+            this.blockSize = blockSize;
+            this.count = count;
+            rolling = new int[count];
+            strong = new byte[count * STRONG_SIZE];
+        }
+
+        long getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * @return Сигнатуры в виде для передачи: размер файла (8 байт), размер блока (4 байта),
+         * количество блоков (4 байта) и для каждого блока слабая сумма (4 байта) и MD5 (16 байт).
+         */
+        byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * SIGNATURE_SIZE);
+            buffer.putLong(fileSize).putInt(blockSize).putInt(count);
+            for (int i = 0; i < count; i++)
+                buffer.putInt(rolling[i]).put(strong, i * STRONG_SIZE, STRONG_SIZE);
+            return buffer.array();
+        }
+
+        /**
+         * Считывает сигнатуры, переданные сервером.
+         */
+        static Signatures read(SocketChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!FileSender.readFully(channel, header))
+                throw new IOException("Connection closed by server.");
+            long fileSize = header.getLong(0);
+            int blockSize = header.getInt(LONG_IN_BYTES_SIZE);
+            int count = header.getInt(LONG_IN_BYTES_SIZE + INT_IN_BYTES_SIZE);
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || fileSize < 0 ||
+                count != (fileSize + blockSize - 1) / blockSize ||
+                (long) count * SIGNATURE_SIZE > Integer.MAX_VALUE - HEADER_SIZE)
+                throw new IOException("Invalid block signatures.");
+
+            Signatures signatures = new Signatures(fileSize, blockSize, count);
+            ByteBuffer entries = ByteBuffer.allocate(count * SIGNATURE_SIZE);
+            if (count > 0 && !FileSender.readFully(channel, entries))
+                throw new IOException("Connection closed by server.");
+            entries.flip();
+            for (int i = 0; i < count; i++) {
+                signatures.rolling[i] = entries.getInt();
+                entries.get(signatures.strong, i * STRONG_SIZE, STRONG_SIZE);
+            }
+            return signatures;
+        }
+
+        private int blockLength(int index) {
+            return (int) Math.min(blockSize, fileSize - (long) index * blockSize);
+        }
+    }
+
+    /**
+     * Построение разности новой версии файла относительно сигнатур сохраненной версии.
+     */
+    static class Encoder {
+
+        private final Signatures signatures;
+        private final WritableByteChannel output;
+        private final SpeedMeter meter;
+        // Цепочки блоков с одинаковой корзиной слабой суммы: первый блок корзины и следующий блок цепочки
+        private final int[] heads;
+        private final int[] next;
+        private final MessageDigest md5 = messageDigest("MD5");
+        private final MessageDigest fileDigest = messageDigest("SHA-256");
+        private final byte[] windowDigest = new byte[STRONG_SIZE];
+        private final ByteBuffer commands = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+
+        // Непрерывный ряд блоков, ссылка на который еще не записана
+        private int copyFirst;
+        private int copyCount;
+        // Объем файла, описанный записанными командами, но еще не учтенный счетчиком скорости
+        private long described;
+        private long literalBytes;
+        private long wireBytes;
+
+        /**
+         * @param signatures Сигнатуры сохраненной версии.
+         * @param output Канал, в который записываются команды.
+         * @param meter Счетчик скорости: объем файла и объем, переданный по сети.
+         */
+        Encoder(Signatures signatures, WritableByteChannel output, SpeedMeter meter) {
+            this.signatures = signatures;
+            this.output = output;
+            this.meter = meter;
+            int size = Integer.highestOneBit(Math.max(1, signatures.count) * 2);
+            heads = new int[size];
+            Arrays.fill(heads, -1);
+            next = new int[signatures.count];
+            for (int i = signatures.count - 1; i >= 0; i--) {
+                int bucket = bucket(signatures.rolling[i]);
+                next[i] = heads[bucket];
+                heads[bucket] = i;
+            }
+        }
+
+        /**
+         * Отправляет разность новой версии файла.
+         */
+        void encode(FileChannel file) throws IOException {
+            int blockSize = signatures.blockSize;
+            byte[] buffer = new byte[Math.max(READ_BUFFER_SIZE, 4 * blockSize)];
+            long filePosition = 0;
+            boolean eof = false;
+            // Данные в буфере: [0, end); окно начинается с start; данные с literal до start еще не отправлены
+            int end = 0;
+            int start = 0;
+            int literal = 0;
+            int a = 0;
+            int b = 0;
+            boolean summed = false;
+
+            while (true) {
+                if (end - start < blockSize && !eof) {
+                    writeLiteral(buffer, literal, start);
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    literal = 0;
+                    int count = file.read(ByteBuffer.wrap(buffer, end, buffer.length - end), filePosition);
+                    if (count == -1) {
+                        eof = true;
+                    } else {
+                        fileDigest.update(buffer, end, count);
+                        end += count;
+                        filePosition += count;
+                    }
+                    continue;
+                }
+
+                int length = Math.min(blockSize, end - start);
+                if (length == 0)
+                    break;
+                // Короткий остаток файла может совпасть только с последним блоком сохраненной версии
+                if (length < blockSize)
+                    summed = false;
+                if (!summed) {
+                    int checksum = rolling(buffer, start, length);
+                    a = checksum & 0xFFFF;
+                    b = checksum >>> 16;
+                    summed = true;
+                }
+
+                int match = find(checksum(a, b), buffer, start, length);
+                if (match >= 0) {
+                    writeLiteral(buffer, literal, start);
+                    copy(match);
+                    start += length;
+                    literal = start;
+                    summed = false;
+                    continue;
+                }
+                if (length < blockSize) {
+                    start = end;
+                    break;
+                }
+
+                // Сдвиг окна на байт
+                if (start + blockSize < end) {
+                    int out = buffer[start] & 0xFF;
+                    int in = buffer[start + blockSize] & 0xFF;
+                    a = (a - out + in) & 0xFFFF;
+                    b = (b - blockSize * out + a) & 0xFFFF;
+                } else {
+                    summed = false;
+                }
+                start++;
+            }
+            writeLiteral(buffer, literal, start);
+            flushCopy();
+            ensureCapacity(1 + FILE_DIGEST_SIZE);
+            commands.put((byte) END).put(fileDigest.digest());
+            flush();
+        }
+
+        /**
+         * @return Объем данных новой версии, переданных как есть.
+         */
+        long getLiteralBytes() {
+            return literalBytes;
+        }
+
+        /**
+         * @return Объем разности, переданной по сети.
+         */
+        long getWireBytes() {
+            return wireBytes;
+        }
+
+        /**
+         * Ищет блок сохраненной версии с тем же содержимым, что и окно. Сначала проверяется блок,
+         * следующий за последним совпавшим, чтобы неизмененные участки передавались одной ссылкой.
+         *
+         * @return Номер блока или -1.
+         */
+        private int find(int checksum, byte[] buffer, int start, int length) {
+            boolean hashed = false;
+            int expected = copyCount > 0 ? copyFirst + copyCount : -1;
+            if (expected >= 0 && expected < signatures.count && signatures.rolling[expected] == checksum &&
+                signatures.blockLength(expected) == length) {
+                hashWindow(buffer, start, length);
+                hashed = true;
+                if (strongEquals(expected))
+                    return expected;
+            }
+            for (int i = heads[bucket(checksum)]; i != -1; i = next[i]) {
+                if (signatures.rolling[i] != checksum || signatures.blockLength(i) != length)
+                    continue;
+                if (!hashed) {
+                    hashWindow(buffer, start, length);
+                    hashed = true;
+                }
+                if (strongEquals(i))
+                    return i;
+            }
+            return -1;
+        }
+
+        private void hashWindow(byte[] buffer, int start, int length) {
+            md5.update(buffer, start, length);
+            digestInto(md5, windowDigest, 0);
+        }
+
+        private boolean strongEquals(int index) {
+            int offset = index * STRONG_SIZE;
+            for (int i = 0; i < STRONG_SIZE; i++)
+                if (signatures.strong[offset + i] != windowDigest[i])
+                    return false;
+            return true;
+        }
+
+        private int bucket(int checksum) {
+            return (checksum * 0x9E3779B9 >>> 16) & (heads.length - 1);
+        }
+
+        private void copy(int index) throws IOException {
+            if (copyCount > 0 && index == copyFirst + copyCount) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyFirst = index;
+            copyCount = 1;
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount == 0)
+                return;
+            ensureCapacity(1 + 2 * INT_IN_BYTES_SIZE);
+            commands.put((byte) COPY).putInt(copyFirst).putInt(copyCount);
+            long end = Math.min(signatures.fileSize, (long) (copyFirst + copyCount) * signatures.blockSize);
+            described += end - (long) copyFirst * signatures.blockSize;
+            copyCount = 0;
+        }
+
+        private void writeLiteral(byte[] buffer, int from, int to) throws IOException {
+            if (from == to)
+                return;
+            flushCopy();
+            for (int offset = from; offset < to; offset += MAX_LITERAL) {
+                int length = Math.min(MAX_LITERAL, to - offset);
+                ensureCapacity(1 + INT_IN_BYTES_SIZE + length);
+                commands.put((byte) LITERAL).putInt(length).put(buffer, offset, length);
+            }
+            described += to - from;
+            literalBytes += to - from;
+        }
+
+        private void ensureCapacity(int size) throws IOException {
+            if (commands.remaining() < size)
+                flush();
+        }
+
+        private void flush() throws IOException {
+            commands.flip();
+            int size = commands.remaining();
+            while (commands.hasRemaining())
+                output.write(commands);
+            commands.clear();
+            wireBytes += size;
+            meter.add(described, size);
+            described = 0;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Индекс дайджестов содержимого файлов хранилища.
+ *
+ * Дайджесты вычисляются сервером по сохраненным данным в фоновом потоке, поэтому клиент не может
+ * подменить содержимое чужого файла, прислав неверный дайджест. Индекс хранится в журнале
+ * в директории хранилища и при запуске сервера сверяется с файлами: измененные и новые файлы
+ * хешируются заново.
+ */
+class DigestIndex {
+
+    // Журнал индекса внутри хранилища
+    static final String INDEX_FILE = ".digests";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final StorageLayout layout;
+    private final FileCommitter committer;
+    private final File indexFile;
+    // Поток построения индекса: все изменения индекса и журнала выполняются в нем
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "digest-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Записи индекса по дайджестам и по именам файлов
+    private final Map<String, Entry> byDigest = new HashMap<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+    private DataOutputStream journal;
+
+    /**
+     * @param storage Директория хранилища.
+     * @param layout Размещение файлов хранилища.
+     * @param committer Фиксация копий в хранилище.
+     */
+    DigestIndex(File storage, StorageLayout layout, FileCommitter committer) {
+        this.layout = layout;
+        this.committer = committer;
+        indexFile = new File(storage, INDEX_FILE);
+    }
+
+    /**
+     * Загружает журнал и в фоне индексирует файлы, которых в нем нет.
+     */
+    void start() {
+        indexer.execute(() -> {
+            load();
+            scan();
+            rewriteJournal();
+        });
+    }
+
+    /**
+     * Завершает индексирование, дописывая уже поставленные в очередь файлы.
+     */
+    void stop() {
+        indexer.shutdown();
+        try {
+            indexer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            closeJournal();
+        }
+    }
+
+    /**
+     * Ставит сохраненный файл в очередь на индексирование.
+     */
+    void add(File file) {
+        indexer.execute(() -> index(layout.nameOf(file), file));
+    }
+
+    /**
+     * Ищет в хранилище файл с тем же содержимым и делает его копию под новым именем.
+     *
+     * Копия создается жесткой ссылкой, не занимающей места, и фиксируется в хранилище так же, как принятые
+     * файлы. Если ссылку создать нельзя, копия не создается: клиент отправит файл обычной загрузкой,
+     * для которой резервируется место.
+     *
+     * @param digest Дайджест содержимого.
+     * @param size Размер файла.
+     * @param filename Имя файла, переданное клиентом.
+     *
+     * @return Созданный файл, доступный после фиксации, или null, если файла с таким содержимым нет
+     * или ссылку на него создать не удалось.
+     */
+    CompletableFuture<File> link(byte[] digest, long size, String filename) {
+        String hex = ContentDigest.toHex(digest);
+        File existing;
+        synchronized (this) {
+            Entry entry = byDigest.get(hex);
+            if (entry == null || entry.size != size)
+                return null;
+            existing = layout.resolve(entry.name);
+            // Файл мог быть изменен или удален после индексирования
+            if (existing.length() != entry.size || existing.lastModified() != entry.lastModified) {
+                remove(entry);
+                return null;
+            }
+        }
+
+        File temp = committer.tempFile();
+        try {
+            Files.createLink(temp.toPath(), existing.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            if (!FileCommitter.isLinkUnsupported(e))
+                e.printStackTrace();
+            return null;
+        }
+        return committer.commit(temp, filename).thenApply(file -> {
+            // Содержимое копии известно, хешировать ее заново не нужно
+            Entry entry = new Entry(hex, layout.nameOf(file), size, file.lastModified());
+            indexer.execute(() -> record(entry));
+            return file;
+        });
+    }
+
+    /**
+     * Вычисляет дайджест файла и добавляет его в индекс.
+     *
+     * @param name Имя файла в хранилище.
+     */
+    private void index(String name, File file) {
+        byte[] digest;
+        long size = file.length();
+        long lastModified = file.lastModified();
+        try {
+            digest = ContentDigest.compute(file);
+        } catch (IOException e) {
+            System.out.format("Cannot index \"%s\": %s\n", name, e.getMessage());
+            return;
+        }
+        // Файл изменился во время хеширования
+        if (file.length() != size || file.lastModified() != lastModified)
+            return;
+
+        record(new Entry(ContentDigest.toHex(digest), name, size, lastModified));
+    }
+
+    /**
+     * Добавляет запись в индекс и журнал.
+     */
+    private synchronized void record(Entry entry) {
+        put(entry);
+        try {
+            if (journal == null)
+                journal = openJournal(true);
+            entry.write(journal);
+            journal.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeJournal();
+        }
+    }
+
+    /**
+     * Загружает записи журнала, которые соответствуют текущим файлам хранилища.
+     */
+    private void load() {
+        if (!indexFile.exists())
+            return;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            while (true) {
+                Entry entry = Entry.read(input);
+                if (entry == null)
+                    break;
+                File file = layout.resolve(entry.name);
+                synchronized (this) {
+                    if (file.length() == entry.size && file.lastModified() == entry.lastModified)
+                        put(entry);
+                }
+            }
+        } catch (IOException e) {
+            // Последняя запись могла быть дописана не полностью
+            System.out.format("Digest index is damaged, the rest of it is ignored: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Индексирует файлы хранилища, которых нет в индексе или которые изменились.
+     */
+    private void scan() {
+        List<String> names;
+        try {
+            names = layout.names();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        int indexed = 0;
+        for (String name : names) {
+            File file = layout.resolve(name);
+            if (name.startsWith(".") || !file.isFile())
+                continue;
+            Entry entry;
+            synchronized (this) {
+                entry = byName.get(name);
+            }
+            if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified())
+                continue;
+            index(name, file);
+            indexed++;
+        }
+        if (indexed > 0)
+            System.out.format("Indexed %d files of storage.\n", indexed);
+    }
+
+    /**
+     * Перезаписывает журнал только актуальными записями.
+     */
+    private synchronized void rewriteJournal() {
+        closeJournal();
+        File temp = new File(indexFile.getPath() + TEMP_SUFFIX);
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)))) {
+                for (Entry entry : byName.values())
+                    entry.write(output);
+            }
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private DataOutputStream openJournal(boolean append) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, append)));
+    }
+
+    private void closeJournal() {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        journal = null;
+    }
+
+    private void put(Entry entry) {
+        Entry previous = byName.put(entry.name, entry);
+        if (previous != null && byDigest.get(previous.digest) == previous)
+            byDigest.remove(previous.digest);
+        byDigest.put(entry.digest, entry);
+    }
+
+    private void remove(Entry entry) {
+        byName.remove(entry.name, entry);
+        byDigest.remove(entry.digest, entry);
+    }
+
+    /**
+     * Запись индекса: дайджест и состояние файла на момент хеширования.
+     */
+    private static class Entry {
+
+        private final String digest;
+        private final String name;
+        private final long size;
+        private final long lastModified;
+
+        Entry(String digest, String name, long size, long lastModified) {
+            this.digest = digest;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            output.writeUTF(digest);
+            output.writeUTF(name);
+            output.writeLong(size);
+            output.writeLong(lastModified);
+        }
+
+        /**
+         * @return Считанная запись или null, если журнал закончился.
+         */
+        static Entry read(DataInputStream input) throws IOException {
+            String digest;
+            try {
+                digest = input.readUTF();
+            } catch (EOFException e) {
+                return null;
+            }
+            return new Entry(digest, input.readUTF(), input.readLong(), input.readLong());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Потоки записи принятых данных на диск.
+ *
+ * Потоки приема только читают сокеты в буферы из {@link BufferPool} и передают их сюда, поэтому
+ * задержки диска не останавливают чтение сокета, пока в пуле есть свободные буферы. Все записи одного
+ * файла выполняет один поток в порядке поступления.
+ */
+class DiskWriters {
+
+    private final BufferPool bufferPool;
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    /**
+     * @param threads Количество потоков записи.
+     * @param bufferPool Пул, в который возвращаются записанные буферы.
+     */
+    DiskWriters(int threads, BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+            Thread thread = new Thread(workers[i], "disk-writer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Начинает запись файла.
+     *
+     * @param fileChannel Канал файла.
+     *
+     * @return Очередь записей файла.
+     */
+    FileWrites open(FileChannel fileChannel) {
+        Worker worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+        return new FileWrites(fileChannel, worker);
+    }
+
+    /**
+     * Записи одного файла. Используется потоком приема этого файла.
+     */
+    class FileWrites {
+
+        private final FileChannel fileChannel;
+        private final Worker worker;
+        // Количество поставленных в очередь и еще не выполненных записей
+        private int pending;
+        // Первая ошибка записи: после нее остальные записи файла не выполняются, чтобы не оставить дыр
+        private IOException error;
+
+        private FileWrites(FileChannel fileChannel, Worker worker) {
+            this.fileChannel = fileChannel;
+            this.worker = worker;
+        }
+
+        /**
+         * Ставит буфер в очередь на запись. Буфер возвращается в пул после записи.
+         *
+         * @param buffer Буфер с данными, подготовленный для чтения.
+         * @param position Позиция записи в файле.
+         */
+        void write(ByteBuffer buffer, long position) throws IOException {
+            synchronized (this) {
+                if (error != null) {
+                    bufferPool.release(buffer);
+                    throw error;
+                }
+                pending++;
+            }
+            worker.tasks.add(new WriteTask(this, buffer, position));
+        }
+
+        /**
+         * Ожидает выполнения всех поставленных записей.
+         *
+         * @throws IOException Если запись на диск не удалась.
+         */
+        synchronized void await() throws IOException {
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for disk writes.");
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+
+        /**
+         * Ожидает выполнения всех поставленных записей, не сообщая об ошибках. Используется, когда прием
+         * уже прерван, но канал файла можно закрыть только после записей.
+         */
+        void awaitQuietly() {
+            try {
+                await();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void execute(ByteBuffer buffer, long position) {
+            IOException failure = null;
+            synchronized (this) {
+                if (error != null)
+                    failure = error;
+            }
+            if (failure == null) {
+                try {
+                    while (buffer.hasRemaining())
+                        position += fileChannel.write(buffer, position);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            bufferPool.release(buffer);
+
+            synchronized (this) {
+                if (failure != null && error == null)
+                    error = failure;
+                pending--;
+                notifyAll();
+            }
+        }
+    }
+
+    private static class WriteTask {
+
+        private final FileWrites writes;
+        private final ByteBuffer buffer;
+        private final long position;
+
+        WriteTask(FileWrites writes, ByteBuffer buffer, long position) {
+            this.writes = writes;
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+
+    private static class Worker implements Runnable {
+
+        private final BlockingQueue<WriteTask> tasks = new LinkedBlockingQueue<>();
+
+        @Override
+        public void run() {
+            while (true) {
+                WriteTask task;
+                try {
+                    task = tasks.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.writes.execute(task.buffer, task.position);
+            }
+        }
+    }
+}
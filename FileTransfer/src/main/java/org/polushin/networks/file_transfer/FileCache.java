@@ -0,0 +1,148 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кеш содержимого небольших файлов хранилища для их отправки клиентам.
+ *
+ * Содержимое хранится в прямых буферах вне кучи и отправляется в сокет прямо из них, без открытия файла
+ * и копирования данных в память процесса. Объем кеша ограничен, при нехватке места вытесняются файлы,
+ * которые дольше всего не запрашивались. Файлы, сохраненные под именем, которое уже есть в кеше,
+ * вытесняют прежнее содержимое (см. {@link FileCommitter}). Изменения файлов в обход сервера
+ * кеш не замечает.
+ */
+class FileCache {
+
+    // Максимальный размер кешируемого файла
+    private static final int MAX_ENTRY_SIZE = 256 * 1024;
+
+    private final long capacity;
+    private final int maxEntrySize;
+    // Порядок обхода - от давно запрошенных к недавно запрошенным
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    // Счетчик вытеснений по имени: содержимое, прочитанное до вытеснения, в кеш не попадает
+    private long invalidations;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity Общий объем кеша в байтах. Нулевой объем отключает кеш.
+     */
+    FileCache(long capacity) {
+        this.capacity = capacity;
+        maxEntrySize = (int) Math.min(MAX_ENTRY_SIZE, capacity);
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * @param name Имя файла в хранилище.
+     *
+     * @return Содержимое файла (буфер только для чтения со своей позицией) или null, если файла нет в кеше.
+     */
+    ByteBuffer get(String name) {
+        if (!isEnabled())
+            return null;
+        ByteBuffer content;
+        synchronized (this) {
+            content = entries.get(name);
+        }
+        if (content == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return content.duplicate();
+    }
+
+    /**
+     * Читает файл в кеш, если он достаточно мал.
+     *
+     * @param name Имя файла в хранилище.
+     * @param channel Канал открытого файла.
+     *
+     * @return Содержимое файла (буфер только для чтения со своей позицией) или null, если файл не кешируется.
+     */
+    ByteBuffer load(String name, FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize > maxEntrySize)
+            return null;
+        long generation;
+        synchronized (this) {
+            generation = invalidations;
+        }
+
+        ByteBuffer content = ByteBuffer.allocateDirect((int) fileSize);
+        while (content.hasRemaining()) {
+            if (channel.read(content, content.position()) == -1)
+                throw new IOException("File was truncated during download.");
+        }
+        content.flip();
+        content = content.asReadOnlyBuffer();
+
+        synchronized (this) {
+            if (generation == invalidations) {
+                ByteBuffer previous = entries.put(name, content);
+                if (previous != null)
+                    size -= previous.capacity();
+                size += content.capacity();
+                evict();
+            }
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * Вытесняет содержимое файла, под именем которого сохранен новый файл.
+     */
+    synchronized void invalidate(String name) {
+        invalidations++;
+        ByteBuffer previous = entries.remove(name);
+        if (previous != null)
+            size -= previous.capacity();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Выводит статистику обращений к кешу.
+     */
+    void printStatistics() {
+        if (isEnabled())
+            System.out.format("File cache: %d hits, %d misses, %d evictions.\n", getHits(), getMisses(),
+                              getEvictions());
+    }
+
+    /**
+     * Вытесняет давно запрошенные файлы, пока объем кеша превышен.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, ByteBuffer>> iterator = entries.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().getValue().capacity();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Фиксация принятых файлов в хранилище.
+ *
+ * Файлы принимаются под скрытыми временными именами и получают итоговое имя, только когда приняты
+ * целиком, поэтому в хранилище не бывает видно недописанных файлов. Перед переносом под итоговое имя
+ * данные файла в зависимости от режима надежности сбрасываются на диск, а после переноса на диск
+ * сбрасывается и сама директория хранилища. В режиме группового сброса файлы, завершенные почти
+ * одновременно, фиксируются вместе: их директория сбрасывается один раз, и подтверждения по всем ним
+ * отправляются сразу после этого.
+ */
+class FileCommitter {
+
+    // Временные имена принимаемых файлов: скрыты от индексов хранилища
+    static final String TEMP_PREFIX = ".upload-";
+    static final String TEMP_SUFFIX = ".tmp";
+    // Количество попыток выбрать свободное имя, если его одновременно заняла другая загрузка
+    private static final int MOVE_ATTEMPTS = 16;
+    // Максимальное количество файлов в одной группе
+    private static final int MAX_GROUP_SIZE = 256;
+    // Время ожидания фиксации оставшихся файлов при остановке
+    private static final long STOP_TIMEOUT = 5 * 1000;
+
+    private final File storage;
+    private final StorageNames names;
+    private final StorageLayout layout;
+    private final FileCache cache;
+    private final ServerOptions.Durability durability;
+    private final long commitWindow;
+    // Временные имена уникальны в пределах запуска, оставшиеся от прошлых запусков удаляются
+    private final String tempSession = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicLong nextTemp = new AtomicLong();
+
+    // Файлы, ожидающие группового сброса
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    private final Thread committerThread;
+    private volatile boolean running = false;
+    // Директорию не всегда можно открыть для сброса (например, в Windows)
+    private volatile boolean directorySyncFailed = false;
+
+    /**
+     * @param storage Директория хранилища.
+     * @param names Индекс имен файлов хранилища.
+     * @param layout Размещение файлов в хранилище.
+     * @param cache Кеш содержимого файлов, из которого вытесняются имена сохраненных файлов.
+     * @param options Настройки сервера.
+     */
+    FileCommitter(File storage, StorageNames names, StorageLayout layout, FileCache cache, ServerOptions options) {
+        this.storage = storage;
+        this.names = names;
+        this.layout = layout;
+        this.cache = cache;
+        durability = options.getDurability();
+        commitWindow = options.getCommitWindow();
+        committerThread = new Thread(this::run, "group-committer");
+        committerThread.setDaemon(true);
+    }
+
+    /**
+     * Удаляет временные файлы, оставшиеся после аварийной остановки, и запускает поток группового сброса.
+     */
+    void start() {
+        File[] leftovers = storage.listFiles((dir, name) -> name.startsWith(TEMP_PREFIX) &&
+                                                            name.endsWith(TEMP_SUFFIX));
+        if (leftovers != null) {
+            for (File file : leftovers)
+                if (!file.delete())
+                    System.out.format("Cannot delete incomplete file \"%s\"\n", file.getName());
+        }
+        running = true;
+        if (durability == ServerOptions.Durability.GROUP_COMMIT)
+            committerThread.start();
+    }
+
+    /**
+     * Фиксирует уже поставленные в очередь файлы и останавливает поток группового сброса.
+     */
+    void stop() {
+        if (!running)
+            return;
+        running = false;
+        if (durability != ServerOptions.Durability.GROUP_COMMIT)
+            return;
+        committerThread.interrupt();
+        try {
+            committerThread.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Новое временное имя в хранилище. Файл с этим именем не создается.
+     */
+    File tempFile() {
+        return new File(storage, TEMP_PREFIX + tempSession + "-" + nextTemp.incrementAndGet() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Переносит полностью записанный файл под свободное имя в хранилище.
+     *
+     * В режиме группового сброса файл фиксируется потоком сброса, иначе - в вызывающем потоке.
+     *
+     * @param temp Записанный и закрытый временный файл.
+     * @param filename Имя файла, переданное клиентом.
+     *
+     * @return Сохраненный файл, доступный после фиксации. При ошибке временный файл удаляется.
+     */
+    CompletableFuture<File> commit(File temp, String filename) {
+        return submit(new Commit(temp, filename, false));
+    }
+
+    /**
+     * Заменяет сохраненный файл новой версией. Файл заменяется атомарным переименованием, поэтому
+     * читатели видят либо прежнюю версию, либо новую целиком, а уже открытая прежняя версия дочитывается.
+     *
+     * @param temp Записанный и закрытый временный файл.
+     * @param name Имя файла в хранилище.
+     *
+     * @return Замененный файл, доступный после фиксации. При ошибке временный файл удаляется.
+     */
+    CompletableFuture<File> replace(File temp, String name) {
+        return submit(new Commit(temp, name, true));
+    }
+
+    private CompletableFuture<File> submit(Commit commit) {
+        if (durability == ServerOptions.Durability.GROUP_COMMIT && running) {
+            queue.add(commit);
+            // Поток сброса мог завершиться между проверкой и добавлением
+            if (!running && queue.remove(commit))
+                commitGroup(Collections.singletonList(commit));
+        } else {
+            commitGroup(Collections.singletonList(commit));
+        }
+        return commit.result;
+    }
+
+    /**
+     * @return Количество файлов, ожидающих группового сброса.
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Фиксирует файл и дожидается результата.
+     *
+     * @see #commit(File, String)
+     */
+    File commitAndWait(File temp, String filename) throws IOException {
+        return await(commit(temp, filename));
+    }
+
+    /**
+     * Дожидается фиксации файла.
+     *
+     * @return Сохраненный файл.
+     */
+    static File await(CompletableFuture<File> commit) throws IOException {
+        try {
+            return commit.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Поток группового сброса: собирает файлы, завершенные в течение окна, и фиксирует их вместе.
+     */
+    private void run() {
+        while (true) {
+            List<Commit> group = new ArrayList<>();
+            try {
+                group.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitWindow);
+                while (group.size() < MAX_GROUP_SIZE) {
+                    Commit next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Остановка: фиксируем все, что успели принять
+                queue.drainTo(group);
+                if (!group.isEmpty())
+                    commitGroup(group);
+                return;
+            }
+            queue.drainTo(group, MAX_GROUP_SIZE - group.size());
+            commitGroup(group);
+        }
+    }
+
+    /**
+     * Сбрасывает данные файлов на диск, переносит их под итоговые имена, сбрасывает измененные директории
+     * и манифест хранилища и только после этого сообщает о результатах.
+     */
+    private void commitGroup(List<Commit> group) {
+        boolean sync = durability != ServerOptions.Durability.NONE;
+        Set<File> directories = new LinkedHashSet<>();
+        for (Commit commit : group) {
+            try {
+                if (sync)
+                    syncFile(commit.temp);
+                commit.file = commit.replace ? replaceInPlace(commit.temp, commit.filename, directories)
+                                             : moveIntoPlace(commit.temp, commit.filename, directories);
+            } catch (IOException e) {
+                commit.error = e;
+                if (!commit.temp.delete() && commit.temp.exists())
+                    System.out.format("Cannot delete incomplete file \"%s\"\n", commit.temp.getName());
+            }
+        }
+        if (sync) {
+            directories.forEach(this::syncDirectory);
+            try {
+                layout.sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (Commit commit : group) {
+            if (commit.error == null)
+                commit.result.complete(commit.file);
+            else
+                commit.result.completeExceptionally(commit.error);
+        }
+    }
+
+    /**
+     * Переносит файл под свободное имя, не заменяя существующие файлы.
+     *
+     * @param temp Временный файл.
+     * @param filename Имя файла, переданное клиентом.
+     * @param directories Директории, записи которых изменились.
+     *
+     * @return Сохраненный файл.
+     */
+    private File moveIntoPlace(File temp, String filename, Set<File> directories) throws IOException {
+        for (int i = 0; i < MOVE_ATTEMPTS; i++) {
+            String name = names.reserve(filename);
+            File file = layout.resolve(name);
+            try {
+                layout.prepareDirectories(file, directories);
+            } catch (IOException e) {
+                names.release(name);
+                throw e;
+            }
+            try {
+                // Создание ссылки, в отличие от переименования, не заменяет файл, созданный в обход сервера
+                Files.createLink(file.toPath(), temp.toPath());
+            } catch (FileAlreadyExistsException e) {
+                // Имя остается занятым этим файлом
+                continue;
+            } catch (UnsupportedOperationException | IOException e) {
+                // Переименование заменило бы существующий файл, поэтому допустимо, только если ссылки не поддерживаются
+                if (!isLinkUnsupported(e)) {
+                    names.release(name);
+                    throw e;
+                }
+                try {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException moveError) {
+                    names.release(name);
+                    throw moveError;
+                }
+                saved(name);
+                return file;
+            }
+            Files.delete(temp.toPath());
+            saved(name);
+            return file;
+        }
+        throw new IOException(String.format("Cannot choose name for \"%s\"", filename));
+    }
+
+    /**
+     * @param e Ошибка создания жесткой ссылки.
+     *
+     * @return true, если файловая система не поддерживает жесткие ссылки.
+     */
+    static boolean isLinkUnsupported(Exception e) {
+        if (e instanceof UnsupportedOperationException)
+            return true;
+        if (!(e instanceof FileSystemException) || e instanceof FileAlreadyExistsException)
+            return false;
+        String reason = ((FileSystemException) e).getReason();
+        return reason != null && reason.toLowerCase().contains("not supported");
+    }
+
+    /**
+     * Переносит файл под имя в хранилище, заменяя существующий файл.
+     *
+     * @param temp Временный файл.
+     * @param name Имя файла в хранилище.
+     * @param directories Директории, записи которых изменились.
+     *
+     * @return Сохраненный файл.
+     */
+    private File replaceInPlace(File temp, String name, Set<File> directories) throws IOException {
+        File file = layout.resolve(name);
+        layout.prepareDirectories(file, directories);
+        boolean existed = file.exists();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (existed) {
+            cache.invalidate(name);
+        } else {
+            // Прежняя версия удалена в обход сервера
+            names.occupied(name);
+            saved(name);
+        }
+        return file;
+    }
+
+    /**
+     * Отмечает файл сохраненным в манифесте хранилища и вытесняет прежнее содержимое с тем же именем из кеша.
+     */
+    private void saved(String name) {
+        layout.added(name);
+        cache.invalidate(name);
+    }
+
+    private static void syncFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Сбрасывает на диск записи директории, чтобы переименования пережили сбой.
+     */
+    private void syncDirectory(File directory) {
+        if (directorySyncFailed)
+            return;
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            directorySyncFailed = true;
+            System.out.format("Storage directory cannot be synced: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Файл, ожидающий фиксации.
+     */
+    private static class Commit {
+
+        private final File temp;
+        private final String filename;
+        // Файл заменяет существующий файл с тем же именем
+        private final boolean replace;
+        private final CompletableFuture<File> result = new CompletableFuture<>();
+        private File file;
+        private IOException error;
+
+        Commit(File temp, String filename, boolean replace) {
+            this.temp = temp;
+            this.filename = filename;
+            this.replace = replace;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.polushin.networks.file_transfer.Utils.*;
+
+/**
+ * Получатель файлов из сервера-хранилища.
+ *
+ * Файлы запрашиваются по одному через основное соединение. Большой файл может быть получен
+ * диапазонами по нескольким параллельным соединениям: каждый диапазон записывается в свою часть
+ * заранее расширенного файла.
+ */
+public class FileReceiver implements Closeable {
+
+    // Размер прямого буфера для приема тела файла
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    private static final int RESPONSE_HEADER_SIZE = REQUEST_ID_SIZE + 1;
+
+    private final InetAddress host;
+    private final int port;
+    private final ReceiverOptions options;
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    // Потоки получения диапазонов или null, если файлы получаются целиком
+    private final ExecutorService rangesPool;
+    private int nextRequestId;
+
+    public FileReceiver(InetAddress host, int port) throws IOException {
+        this(host, port, new ReceiverOptions());
+    }
+
+    public FileReceiver(InetAddress host, int port, ReceiverOptions options) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.options = options;
+        channel = openConnection(host, port);
+        rangesPool = options.getRanges() > 1 ? Executors.newFixedThreadPool(options.getRanges()) : null;
+    }
+
+    /**
+     * Получает файл из хранилища.
+     *
+     * @param name Имя файла в хранилище: имя или относительный путь с разделителем "/".
+     * @param target Файл, в который записывается результат. Файл принимается во временный файл рядом
+     *               и заменяет прежний только после успешного приема, при ошибке прежний файл не меняется.
+     *
+     * @throws FileNotFoundException Файла нет в хранилище.
+     */
+    public void receiveFile(String name, File target) throws IOException {
+        long beginTime = System.currentTimeMillis();
+        long size;
+        File temp = File.createTempFile(".download-", ".tmp", target.getAbsoluteFile().getParentFile());
+        try (RandomAccessFile file = new RandomAccessFile(temp, "rw")) {
+            FileChannel fileChannel = file.getChannel();
+            if (rangesPool == null) {
+                size = receiveRange(channel, nextRequestId++, name, 0, Long.MAX_VALUE, fileChannel, buffer);
+                fileChannel.truncate(size);
+            } else {
+                // Размер файла узнается пустым диапазоном
+                size = receiveRange(channel, nextRequestId++, name, 0, 0, null, buffer);
+                file.setLength(size);
+                if (size < options.getRangeThreshold())
+                    receiveRange(channel, nextRequestId++, name, 0, size, fileChannel, buffer);
+                else
+                    receiveRanges(name, size, fileChannel);
+            }
+        } catch (IOException e) {
+            deleteTemp(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteTemp(temp);
+            throw e;
+        }
+
+        long time = Math.max(System.currentTimeMillis() - beginTime, 1);
+        System.out.format("File \"%s\" received from %s (%d bytes). Average speed: %s\n", name, host, size,
+                          formatSpeed(size * 1000 / time));
+    }
+
+    private static void deleteTemp(File temp) {
+        if (!temp.delete() && temp.exists())
+            System.out.format("Cannot delete incomplete file \"%s\"\n", temp.getPath());
+    }
+
+    @Override
+    public void close() {
+        if (rangesPool != null)
+            rangesPool.shutdown();
+        try {
+            FileSender.writeFully(channel, ByteBuffer.wrap(new byte[] {(byte) ClientRequests.FINISH.ordinal()}));
+        } catch (IOException e) {
+            System.out.println("Connection to server lost: " + e.getMessage());
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Получает файл равными диапазонами по отдельным соединениям.
+     */
+    private void receiveRanges(String name, long size, FileChannel fileChannel) throws IOException {
+        int count = options.getRanges();
+        long rangeSize = (size + count - 1) / count;
+        List<Future<?>> ranges = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += rangeSize) {
+            long position = offset;
+            long length = Math.min(rangeSize, size - offset);
+            ranges.add(rangesPool.submit(() -> {
+                try (SocketChannel rangeChannel = openConnection(host, port)) {
+                    ByteBuffer rangeBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+                    if (receiveRange(rangeChannel, 0, name, position, length, fileChannel, rangeBuffer) != size)
+                        throw new IOException(String.format("File \"%s\" was changed during download.", name));
+                    FileSender.writeFully(rangeChannel,
+                                          ByteBuffer.wrap(new byte[] {(byte) ClientRequests.FINISH.ordinal()}));
+                }
+                return null;
+            }));
+        }
+
+        IOException error = null;
+        for (Future<?> range : ranges) {
+            try {
+                range.get();
+            } catch (ExecutionException e) {
+                if (error == null)
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                                                : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while receiving file.", e);
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Запрашивает диапазон файла и записывает полученные данные на их место в файле.
+     *
+     * @param channel Канал соединения с сервером.
+     * @param requestId Идентификатор запроса.
+     * @param name Имя файла в хранилище.
+     * @param offset Смещение начала диапазона.
+     * @param length Размер диапазона. Диапазон, выходящий за конец файла, сокращается сервером.
+     * @param fileChannel Канал файла для записи или null для пустого диапазона.
+     * @param buffer Буфер приема.
+     *
+     * @return Размер файла в хранилище.
+     *
+     * @throws FileNotFoundException Файла нет в хранилище.
+     */
+    private static long receiveRange(SocketChannel channel, int requestId, String name, long offset, long length,
+                                     FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        byte[] nameInBytes = name.getBytes(CHARSET);
+        ByteBuffer header = ByteBuffer.allocate(1 + REQUEST_ID_SIZE + 2 * LONG_IN_BYTES_SIZE + FILENAME_LEN_SIZE +
+                                                nameInBytes.length);
+        header.put((byte) ClientRequests.DOWNLOAD.ordinal()).putInt(requestId).putLong(offset).putLong(length);
+        header.putShort((short) nameInBytes.length).put(nameInBytes);
+        header.flip();
+        FileSender.writeFully(channel, header);
+
+        ByteBuffer response = ByteBuffer.allocate(RESPONSE_HEADER_SIZE + 2 * LONG_IN_BYTES_SIZE);
+        response.limit(RESPONSE_HEADER_SIZE);
+        if (!FileSender.readFully(channel, response))
+            throw new IOException("Connection closed by server.");
+        int code = response.get(REQUEST_ID_SIZE);
+        if (code == ServerResponses.FILE_NOT_FOUND.ordinal())
+            throw new FileNotFoundException(String.format("File \"%s\" not found in storage.", name));
+        if (code != ServerResponses.FILE_CONTENT.ordinal())
+            throw new IOException(String.format("Unexpected response %d for \"%s\"", code, name));
+        response.limit(response.capacity());
+        if (!FileSender.readFully(channel, response))
+            throw new IOException("Connection closed by server.");
+        long size = response.getLong(RESPONSE_HEADER_SIZE);
+        long count = response.getLong(RESPONSE_HEADER_SIZE + LONG_IN_BYTES_SIZE);
+
+        SpeedMeter meter = new SpeedMeter();
+        long position = offset;
+        long end = offset + count;
+        while (position < end) {
+            buffer.clear();
+            if (buffer.remaining() > end - position)
+                buffer.limit((int) (end - position));
+            if (!FileSender.readFully(channel, buffer))
+                throw new IOException("Connection closed by server.");
+            buffer.flip();
+            while (buffer.hasRemaining())
+                position += fileChannel.write(buffer, position);
+            meter.add(buffer.limit());
+        }
+        return size;
+    }
+
+    /**
+     * Подключается к серверу и переходит на расширенный протокол с получением файлов.
+     */
+    private static SocketChannel openConnection(InetAddress host, int port) throws IOException {
+        SocketChannel channel = FileSender.connect(host, port);
+        try {
+            // Сервер без поддержки путей ищет файл только по последнему компоненту имени
+            int features = FileSender.negotiate(channel, ProtocolFeatures.DOWNLOAD.mask() |
+                                                         ProtocolFeatures.PATHS.mask());
+            if (features < 0 || (features & ProtocolFeatures.DOWNLOAD.mask()) == 0)
+                throw new IOException("Server does not support downloads.");
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+}
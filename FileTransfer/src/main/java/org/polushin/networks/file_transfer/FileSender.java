@@ -2,64 +2,276 @@ package org.polushin.networks.file_transfer;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import static org.polushin.networks.file_transfer.Utils.*;
 
 /**
  * Отправитель файлов на сервер-хранилище.
+ *
+ * Если сервер поддерживает расширенный протокол, файлы отправляются один за другим без ожидания
+ * ответов на каждый из них, а число неподтвержденных файлов ограничено окном. Большие файлы
+ * при этом могут загружаться частями по нескольким параллельным соединениям.
+ *
+ * Если включено возобновление загрузок, после разрыва соединения отправитель подключается заново
+ * и повторяет запросы, на которые не получен ответ. Загрузка больших файлов продолжается с позиции,
+ * сохраненной сервером.
+ *
+ * Если включен поиск копий, дайджесты файлов вычисляются параллельно заранее, и перед загрузкой
+ * сервер проверяет, нет ли у него файла с тем же содержимым.
+ *
+ * Если включена разностная загрузка, для файла, уже сохраненного на сервере под тем же именем,
+ * отправляются только данные, отличающиеся от сохраненной версии (см. {@link DeltaSync}).
+ *
+ * Файл может быть сохранен под относительным путем с разделителем "/". Если сервер не принимает пути,
+ * файл сохраняется только под последним компонентом пути.
+ *
+ * Если включена проверка целостности, вместе с телом файла отправляются контрольные суммы его блоков
+ * (см. {@link BlockChecksums}). Файл, испорченный при передаче, сервер не сохраняет, а при возобновлении
+ * загрузок он отправляется повторно: большой файл - начиная с первого испорченного блока.
  */
 public class FileSender implements Closeable {
 
-    private static final int BUFFER_SIZE = 1024;
+    // Максимальный объем одного вызова transferTo (ограничение в 2 Гб и частота обновления скорости)
+    private static final int TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    // Размер прямого буфера для отправки, если передача из канала в канал не продвигается
+    private static final int FALLBACK_BUFFER_SIZE = 64 * 1024;
     private static final byte[] ZERO_FILE_LEN = new byte[5];
+    // Маркер конца очереди: прерывать поток отправки нельзя, прерывание закрывает канал сокета
+    private static final PendingUpload END_OF_QUEUE = new PendingUpload(new File(""), "", 0);
+    // Возможности расширенного протокола, которые использует отправитель
+    private static final int CLIENT_FEATURES = ProtocolFeatures.STRIPING.mask() | ProtocolFeatures.RESUME.mask() |
+                                               ProtocolFeatures.DEDUPLICATION.mask() | ProtocolFeatures.PATHS.mask();
+    // Результаты согласования протокола, не являющиеся маской возможностей
+    static final int LEGACY_PROTOCOL = -1;
+    private static final int RECONNECT_REQUIRED = -2;
+    // Задержка перед первой попыткой переподключения, с каждой следующей попыткой она удваивается
+    private static final long RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 30 * 1000;
+    // Время ожидания установки соединения с сервером
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    // Результат поиска копии, если соединение закрыто до ответа сервера
+    private static final int PROBE_LOST = -1;
 
-    private final Socket socket;
-    private final InputStream inputStream;
-    private final OutputStream outputStream;
-    private final BlockingQueue<File> sendQueue = new LinkedBlockingQueue<>();
+    /**
+     * Получатель результатов загрузки отдельных файлов.
+     */
+    interface UploadListener {
+
+        /**
+         * @param file Файл, переданный в {@link #sendFile(File, String)}.
+         * @param stored Файл сохранен сервером.
+         */
+        void finished(File file, boolean stored);
+    }
+
+    private final InetAddress host;
+    private final int port;
+    private final SenderOptions options;
+
+    // Текущее соединение, заменяется при переподключении
+    private volatile SocketChannel socketChannel;
+    private volatile Socket socket;
+    private InputStream inputStream;
+    // Маска возможностей расширенного протокола, выбранная для текущего соединения
+    private int features;
+
+    // Буферы заголовка переиспользуются для всех файлов
+    private final ByteBuffer fileSizeBuffer = ByteBuffer.allocate(LONG_IN_BYTES_SIZE);
+    private final ByteBuffer filenameSizeBuffer = ByteBuffer.allocate(INT_IN_BYTES_SIZE);
+    private final BlockingQueue<PendingUpload> sendQueue = new LinkedBlockingQueue<>();
     private final Thread sendThread;
 
+    // Расширенный протокол: файлы, ожидающие ответа сервера, по идентификаторам запросов
+    private final boolean pipelined;
+    private final int windowSize;
+    private volatile Semaphore window;
+    private final Map<Integer, PendingUpload> pending = new ConcurrentHashMap<>();
+    private Thread receiveThread;
+    private int nextRequestId;
+    // Файлы, которые нужно отправить заново после переподключения. Используется только потоком отправки
+    private final Deque<PendingUpload> retryQueue = new ArrayDeque<>();
+    // Файлы, испорченные при передаче и отправляемые повторно. Пополняется потоком приема ответов
+    private final Queue<PendingUpload> mismatched = new ConcurrentLinkedQueue<>();
+    private boolean queueFinished = false;
+    // Файлы из очереди, для которых заранее отправлены запросы поиска копий
+    private final Deque<PendingUpload> lookahead = new ArrayDeque<>();
+    // Файлы, ожидающие ответа на поиск копии, по идентификаторам запросов
+    private final Map<Integer, PendingUpload> probes = new ConcurrentHashMap<>();
+    // Потоки вычисления дайджестов или null, если поиск копий не используется
+    private final ExecutorService hashPool;
+    // Создается при первой отправке сжатого тела файла
+    private BlockCompression.Encoder encoder;
+    // Потоки отправки частей файлов или null, если загрузка частями не используется
+    private final ExecutorService stripesPool;
+
     private volatile boolean running = true;
+    private volatile boolean connectionLost = false;
+    // Переподключиться не удалось, оставшиеся файлы не будут отправлены
+    private volatile boolean failed = false;
+    // Предупреждение о сохранении файлов без путей уже выведено
+    private boolean pathsWarned = false;
+    // Общий учет завершенных загрузок или null
+    private volatile UploadProgress progress;
+    // Получатель результатов загрузок или null
+    private volatile UploadListener listener;
+    private final TransferMetrics metrics;
+    // Текущее соединение учтено в метриках как открытое
+    private boolean connected = false;
 
     public FileSender(InetAddress host, int port) throws IOException {
-        socket = new Socket(host, port);
-        inputStream = socket.getInputStream();
-        outputStream = socket.getOutputStream();
+        this(host, port, new SenderOptions());
+    }
+
+    public FileSender(InetAddress host, int port, SenderOptions options) throws IOException {
+        this(host, port, options, new TransferMetrics("sender"));
+    }
+
+    /**
+     * @param metrics Метрики, общие для нескольких отправителей.
+     */
+    FileSender(InetAddress host, int port, SenderOptions options, TransferMetrics metrics) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.options = options;
+        this.metrics = metrics;
+        windowSize = options.getWindow();
+        metrics.addQueue(sendQueue::size);
+
+        openConnection(true);
+        pipelined = features != LEGACY_PROTOCOL;
+        boolean striping = pipelined && options.getStripes() > 1 && (features & ProtocolFeatures.STRIPING.mask()) != 0;
+        stripesPool = striping ? Executors.newFixedThreadPool(options.getStripes()) : null;
+        boolean deduplication = pipelined && options.isDeduplication() &&
+                                (features & ProtocolFeatures.DEDUPLICATION.mask()) != 0;
+        hashPool = deduplication ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) : null;
 
         sendThread = new Thread(() -> {
             try {
                 run();
             } catch (IOException e) {
                 e.printStackTrace();
-                try {
-                    socket.close();
-                } catch (IOException ignored) {
-                }
+                closeSocket();
+                failRemaining();
             }
         });
         sendThread.start();
     }
 
     /**
-     * Добавляет файл в очередь на отправку.
+     * Подключается к серверу и запускает прием ответов, если сервер поддерживает расширенный протокол.
+     *
+     * @param allowLegacy Допускается ли переход на исходный протокол.
+     */
+    private void openConnection(boolean allowLegacy) throws IOException {
+        SocketChannel channel = connect(host, port);
+        int negotiated;
+        try {
+            int wanted = CLIENT_FEATURES | (options.isCompression() ? ProtocolFeatures.COMPRESSION.mask() : 0) |
+                         (options.isDelta() ? ProtocolFeatures.DELTA.mask() : 0) |
+                         (options.isChecksum() ? ProtocolFeatures.CHECKSUM.mask() : 0);
+            negotiated = negotiate(channel, wanted);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        // Старый сервер подтвердил загрузку "файла" согласования, продолжить это соединение нельзя
+        if (negotiated == RECONNECT_REQUIRED) {
+            channel.close();
+            channel = allowLegacy ? connect(host, port) : null;
+            negotiated = LEGACY_PROTOCOL;
+        }
+        if (negotiated == LEGACY_PROTOCOL && !allowLegacy) {
+            if (channel != null)
+                channel.close();
+            throw new IOException("Server does not support extended protocol anymore.");
+        }
+
+        SocketChannel opened = channel;
+        features = negotiated;
+        socketChannel = opened;
+        socket = opened.socket();
+        inputStream = socket.getInputStream();
+        connected = true;
+        metrics.connectionOpened();
+        if (negotiated == LEGACY_PROTOCOL)
+            return;
+
+        window = new Semaphore(windowSize);
+        connectionLost = false;
+        receiveThread = new Thread(() -> receiveResponses(opened));
+        receiveThread.start();
+    }
+
+    /**
+     * Задает учет завершенных загрузок. Должен быть задан до добавления файлов в очередь.
+     */
+    public void setProgress(UploadProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Задает получателя результатов загрузок. Должен быть задан до добавления файлов в очередь.
+     */
+    void setListener(UploadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Добавляет файл в очередь на отправку под его именем.
      *
      * @param file Файл.
      *
      * @throws IllegalStateException Если соединение закрыто.
      */
     public void sendFile(File file) throws IllegalStateException {
-        if (!running || socket.isClosed()) {
-            if (socket.isClosed())
+        sendFile(file, file.getName());
+    }
+
+    /**
+     * Добавляет файл в очередь на отправку.
+     *
+     * @param file Файл.
+     * @param name Имя файла на сервере: имя или относительный путь с разделителем "/".
+     *
+     * @throws IllegalStateException Если соединение закрыто.
+     */
+    public void sendFile(File file, String name) throws IllegalStateException {
+        // При возобновлении загрузок закрытое соединение будет открыто заново
+        boolean closed = failed || socket.isClosed() && !options.isResume();
+        if (!running || closed) {
+            if (closed)
                 close();
             throw new IllegalStateException("Connection closed.");
         }
 
+        PendingUpload upload = new PendingUpload(file, name, file.length());
+        // Дайджест вычисляется, пока отправляются файлы, стоящие в очереди раньше. Файл, обновляемый
+        // разностью, заменяет сохраненную версию и не должен сохраняться копией под новым именем
+        if (hashPool != null && upload.size >= options.getDeduplicationThreshold() && !usesDelta(upload))
+            upload.digest = ContentDigest.computeAsync(file, hashPool);
         try {
-            sendQueue.put(file);
+            sendQueue.put(upload);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -73,7 +285,7 @@ public class FileSender implements Closeable {
         if (!running)
             return;
         running = false;
-        sendThread.interrupt();
+        sendQueue.add(END_OF_QUEUE);
         try {
             sendThread.join();
         } catch (InterruptedException e) {
@@ -81,65 +293,962 @@ public class FileSender implements Closeable {
         }
     }
 
+    /**
+     * Разрывает соединение, не дожидаясь ответов сервера, и не переподключается. Файлы без ответа
+     * и оставшиеся в очереди считаются неотправленными. Отправитель после этого нужно закрыть.
+     */
+    void abort() {
+        failed = true;
+        closeSocket();
+    }
+
+    /**
+     * @return true, если отправитель больше не передает файлы: переподключиться не удалось или он прерван.
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
     private void run() throws IOException {
-        while (running) {
+        if (pipelined) {
+            runPipelined();
+            return;
+        }
+
+        PendingUpload upload;
+        while ((upload = takeUpload()) != END_OF_QUEUE)
+            sendFileImmediately(upload);
+
+        // Отправка длины файла равной нулю означает завершение передачи.
+        socket.getOutputStream().write(ZERO_FILE_LEN);
+
+        closeSocket();
+    }
+
+    /**
+     * Отправляет файлы по расширенному протоколу, не дожидаясь ответов сервера.
+     */
+    private void runPipelined() throws IOException {
+        while (true) {
+            PendingUpload upload = nextUpload();
+            if (upload == null) {
+                // Сервер закроет соединение после ответов на все запросы
+                if (!connectionLost)
+                    sendFinish();
+                joinReceiver();
+                // Ответы на часть запросов не получены или файлы испорчены: повторяем их по новому соединению
+                if ((!pending.isEmpty() || !mismatched.isEmpty()) && reconnect())
+                    continue;
+                break;
+            }
+
+            window.acquireUninterruptibly();
+            if (connectionLost) {
+                retryQueue.addFirst(upload);
+                // Файл уже отмечен неотправленным, его место в окне прежнего соединения больше не занято
+                if (!reconnect())
+                    window.release();
+                continue;
+            }
+
+            try {
+                if (upload.digest != null && (features & ProtocolFeatures.DEDUPLICATION.mask()) != 0) {
+                    int result = probe(upload);
+                    if (result == ServerResponses.FILE_LINKED.ordinal()) {
+                        System.out.println(String.format("File \"%s\" is already stored on server, saved as a copy.",
+                                                         upload.file.getAbsolutePath()));
+                        finished(upload, true);
+                        window.release();
+                        continue;
+                    }
+                    if (result == PROBE_LOST) {
+                        retryQueue.addFirst(upload);
+                        if (!reconnect())
+                            window.release();
+                        continue;
+                    }
+                }
+                if (usesDelta(upload))
+                    sendDelta(upload);
+                else
+                    sendFull(upload);
+            } catch (IOException e) {
+                if (!options.isResume())
+                    throw e;
+                // Отправленный запрос остается среди ожидающих ответа и будет повторен после переподключения
+                System.out.println("Connection to server lost: " + e.getMessage());
+                connectionLost = true;
+                closeSocket();
+                if (!pending.containsValue(upload))
+                    retryQueue.addFirst(upload);
+            }
+        }
+
+        if (stripesPool != null)
+            stripesPool.shutdown();
+        if (hashPool != null)
+            hashPool.shutdown();
+        if (encoder != null)
+            encoder.close();
+        closeSocket();
+    }
+
+    /**
+     * @return true, если файл отправляется разностной загрузкой.
+     */
+    private boolean usesDelta(PendingUpload upload) {
+        return pipelined && (features & ProtocolFeatures.DELTA.mask()) != 0 &&
+               upload.size >= options.getDeltaThreshold();
+    }
+
+    /**
+     * Отправляет файл целиком подходящим для его размера запросом.
+     */
+    private void sendFull(PendingUpload upload) throws IOException {
+        if (stripesPool != null && (features & ProtocolFeatures.STRIPING.mask()) != 0 &&
+            upload.size >= options.getStripeThreshold())
+            requestStripedUpload(upload);
+        else if (options.isResume() && (features & ProtocolFeatures.RESUME.mask()) != 0 &&
+                 upload.size >= options.getResumeThreshold())
+            sendResumable(upload);
+        else
+            sendTagged(upload);
+    }
+
+    /**
+     * @return Следующий файл для отправки: сначала повторяемые после переподключения, затем из очереди.
+     * null, если файлов больше не будет.
+     */
+    private PendingUpload nextUpload() {
+        if (!retryQueue.isEmpty())
+            return retryQueue.pollFirst();
+        PendingUpload corrupted = mismatched.poll();
+        if (corrupted != null)
+            return corrupted;
+        if (queueFinished)
+            return null;
+        PendingUpload upload = lookahead.isEmpty() ? takeUpload() : lookahead.pollFirst();
+        if (upload == END_OF_QUEUE) {
+            queueFinished = true;
+            return null;
+        }
+        return upload;
+    }
+
+    /**
+     * Ищет на сервере копию файла по дайджесту. Заодно отправляет запросы поиска для следующих файлов
+     * очереди, чьи дайджесты уже вычислены, чтобы ответы на них пришли до начала их загрузки.
+     *
+     * @return Ответ сервера или {@link #PROBE_LOST}, если соединение закрыто.
+     */
+    private int probe(PendingUpload upload) throws IOException {
+        sendQueue.drainTo(lookahead, windowSize - lookahead.size());
+        for (PendingUpload next : lookahead) {
+            if (next != END_OF_QUEUE && next.digest != null && next.probeResult == null && next.digest.isDone())
+                sendProbe(next);
+        }
+        if (upload.probeResult == null)
+            sendProbe(upload);
+        return upload.probeResult.join();
+    }
+
+    /**
+     * Отправляет запрос поиска копии файла.
+     */
+    private void sendProbe(PendingUpload upload) throws IOException {
+        byte[] digest;
+        try {
+            digest = upload.digest.join();
+        } catch (CompletionException e) {
+            // Файл не удалось прочитать, ошибка будет выведена при загрузке
+            upload.probeResult = CompletableFuture.completedFuture(ServerResponses.DIGEST_UNKNOWN.ordinal());
+            return;
+        }
+
+        byte[] nameInBytes = remoteName(upload);
+        int requestId = nextRequestId++;
+        ByteBuffer header = ByteBuffer.allocate(1 + REQUEST_ID_SIZE + ContentDigest.DIGEST_SIZE + FILE_LEN_SIZE +
+                                                FILENAME_LEN_SIZE + nameInBytes.length);
+        header.put((byte) ClientRequests.DIGEST_PROBE.ordinal()).putInt(requestId).put(digest);
+        putFileSize(header, upload.size);
+        header.putShort((short) nameInBytes.length).put(nameInBytes);
+        header.flip();
+
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        upload.probeResult = result;
+        upload.requested = TransferMetrics.begin();
+        probes.put(requestId, upload);
+        // Поток приема мог завершиться до регистрации запроса
+        if (connectionLost)
+            result.complete(PROBE_LOST);
+        writeFully(header);
+    }
+
+    private void sendFinish() {
+        try {
+            writeFully(ByteBuffer.wrap(new byte[] {(byte) ClientRequests.FINISH.ordinal()}));
+        } catch (IOException e) {
+            System.out.println("Connection to server lost: " + e.getMessage());
+            connectionLost = true;
+            closeSocket();
+        }
+    }
+
+    private void joinReceiver() {
+        while (receiveThread.isAlive()) {
             try {
-                sendFileImmediately(sendQueue.take());
+                receiveThread.join();
             } catch (InterruptedException ignored) {
             }
         }
+    }
 
-        File file;
-        while ((file = sendQueue.poll()) != null)
-            sendFileImmediately(file);
+    private synchronized void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (connected) {
+            connected = false;
+            metrics.connectionClosed();
+        }
+    }
 
-        // Отправка длины файла равной нулю означает завершение передачи.
-        socket.getOutputStream().write(ZERO_FILE_LEN);
+    /**
+     * Переподключается к серверу после разрыва соединения и ставит запросы без ответа в очередь повторной
+     * отправки. Если возобновление выключено или переподключиться не удалось, сообщает о неотправленных файлах.
+     *
+     * @return true, если соединение восстановлено.
+     */
+    private boolean reconnect() {
+        closeSocket();
+        joinReceiver();
+
+        // Запросы повторяются в исходном порядке перед остальными файлами
+        for (PendingUpload upload : new TreeMap<>(pending).descendingMap().values()) {
+            if (++upload.attempts > options.getRetries())
+                reportFailure(upload);
+            else
+                retryQueue.addFirst(upload);
+        }
+        pending.clear();
+        PendingUpload corrupted;
+        while ((corrupted = mismatched.poll()) != null)
+            retryQueue.addLast(corrupted);
+        // Поиск копий повторяется по новому соединению
+        for (PendingUpload upload : retryQueue)
+            upload.probeResult = null;
+        for (PendingUpload upload : lookahead)
+            upload.probeResult = null;
+
+        if (options.isResume() && !failed && !retryQueue.isEmpty()) {
+            long delay = RECONNECT_DELAY;
+            for (int attempt = 1; attempt <= options.getRetries(); attempt++) {
+                System.out.println(String.format("Reconnecting to server in %d ms (attempt %d of %d)...", delay,
+                                                 attempt, options.getRetries()));
+                sleep(delay);
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+                try {
+                    openConnection(false);
+                    System.out.println("Reconnected to server.");
+                    return true;
+                } catch (IOException e) {
+                    System.out.println("Cannot reconnect: " + e.getMessage());
+                }
+            }
+            failed = true;
+        }
+
+        for (PendingUpload upload : retryQueue)
+            reportFailure(upload);
+        retryQueue.clear();
+        return false;
+    }
 
-        socket.close();
+    private static void sleep(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        long left;
+        while ((left = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(left);
+            } catch (InterruptedException ignored) {
+            }
+        }
     }
 
     /**
-     * Выполняет отправку файла.
+     * Сообщает о файлах, которые не будут отправлены после ошибки потока отправки.
+     */
+    private void failRemaining() {
+        failed = true;
+        if (receiveThread != null)
+            joinReceiver();
+        pending.values().forEach(this::reportFailure);
+        pending.clear();
+        retryQueue.forEach(this::reportFailure);
+        retryQueue.clear();
+        sendQueue.drainTo(lookahead);
+        for (PendingUpload upload : lookahead) {
+            if (upload != END_OF_QUEUE)
+                reportFailure(upload);
+        }
+        lookahead.clear();
+    }
+
+    private void reportFailure(PendingUpload upload) {
+        System.out.println(String.format("Cannot upload file: \"%s\"", upload.file.getAbsolutePath()));
+        finished(upload, false);
+    }
+
+    /**
+     * Учитывает завершенную загрузку в общем учете и метриках и сообщает о ней получателю результатов.
+     *
+     * @param stored Файл сохранен сервером.
      */
-    private void sendFileImmediately(File file) throws IOException {
-        // Отправляем размер файла
-        outputStream.write(ByteBuffer.allocate(LONG_IN_BYTES_SIZE).putLong(file.length()).array(),
-                           LONG_IN_BYTES_SIZE - FILE_LEN_SIZE, FILE_LEN_SIZE);
+    private void finished(PendingUpload upload, boolean stored) {
+        UploadProgress progress = this.progress;
+        if (progress != null)
+            progress.finished(upload.size, stored);
+        if (stored)
+            metrics.stored(upload.requested, upload.inFlight, upload.getAverageSpeed());
+        else
+            metrics.failed(upload.inFlight);
+        upload.inFlight = 0;
+        UploadListener listener = this.listener;
+        if (listener != null)
+            listener.finished(upload.file, stored);
+    }
 
-        // Получаем ответ и проверяем подтверждение от сервера
-        int response = inputStream.read();
-        if (response == ServerResponses.NOT_ENOUGH_FREE_SPACE.ordinal()) {
-            System.out.println(String.format("Server has no free space to store \"%s\" file.", file.getAbsolutePath()));
+    /**
+     * Учитывает подтверждение загрузки сервером. Повторные подтверждения после переподключения не учитываются.
+     */
+    private void approved(PendingUpload upload) {
+        if (upload.inFlight != 0)
             return;
-        } else if (response != ServerResponses.UPLOAD_APPROVED.ordinal()) {
-            System.out.println(String.format("An unknown server error occurred while trying to upload \"%s\" file.",
-                                             file.getAbsolutePath()));
+        upload.inFlight = upload.size;
+        metrics.approved(upload.requested, upload.size);
+    }
+
+    /**
+     * @param size Размер тела файла.
+     *
+     * @return Контрольные суммы тела или null, если сервер их не проверяет.
+     */
+    private BlockChecksums checksums(long size) {
+        return (features & ProtocolFeatures.CHECKSUM.mask()) != 0 ? new BlockChecksums(size) : null;
+    }
+
+    /**
+     * @return Имя файла для сервера в байтах: без пути, если сервер не принимает пути.
+     */
+    private byte[] remoteName(PendingUpload upload) {
+        String name = upload.name;
+        if (features == LEGACY_PROTOCOL || (features & ProtocolFeatures.PATHS.mask()) == 0) {
+            name = name.substring(name.lastIndexOf('/') + 1);
+            if (!name.equals(upload.name) && !pathsWarned) {
+                pathsWarned = true;
+                System.out.println("Server does not support paths, files are stored without directories.");
+            }
+        }
+        return name.getBytes(CHARSET);
+    }
+
+    /**
+     * Отправляет запрос загрузки файла вместе с телом файла.
+     */
+    private void sendTagged(PendingUpload upload) throws IOException {
+        FileChannel fileChannel = openFile(upload);
+        if (fileChannel == null)
+            return;
+
+        try (FileChannel channel = fileChannel) {
+            long fileSize = channel.size();
+            byte[] nameInBytes = remoteName(upload);
+            int requestId = nextRequestId++;
+
+            // Весь заголовок запроса отправляется одной записью
+            ByteBuffer header = uploadHeader(ClientRequests.UPLOAD, requestId, fileSize, nameInBytes);
+
+            upload.begin(0);
+            upload.requested = upload.beginTime;
+            pending.put(requestId, upload);
+            writeFully(header);
+            SpeedMeter meter = new SpeedMeter(metrics.sent());
+            BlockChecksums checksums = checksums(fileSize);
+            if ((features & ProtocolFeatures.COMPRESSION.mask()) != 0) {
+                if (encoder == null)
+                    encoder = new BlockCompression.Encoder();
+                encoder.send(channel, 0, fileSize, socketChannel, meter, checksums);
+            } else {
+                sendRange(channel, 0, fileSize, socketChannel, meter, checksums);
+            }
+            if (checksums != null)
+                writeFully(checksums.encode());
+        }
+    }
+
+    /**
+     * Отправляет запрос возобновляемой загрузки и тело файла, начиная с позиции, сохраненной сервером.
+     */
+    private void sendResumable(PendingUpload upload) throws IOException {
+        FileChannel fileChannel = openFile(upload);
+        if (fileChannel == null)
+            return;
+
+        try (FileChannel channel = fileChannel) {
+            long fileSize = channel.size();
+            byte[] nameInBytes = remoteName(upload);
+            int requestId = nextRequestId++;
+
+            ByteBuffer header = ByteBuffer.allocate(1 + REQUEST_ID_SIZE + UPLOAD_KEY_SIZE + FILE_LEN_SIZE +
+                                                    FILENAME_LEN_SIZE + nameInBytes.length);
+            header.put((byte) ClientRequests.RESUMABLE_UPLOAD.ordinal()).putInt(requestId).put(upload.getKey());
+            putFileSize(header, fileSize);
+            header.putShort((short) nameInBytes.length).put(nameInBytes);
+            header.flip();
+
+            CompletableFuture<Long> resumeOffset = new CompletableFuture<>();
+            upload.resumeOffset = resumeOffset;
+            upload.requested = TransferMetrics.begin();
+            pending.put(requestId, upload);
+            // Поток приема мог завершиться до регистрации запроса и не отменить ожидание
+            if (connectionLost)
+                upload.cancelResume();
+            writeFully(header);
+
+            // Ответ со смещением приходит после ответов на предыдущие запросы
+            long offset = resumeOffset.join();
+            if (offset < 0)
+                return;
+            if (offset > upload.resumedFrom) {
+                // Загрузка продвинулась, поэтому попытки отправить файл считаются заново
+                upload.attempts = 0;
+                System.out.println(String.format("Resuming \"%s\" from %d bytes.", upload.file.getAbsolutePath(),
+                                                 offset));
+            }
+            upload.begin(offset);
+            BlockChecksums checksums = checksums(fileSize - offset);
+            sendRange(channel, offset, fileSize - offset, socketChannel, new SpeedMeter(metrics.sent()), checksums);
+            if (checksums != null)
+                writeFully(checksums.encode());
+        }
+    }
+
+    /**
+     * Открывает файл для отправки. Если файл недоступен, освобождает его место в окне.
+     *
+     * @return Канал файла или null.
+     */
+    private FileChannel openFile(PendingUpload upload) {
+        try {
+            return new FileInputStream(upload.file).getChannel();
+        } catch (IOException e) {
+            System.out.println(String.format("Cannot read file: \"%s\"", upload.file.getAbsolutePath()));
+            finished(upload, false);
+            window.release();
+            return null;
+        }
+    }
+
+    /**
+     * Отправляет запрос разностной загрузки и, получив сигнатуры сохраненной версии, разность файла.
+     * Если сервер не нашел файла с таким именем, файл отправляется целиком.
+     */
+    private void sendDelta(PendingUpload upload) throws IOException {
+        FileChannel fileChannel = openFile(upload);
+        if (fileChannel == null)
             return;
+
+        try (FileChannel channel = fileChannel) {
+            long fileSize = channel.size();
+            byte[] nameInBytes = remoteName(upload);
+            int requestId = nextRequestId++;
+
+            ByteBuffer header = uploadHeader(ClientRequests.DELTA_UPLOAD, requestId, fileSize, nameInBytes);
+
+            CompletableFuture<DeltaSync.Signatures> signatures = new CompletableFuture<>();
+            upload.signatures = signatures;
+            upload.fullUpload = false;
+            upload.requested = TransferMetrics.begin();
+            pending.put(requestId, upload);
+            // Поток приема мог завершиться до регистрации запроса и не отменить ожидание
+            if (connectionLost)
+                upload.cancelResume();
+            writeFully(header);
+
+            DeltaSync.Signatures received = signatures.join();
+            if (received == null) {
+                if (upload.fullUpload)
+                    sendFull(upload);
+                return;
+            }
+            upload.begin(0);
+            DeltaSync.Encoder encoder = new DeltaSync.Encoder(received, socketChannel,
+                                                              new SpeedMeter(metrics.sent()));
+            encoder.encode(channel);
+            System.out.println(String.format("Delta of \"%s\": %d of %d bytes sent (%d bytes of new data).",
+                                             upload.file.getAbsolutePath(), encoder.getWireBytes(), fileSize,
+                                             encoder.getLiteralBytes()));
+        }
+    }
+
+    /**
+     * Запрашивает загрузку файла частями. Части отправляются после того, как сервер создаст файл.
+     */
+    private void requestStripedUpload(PendingUpload upload) throws IOException {
+        long fileSize = upload.size;
+        byte[] nameInBytes = remoteName(upload);
+        int requestId = nextRequestId++;
+
+        ByteBuffer header = uploadHeader(ClientRequests.STRIPED_UPLOAD, requestId, fileSize, nameInBytes);
+
+        upload.begin(0);
+        upload.requested = upload.beginTime;
+        pending.put(requestId, upload);
+        writeFully(header);
+    }
+
+    /**
+     * Запускает параллельную отправку частей файла, для которого сервер выдал ключ загрузки.
+     */
+    private void startStripes(int requestId, PendingUpload upload, long key) {
+        int stripes = options.getStripes();
+        long stripeSize = upload.size / stripes;
+        for (int i = 0; i < stripes; i++) {
+            long offset = i * stripeSize;
+            long length = i == stripes - 1 ? upload.size - offset : stripeSize;
+            stripesPool.execute(new StripeSender(host, port, upload.file, key, offset, length, metrics, () -> {
+                if (pending.remove(requestId, upload)) {
+                    reportFailure(upload);
+                    window.release();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Принимает ответы сервера на запросы расширенного протокола.
+     */
+    private void receiveResponses(SocketChannel channel) {
+        ByteBuffer response = ByteBuffer.allocate(REQUEST_ID_SIZE + 1);
+        ByteBuffer value = ByteBuffer.allocate(LONG_IN_BYTES_SIZE);
+        Socket socket = channel.socket();
+        try {
+            while (readFully(channel, response)) {
+                int requestId = response.getInt(0);
+                int code = response.get(REQUEST_ID_SIZE);
+                if (code == ServerResponses.BLOCK_SIGNATURES.ordinal()) {
+                    handleSignatures(requestId, DeltaSync.Signatures.read(channel));
+                } else if (code == ServerResponses.STRIPES_APPROVED.ordinal() ||
+                    code == ServerResponses.RESUME_FROM.ordinal()) {
+                    value.clear();
+                    if (!readFully(channel, value))
+                        throw new IOException("Connection closed by server.");
+                    if (code == ServerResponses.STRIPES_APPROVED.ordinal())
+                        handleStripesApproved(requestId, value.getLong(0));
+                    else
+                        handleResumeFrom(requestId, value.getLong(0));
+                } else {
+                    PendingUpload probed = probes.remove(requestId);
+                    if (probed != null)
+                        probed.probeResult.complete(code);
+                    else
+                        handleResponse(requestId, code);
+                }
+                response.clear();
+            }
+        } catch (IOException e) {
+            if (socket.isConnected() && !socket.isClosed()) {
+                if (options.isResume())
+                    System.out.println("Connection to server lost: " + e.getMessage());
+                else
+                    e.printStackTrace();
+            }
+        } finally {
+            connectionLost = true;
+            // При возобновлении загрузок запросы без ответа повторяются после переподключения
+            if (!options.isResume()) {
+                pending.values().forEach(this::reportFailure);
+                pending.clear();
+            }
+            // Освобождаем поток отправки, если он ожидает смещения или места в окне
+            for (PendingUpload upload : pending.values())
+                upload.cancelResume();
+            for (PendingUpload upload : probes.values())
+                upload.probeResult.complete(PROBE_LOST);
+            probes.clear();
+            window.release(windowSize);
+        }
+    }
+
+    private void handleResumeFrom(int requestId, long offset) {
+        PendingUpload upload = pending.get(requestId);
+        if (upload != null && upload.resumeOffset != null) {
+            approved(upload);
+            upload.resumeOffset.complete(offset);
+        }
+    }
+
+    private void handleSignatures(int requestId, DeltaSync.Signatures signatures) {
+        PendingUpload upload = pending.get(requestId);
+        if (upload != null && upload.signatures != null) {
+            approved(upload);
+            upload.signatures.complete(signatures);
+        }
+    }
+
+    private void handleStripesApproved(int requestId, long key) {
+        PendingUpload upload = pending.get(requestId);
+        if (upload != null) {
+            approved(upload);
+            startStripes(requestId, upload, key);
         }
+    }
 
-        // Подготавливаем массив байт имени
-        // При ограничении длины имени файла в 2^12 символов в кодировке UTF-8 это займет максимум 2^14 байт
-        // Так как UTF-8 компанует символы используя от 1 до 4 байт.
-        byte[] nameInBytes = file.getName().getBytes(CHARSET);
-        // Отправляем длину имени
-        outputStream.write(ByteBuffer.allocate(INT_IN_BYTES_SIZE).putInt(nameInBytes.length).array(),
-                           INT_IN_BYTES_SIZE - FILENAME_LEN_SIZE, FILENAME_LEN_SIZE);
-        // Отправляем имя файла
-        outputStream.write(nameInBytes);
+    private void handleResponse(int requestId, int response) {
+        // Подтверждение начала загрузки не завершает запрос
+        if (response == ServerResponses.UPLOAD_APPROVED.ordinal()) {
+            PendingUpload upload = pending.get(requestId);
+            if (upload != null)
+                approved(upload);
+            return;
+        }
 
-        // Отправляем файл
-        try (InputStream input = new FileInputStream(file)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int len;
-            while ((len = input.read(buffer)) > 0)
-                outputStream.write(buffer, 0, len);
+        PendingUpload upload = pending.remove(requestId);
+        if (upload == null)
+            return;
+        // Сохраненной версии нет: файл отправляется целиком новым запросом, место в окне остается за ним
+        if (response == ServerResponses.FILE_NOT_FOUND.ordinal() && upload.signatures != null &&
+            !upload.signatures.isDone()) {
+            upload.fullUpload = true;
+            upload.signatures.complete(null);
+            return;
+        }
+        // Сервер отказал в возобновляемой или разностной загрузке, тело файла отправлять не нужно
+        upload.cancelResume();
+        String path = upload.file.getAbsolutePath();
+        // Испорченный файл отправляется заново потоком отправки, место в окне он займет снова
+        if (response == ServerResponses.CHECKSUM_MISMATCH.ordinal() && options.isResume() &&
+            ++upload.attempts <= options.getRetries()) {
+            System.out.println(String.format("File \"%s\" was corrupted in transfer, sending it again.", path));
+            mismatched.add(upload);
+            window.release();
+            return;
         }
 
-        response = inputStream.read();
+        finished(upload, response == ServerResponses.FILE_SAVED.ordinal());
         if (response == ServerResponses.FILE_SAVED.ordinal())
-            System.out.println(String.format("File \"%s\" uploaded.", file.getAbsolutePath()));
+            System.out.println(String.format("File \"%s\" uploaded. Average speed: %s", path,
+                                             formatSpeed(upload.getAverageSpeed())));
+        else if (response == ServerResponses.NOT_ENOUGH_FREE_SPACE.ordinal())
+            System.out.println(String.format("Server has no free space to store \"%s\" file.", path));
+        else if (response == ServerResponses.CHECKSUM_MISMATCH.ordinal())
+            System.out.println(String.format("File \"%s\" was corrupted in transfer and not saved.", path));
         else
-            System.out.println(String.format("Cannot upload file: \"%s\"", file.getAbsolutePath()));
+            System.out.println(String.format("An unknown server error occurred while trying to upload \"%s\" file.",
+                                             path));
+        window.release();
+    }
+
+    /**
+     * Ожидает следующий файл из очереди.
+     */
+    private PendingUpload takeUpload() {
+        while (true) {
+            try {
+                return sendQueue.take();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Выполняет отправку файла.
+     */
+    private void sendFileImmediately(PendingUpload upload) throws IOException {
+        File file = upload.file;
+        try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+            long fileSize = fileChannel.size();
+
+            // Отправляем размер файла
+            upload.requested = TransferMetrics.begin();
+            fileSizeBuffer.putLong(0, fileSize).position(LONG_IN_BYTES_SIZE - FILE_LEN_SIZE);
+            writeFully(fileSizeBuffer);
+
+            // Получаем ответ и проверяем подтверждение от сервера
+            int response = inputStream.read();
+            if (response == ServerResponses.NOT_ENOUGH_FREE_SPACE.ordinal()) {
+                System.out.println(String.format("Server has no free space to store \"%s\" file.",
+                                                 file.getAbsolutePath()));
+                finished(upload, false);
+                return;
+            } else if (response != ServerResponses.UPLOAD_APPROVED.ordinal()) {
+                System.out.println(String.format("An unknown server error occurred while trying to upload \"%s\" file.",
+                                                 file.getAbsolutePath()));
+                finished(upload, false);
+                return;
+            }
+            approved(upload);
+            upload.begin(0);
+
+            // Подготавливаем массив байт имени
+            // При ограничении длины имени файла в 2^12 символов в кодировке UTF-8 это займет максимум 2^14 байт
+            // Так как UTF-8 компанует символы используя от 1 до 4 байт.
+            byte[] nameInBytes = remoteName(upload);
+            // Отправляем длину имени и имя файла одной записью
+            filenameSizeBuffer.putInt(0, nameInBytes.length).position(INT_IN_BYTES_SIZE - FILENAME_LEN_SIZE);
+            writeFully(filenameSizeBuffer, ByteBuffer.wrap(nameInBytes));
+
+            // Отправляем файл
+            SpeedMeter meter = new SpeedMeter(metrics.sent());
+            sendRange(fileChannel, 0, fileSize, socketChannel, meter, null);
+
+            response = inputStream.read();
+            finished(upload, response == ServerResponses.FILE_SAVED.ordinal());
+            if (response == ServerResponses.FILE_SAVED.ordinal())
+                System.out.println(String.format("File \"%s\" uploaded. Average speed: %s", file.getAbsolutePath(),
+                                                 formatSpeed(meter.getAverageSpeed())));
+            else
+                System.out.println(String.format("Cannot upload file: \"%s\"", file.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Записывает содержимое буферов в сокет одним или несколькими вызовами write.
+     */
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        writeFully(socketChannel, buffers);
+    }
+
+    /**
+     * Отправляет диапазон файла, передавая данные из канала файла напрямую в канал сокета
+     * (на Linux через sendfile).
+     *
+     * @param fileChannel Канал файла.
+     * @param position Смещение начала диапазона.
+     * @param count Размер диапазона, объявленный серверу.
+     * @param socketChannel Канал сокета.
+     * @param meter Счетчик скорости отправки.
+     * @param checksums Контрольные суммы, обновляемые отправленными данными, или null.
+     */
+    static void sendRange(FileChannel fileChannel, long position, long count, SocketChannel socketChannel,
+                          SpeedMeter meter, BlockChecksums checksums) throws IOException {
+        long end = position + count;
+        ByteBuffer fallbackBuffer = null;
+        while (position < end) {
+            long chunk = Math.min(TRANSFER_CHUNK_SIZE, end - position);
+            // Данные, по которым считаются контрольные суммы, должны пройти через память процесса
+            long len = checksums == null ? fileChannel.transferTo(position, chunk, socketChannel) : 0;
+            // Передача не продвигается: отправляем часть через прямой буфер
+            if (len == 0) {
+                if (fallbackBuffer == null)
+                    fallbackBuffer = ByteBuffer.allocateDirect(FALLBACK_BUFFER_SIZE);
+                len = sendChunkBuffered(fileChannel, position, chunk, socketChannel, fallbackBuffer, checksums);
+            }
+            position += len;
+            meter.add(len);
+        }
+    }
+
+    /**
+     * Отправляет часть файла через прямой буфер.
+     *
+     * @return Количество отправленных байт.
+     */
+    private static int sendChunkBuffered(FileChannel fileChannel, long position, long count,
+                                         SocketChannel socketChannel, ByteBuffer buffer, BlockChecksums checksums)
+            throws IOException {
+        buffer.clear();
+        if (buffer.remaining() > count)
+            buffer.limit((int) count);
+
+        int len = fileChannel.read(buffer, position);
+        if (len == -1)
+            throw new IOException("File was truncated during upload.");
+        buffer.flip();
+        if (checksums != null)
+            checksums.update(buffer);
+        writeFully(socketChannel, buffer);
+        return len;
+    }
+
+    /**
+     * Собирает заголовок запроса загрузки: код запроса, идентификатор, размер файла, длина имени и имя.
+     *
+     * @return Буфер, подготовленный для записи в сокет.
+     */
+    static ByteBuffer uploadHeader(ClientRequests request, int requestId, long fileSize, byte[] nameInBytes) {
+        ByteBuffer header = ByteBuffer.allocate(1 + REQUEST_ID_SIZE + FILE_LEN_SIZE + FILENAME_LEN_SIZE +
+                                                nameInBytes.length);
+        header.put((byte) request.ordinal()).putInt(requestId);
+        putFileSize(header, fileSize);
+        header.putShort((short) nameInBytes.length).put(nameInBytes);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Записывает 5-байтовый размер файла в буфер.
+     */
+    static void putFileSize(ByteBuffer buffer, long size) {
+        buffer.put((byte) (size >>> Integer.SIZE)).putInt((int) size);
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer... buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining())
+            channel.write(buffers);
+    }
+
+    static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                if (buffer.position() == start)
+                    return false;
+                throw new IOException("Connection closed by server.");
+            }
+        }
+        return true;
+    }
+
+    static SocketChannel connect(InetAddress host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        // Заголовки собираются в одну запись, поэтому алгоритм Нейгла только задерживает мелкие файлы
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+
+    /**
+     * Предлагает серверу перейти на расширенный протокол.
+     *
+     * @param channel Канал нового соединения.
+     * @param wanted Маска возможностей, которые клиент хочет использовать.
+     *
+     * @return Маска выбранных возможностей расширенного протокола, {@link #LEGACY_PROTOCOL}, если сервер
+     * его не поддерживает, или {@link #RECONNECT_REQUIRED}, если соединение нужно открыть заново.
+     */
+    static int negotiate(SocketChannel channel, int wanted) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LONG_IN_BYTES_SIZE);
+        buffer.putLong(0, PROTOCOL_HANDSHAKE).position(LONG_IN_BYTES_SIZE - FILE_LEN_SIZE);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+
+        buffer.clear().limit(1);
+        if (!readFully(channel, buffer))
+            throw new IOException("Connection closed by server.");
+        int response = buffer.get(0);
+        if (response == ServerResponses.UPLOAD_APPROVED.ordinal())
+            return RECONNECT_REQUIRED;
+        if (response != ServerResponses.PROTOCOL_ACCEPTED.ordinal())
+            return LEGACY_PROTOCOL;
+
+        buffer.clear().limit(FEATURES_SIZE);
+        if (!readFully(channel, buffer))
+            throw new IOException("Connection closed by server.");
+        int features = buffer.getInt(0) & wanted;
+
+        buffer.clear();
+        buffer.putInt(features).flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        return features;
+    }
+
+    /**
+     * Файл, ожидающий ответа сервера.
+     */
+    private static class PendingUpload {
+
+        private final File file;
+        // Имя файла на сервере
+        private final String name;
+        private final long size;
+        // Момент отправки последнего запроса для учета времени до подтверждения и сохранения
+        private volatile long requested;
+        // Размер, учтенный в метриках как передаваемый после подтверждения загрузки
+        private volatile long inFlight;
+        private long beginTime;
+        // Смещение, с которого отправлено тело файла в последней попытке
+        private long resumedFrom;
+        // Количество повторных отправок без продвижения загрузки
+        private int attempts;
+        // Смещение, с которого сервер ожидает тело возобновляемой загрузки (-1, если тело не нужно)
+        private volatile CompletableFuture<Long> resumeOffset;
+        // Сигнатуры сохраненной версии для разностной загрузки (null, если разность не нужна)
+        private volatile CompletableFuture<DeltaSync.Signatures> signatures;
+        // Сохраненной версии нет, и файл нужно отправить целиком
+        private volatile boolean fullUpload;
+        private byte[] key;
+        // Дайджест содержимого или null, если копия файла на сервере не ищется
+        private CompletableFuture<byte[]> digest;
+        // Ответ на поиск копии или null, если запрос еще не отправлен
+        private volatile CompletableFuture<Integer> probeResult;
+
+        PendingUpload(File file, String name, long size) {
+            this.file = file;
+            this.name = name;
+            this.size = size;
+        }
+
+        /**
+         * Отмечает начало очередной попытки отправки.
+         *
+         * @param offset Смещение, с которого отправляется тело файла.
+         */
+        void begin(long offset) {
+            beginTime = System.nanoTime();
+            resumedFrom = offset;
+        }
+
+        /**
+         * Прекращает ожидание смещения возобновляемой загрузки и сигнатур разностной загрузки.
+         */
+        void cancelResume() {
+            CompletableFuture<Long> offset = resumeOffset;
+            if (offset != null)
+                offset.complete(-1L);
+            CompletableFuture<DeltaSync.Signatures> blocks = signatures;
+            if (blocks != null)
+                blocks.complete(null);
+        }
+
+        /**
+         * Ключ возобновляемой загрузки не меняется между попытками и переподключениями, пока не изменился файл.
+         *
+         * @return Ключ загрузки, вычисленный по имени машины, пути, размеру и времени изменения файла.
+         */
+        byte[] getKey() throws IOException {
+            if (key != null)
+                return key;
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            String identity = String.format("%s\0%s\0%d\0%d", InetAddress.getLocalHost().getHostName(),
+                                            file.getCanonicalPath(), file.length(), file.lastModified());
+            key = new byte[UPLOAD_KEY_SIZE];
+            System.arraycopy(digest.digest(identity.getBytes(CHARSET)), 0, key, 0, UPLOAD_KEY_SIZE);
+            return key;
+        }
+
+        /**
+         * @return Средняя скорость загрузки файла с момента отправки запроса в байт/секунду
+         * или -1, если тело файла не отправлялось.
+         */
+        long getAverageSpeed() {
+            if (beginTime == 0)
+                return -1;
+            return TransferMetrics.speed(beginTime, size - resumedFrom);
+        }
     }
 }
@@ -0,0 +1,96 @@
+package org.polushin.networks.file_transfer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма неотрицательных значений с постоянной относительной точностью (по образцу HdrHistogram).
+ *
+ * Значения до 128 учитываются точно, большие - в корзинах, ширина которых растет вдвое через каждые
+ * 64 корзины, поэтому погрешность процентиля не превышает 1/64 значения при любом масштабе.
+ * Запись не блокирует и не выделяет память: корзины - атомарные счетчики фиксированного массива.
+ */
+final class LatencyHistogram {
+
+    // Количество точно учитываемых значений; дальше каждый двоичный порядок делится на SUB_BUCKETS / 2 корзин
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS) * HALF_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Учитывает значение. Отрицательные значения учитываются как 0.
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile Доля значений от 0 до 1.
+     *
+     * @return Наибольшее значение корзины, до которой включительно набирается указанная доля значений,
+     * или 0, если значений нет.
+     */
+    long getQuantile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * @return Краткое описание распределения: процентили 50, 99, 99.9 и максимум.
+     */
+    String describe() {
+        return String.format("p50=%d p99=%d p999=%d max=%d count=%d", getQuantile(0.5), getQuantile(0.99),
+                             getQuantile(0.999), getMax(), getCount());
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        // Сдвиг, после которого в значении остается SUB_BUCKET_BITS значащих бит
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF_BUCKETS + (int) (value >>> shift) - HALF_BUCKETS;
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF_BUCKETS + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF_BUCKETS + HALF_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
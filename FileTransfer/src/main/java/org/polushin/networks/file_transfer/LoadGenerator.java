@@ -0,0 +1,259 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Генератор нагрузки на сервер-хранилище.
+ *
+ * Имитирует множество клиентов, каждый из которых отправляет по своему соединению несколько файлов
+ * и подключается заново. Клиенты распределены между несколькими потоками, каждый из которых обслуживает
+ * свои соединения через селектор (см. {@link LoadSession}). Размеры файлов: большинство - мелкие,
+ * остальные - с тяжелым хвостом распределения Парето. Раз в период выводятся количество сохраненных файлов
+ * и переданный объем в секунду, ошибки и процентили времени ответов сервера (см. {@link LoadStatistics}).
+ */
+public class LoadGenerator {
+
+    // Размер буфера случайных данных, которым заполняются тела файлов
+    private static final int DATA_SIZE = 1024 * 1024;
+    // Мелкие файлы - от 1 байта до 64 Кб, логарифмически равномерно
+    private static final int TINY_MAX_SIZE = 64 * 1024;
+    // Большие файлы - от 1 Мб, распределение Парето с показателем 1.1
+    private static final long HEAVY_MIN_SIZE = 1024 * 1024;
+    private static final double PARETO_SHAPE = 1.1;
+    // Период тиков медленных клиентов
+    private static final long TICK = 50;
+    // Задержка переподключения клиента после ошибки
+    private static final long RECONNECT_DELAY = 1000;
+
+    private final InetSocketAddress address;
+    private final LoadOptions options;
+    private final LoadStatistics statistics = new LoadStatistics();
+    private final ByteBuffer data;
+    // Префикс имен файлов, различающий прогоны
+    private final String namePrefix = "load-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    private final AtomicLong nextFile = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    // Сообщения об ошибках, которые уже выведены
+    private final Set<String> reportedErrors = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = false;
+
+    public LoadGenerator(InetAddress host, int port, LoadOptions options) {
+        address = new InetSocketAddress(host, port);
+        this.options = options;
+        byte[] random = new byte[DATA_SIZE];
+        new Random().nextBytes(random);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DATA_SIZE);
+        buffer.put(random).flip();
+        data = buffer;
+    }
+
+    /**
+     * Создает нагрузку в течение заданного времени, выводя статистику, и выводит итоговую сводку.
+     */
+    public void run() throws IOException {
+        List<Worker> workers = new ArrayList<>();
+        try {
+            for (int i = 0; i < options.getThreads(); i++)
+                workers.add(new Worker());
+        } catch (IOException e) {
+            for (Worker worker : workers)
+                worker.selector.close();
+            throw e;
+        }
+        for (int client = 0; client < options.getClients(); client++) {
+            boolean slow = ThreadLocalRandom.current().nextInt(100) < options.getSlowClients();
+            workers.get(client % workers.size()).restarts.add(new Restart(client, slow, 0));
+        }
+
+        System.out.format("Loading %s with %d clients in %d threads for %d s...\n", address, options.getClients(),
+                          workers.size(), options.getDuration());
+        running = true;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workers.size(); i++) {
+            Thread thread = new Thread(workers.get(i), "load-worker-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long deadline = System.currentTimeMillis() + options.getDuration() * 1000L;
+        long left;
+        while ((left = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(Math.min(left, options.getReportInterval() * 1000L));
+            } catch (InterruptedException e) {
+                break;
+            }
+            statistics.report(active.get());
+        }
+
+        running = false;
+        for (Worker worker : workers)
+            worker.selector.wakeup();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        statistics.printSummary();
+    }
+
+    LoadOptions getOptions() {
+        return options;
+    }
+
+    LoadStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return Общие случайные данные для тел файлов. Каждый вызов возвращает отдельный буфер.
+     */
+    ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    /**
+     * @return Размер очередного файла.
+     */
+    long nextSize() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextInt(100) < options.getTinyShare())
+            return (long) Math.exp(random.nextDouble() * Math.log(TINY_MAX_SIZE));
+        double size = HEAVY_MIN_SIZE / Math.pow(1 - random.nextDouble(), 1 / PARETO_SHAPE);
+        return (long) Math.min(size, options.getMaxSize());
+    }
+
+    /**
+     * @return Имя очередного файла клиента.
+     */
+    String nextName(int client) {
+        return namePrefix + client + "-" + nextFile.incrementAndGet();
+    }
+
+    void connectionOpened() {
+        active.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Выводит сообщение об ошибке соединения, если такое сообщение еще не выводилось.
+     */
+    void reportError(IOException e) {
+        String message = String.valueOf(e.getMessage());
+        if (reportedErrors.add(message))
+            System.out.println("Connection error: " + message);
+    }
+
+    /**
+     * Поток, обслуживающий соединения своих клиентов.
+     */
+    private class Worker implements Runnable {
+
+        private final Selector selector;
+        private final Set<LoadSession> sessions = new HashSet<>();
+        private final List<LoadSession> slowSessions = new ArrayList<>();
+        // Клиенты, ожидающие подключения, в порядке времени подключения
+        private final Queue<Restart> restarts = new PriorityQueue<>(
+                Comparator.comparingLong(restart -> restart.time));
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            long allowance = Math.max(1, options.getSlowRate() * TICK / 1000);
+            long nextTick = System.currentTimeMillis();
+            try {
+                while (running) {
+                    selector.select(TICK);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid())
+                            ((LoadSession) key.attachment()).onReady();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextTick) {
+                        nextTick = now + TICK;
+                        slowSessions.removeIf(LoadSession::isClosed);
+                        for (LoadSession session : new ArrayList<>(slowSessions))
+                            session.onTick(allowance);
+                    }
+                    while (running && !restarts.isEmpty() && restarts.peek().time <= now)
+                        start(restarts.poll());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (LoadSession session : new ArrayList<>(sessions))
+                    session.close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void start(Restart restart) {
+            LoadSession session;
+            try {
+                session = new LoadSession(LoadGenerator.this, selector, address, restart.client, restart.slow,
+                                          this::onClosed);
+            } catch (IOException e) {
+                statistics.connectionFailed();
+                reportError(e);
+                restarts.add(new Restart(restart.client, restart.slow, System.currentTimeMillis() + RECONNECT_DELAY));
+                return;
+            }
+            sessions.add(session);
+            if (session.isSlow())
+                slowSessions.add(session);
+        }
+
+        /**
+         * Подключает клиента заново: сразу после завершения соединения или с задержкой после ошибки.
+         */
+        private void onClosed(LoadSession session) {
+            sessions.remove(session);
+            if (!running)
+                return;
+            long delay = session.isFailed() ? RECONNECT_DELAY : 0;
+            restarts.add(new Restart(session.getClient(), session.isSlow(), System.currentTimeMillis() + delay));
+        }
+    }
+
+    /**
+     * Клиент, ожидающий подключения.
+     */
+    private static class Restart {
+
+        private final int client;
+        private final boolean slow;
+        private final long time;
+
+        Restart(int client, boolean slow, long time) {
+            this.client = client;
+            this.slow = slow;
+            this.time = time;
+        }
+    }
+}
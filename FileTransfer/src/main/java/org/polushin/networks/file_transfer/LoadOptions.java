@@ -0,0 +1,150 @@
+package org.polushin.networks.file_transfer;
+
+/**
+ * Настройки генератора нагрузки.
+ */
+public class LoadOptions {
+
+    private int clients = 100;
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int duration = 60;
+    private int tinyShare = 90;
+    private long maxSize = 1024L * 1024 * 1024;
+    private int filesPerConnection = 20;
+    private int slowClients = 5;
+    private long slowRate = 64 * 1024;
+    private int window = 4;
+    private int reportInterval = 5;
+
+    /**
+     * @return Количество одновременно работающих клиентов.
+     */
+    public int getClients() {
+        return clients;
+    }
+
+    public void setClients(int clients) {
+        if (clients < 1)
+            throw new IllegalArgumentException("Clients count must be positive.");
+        this.clients = clients;
+    }
+
+    /**
+     * @return Количество потоков, обслуживающих всех клиентов.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Threads count must be positive.");
+        this.threads = threads;
+    }
+
+    /**
+     * @return Продолжительность нагрузки в секундах.
+     */
+    public int getDuration() {
+        return duration;
+    }
+
+    public void setDuration(int duration) {
+        if (duration < 1)
+            throw new IllegalArgumentException("Duration must be positive.");
+        this.duration = duration;
+    }
+
+    /**
+     * @return Доля мелких файлов (до 64 Кб) в процентах, остальные файлы - от 1 Мб до {@link #getMaxSize()}
+     * с распределением Парето.
+     */
+    public int getTinyShare() {
+        return tinyShare;
+    }
+
+    public void setTinyShare(int tinyShare) {
+        if (tinyShare < 0 || tinyShare > 100)
+            throw new IllegalArgumentException("Tiny files share must be from 0 to 100 percent.");
+        this.tinyShare = tinyShare;
+    }
+
+    /**
+     * @return Максимальный размер файла.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        if (maxSize < 1024 * 1024 || maxSize >= Utils.PROTOCOL_HANDSHAKE)
+            throw new IllegalArgumentException("Invalid max file size.");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return Наибольшее количество файлов, отправляемых по одному соединению. Клиент отправляет
+     * случайное количество файлов до этого значения и подключается заново.
+     */
+    public int getFilesPerConnection() {
+        return filesPerConnection;
+    }
+
+    public void setFilesPerConnection(int filesPerConnection) {
+        if (filesPerConnection < 1)
+            throw new IllegalArgumentException("Files per connection must be positive.");
+        this.filesPerConnection = filesPerConnection;
+    }
+
+    /**
+     * @return Доля медленных клиентов в процентах.
+     */
+    public int getSlowClients() {
+        return slowClients;
+    }
+
+    public void setSlowClients(int slowClients) {
+        if (slowClients < 0 || slowClients > 100)
+            throw new IllegalArgumentException("Slow clients share must be from 0 to 100 percent.");
+        this.slowClients = slowClients;
+    }
+
+    /**
+     * @return Скорость отправки медленного клиента в байт/секунду.
+     */
+    public long getSlowRate() {
+        return slowRate;
+    }
+
+    public void setSlowRate(long slowRate) {
+        if (slowRate < 1)
+            throw new IllegalArgumentException("Slow rate must be positive.");
+        this.slowRate = slowRate;
+    }
+
+    /**
+     * @return Максимальное количество файлов клиента, отправленных без подтверждения сохранения.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("Window must be positive.");
+        this.window = window;
+    }
+
+    /**
+     * @return Период вывода статистики в секундах.
+     */
+    public int getReportInterval() {
+        return reportInterval;
+    }
+
+    public void setReportInterval(int reportInterval) {
+        if (reportInterval < 1)
+            throw new IllegalArgumentException("Report interval must be positive.");
+        this.reportInterval = reportInterval;
+    }
+}
@@ -0,0 +1,319 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+import static org.polushin.networks.file_transfer.Utils.*;
+
+/**
+ * Одно соединение имитируемого клиента генератора нагрузки.
+ *
+ * Клиент переходит на расширенный протокол без дополнительных возможностей, отправляет случайное количество
+ * файлов запросами загрузки, не дожидаясь ответов в пределах окна, и завершает соединение. Тела файлов
+ * не читаются с диска: отправляется общий буфер случайных данных. Соединение обслуживается неблокирующим
+ * каналом в потоке генератора, которому принадлежит селектор.
+ *
+ * Медленный клиент отправляет тела с ограниченной скоростью и читает ответы только по тикам генератора,
+ * небольшими порциями, поэтому ответы сервера копятся в буфере сокета.
+ */
+class LoadSession {
+
+    // Количество ответов, которые медленный клиент читает за тик
+    private static final int SLOW_READ_RESPONSES = 4;
+    private static final int RESPONSE_SIZE = REQUEST_ID_SIZE + 1;
+
+    private enum State {
+        CONNECTING,
+        NEGOTIATING,
+        RUNNING,
+        // Отправка запроса завершения, после которой соединение закрывается
+        FINISHING
+    }
+
+    private final LoadGenerator generator;
+    private final LoadStatistics statistics;
+    private final int client;
+    private final boolean slow;
+    private final Consumer<LoadSession> onClose;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    // Общие данные тел файлов
+    private final ByteBuffer body;
+    private final ByteBuffer negotiation = ByteBuffer.allocate(1 + FEATURES_SIZE);
+    // Принятые, но еще не разобранные ответы (буфер в режиме записи)
+    private final ByteBuffer responses = ByteBuffer.allocate(64 * RESPONSE_SIZE);
+    // Моменты отправки запросов, ожидающих сохранения файла, по идентификаторам запросов
+    private final Map<Integer, Long> pending = new HashMap<>();
+
+    private State state = State.CONNECTING;
+    // Неотправленная часть заголовка или служебного сообщения
+    private ByteBuffer output;
+    private long bodyLeft;
+    // Количество файлов, которые еще будут отправлены по этому соединению
+    private int filesLeft;
+    private int nextRequestId;
+    // Объем, который медленный клиент может отправить до следующего тика
+    private long budget;
+    private boolean connected = false;
+    private boolean failed = false;
+    private boolean closed = false;
+
+    /**
+     * Начинает подключение к серверу.
+     *
+     * @param client Номер клиента, используется в именах файлов.
+     * @param slow Клиент медленный.
+     * @param onClose Вызывается после закрытия соединения.
+     */
+    LoadSession(LoadGenerator generator, Selector selector, InetSocketAddress address, int client, boolean slow,
+                Consumer<LoadSession> onClose) throws IOException {
+        this.generator = generator;
+        this.client = client;
+        this.slow = slow;
+        this.onClose = onClose;
+        statistics = generator.getStatistics();
+        body = generator.getData();
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(address))
+                onConnected();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int getClient() {
+        return client;
+    }
+
+    boolean isSlow() {
+        return slow;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Обрабатывает готовность канала.
+     */
+    void onReady() {
+        try {
+            if (key.isConnectable()) {
+                if (!channel.finishConnect())
+                    return;
+                onConnected();
+            }
+            if (key.isValid() && key.isReadable())
+                onReadable(Integer.MAX_VALUE);
+            if (key.isValid() && key.isWritable())
+                write();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Тик медленного клиента: пополняет разрешенный объем отправки и читает несколько ответов.
+     *
+     * @param allowance Объем, разрешенный к отправке за тик.
+     */
+    void onTick(long allowance) {
+        if (closed)
+            return;
+        budget = Math.min(budget + allowance, generator.getOptions().getSlowRate());
+        try {
+            if (state == State.RUNNING || state == State.FINISHING)
+                onReadable(SLOW_READ_RESPONSES * RESPONSE_SIZE);
+            if (state != State.CONNECTING && !closed)
+                write();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Закрывает соединение.
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (connected)
+            generator.connectionClosed();
+        onClose.accept(this);
+    }
+
+    private void fail(IOException e) {
+        failed = true;
+        statistics.connectionFailed();
+        generator.reportError(e);
+        close();
+    }
+
+    private void onConnected() {
+        connected = true;
+        generator.connectionOpened();
+        statistics.connectionOpened();
+        ByteBuffer handshake = ByteBuffer.allocate(LONG_IN_BYTES_SIZE);
+        handshake.putLong(0, PROTOCOL_HANDSHAKE).position(LONG_IN_BYTES_SIZE - FILE_LEN_SIZE);
+        output = handshake;
+        state = State.NEGOTIATING;
+        updateInterest();
+    }
+
+    /**
+     * Читает данные сервера.
+     *
+     * @param limit Наибольший объем, читаемый за вызов.
+     */
+    private void onReadable(int limit) throws IOException {
+        if (state == State.NEGOTIATING) {
+            if (channel.read(negotiation) == -1)
+                throw new IOException("Connection closed by server.");
+            if (negotiation.position() > 0 && negotiation.get(0) != ServerResponses.PROTOCOL_ACCEPTED.ordinal())
+                throw new IOException("Server does not support extended protocol.");
+            if (negotiation.hasRemaining())
+                return;
+            // Дополнительные возможности протокола не используются
+            output = ByteBuffer.allocate(FEATURES_SIZE).putInt(0, 0);
+            filesLeft = 1 + ThreadLocalRandom.current().nextInt(generator.getOptions().getFilesPerConnection());
+            state = State.RUNNING;
+            write();
+            return;
+        }
+
+        if (responses.remaining() > limit)
+            responses.limit(responses.position() + limit);
+        int len = channel.read(responses);
+        responses.limit(responses.capacity());
+        if (len == -1)
+            throw new IOException("Connection closed by server.");
+
+        responses.flip();
+        while (responses.remaining() >= RESPONSE_SIZE)
+            onResponse(responses.getInt(), responses.get());
+        responses.compact();
+        write();
+    }
+
+    private void onResponse(int requestId, int code) throws IOException {
+        Long begin = pending.get(requestId);
+        if (begin == null)
+            throw new IOException(String.format("Unexpected response to request %d.", requestId));
+        if (code == ServerResponses.UPLOAD_APPROVED.ordinal()) {
+            // Медленный клиент читает ответы с задержкой, его время ответа не показательно
+            if (!slow)
+                statistics.approved(begin);
+            return;
+        }
+
+        pending.remove(requestId);
+        if (code == ServerResponses.FILE_SAVED.ordinal())
+            statistics.saved(slow ? -1 : begin);
+        else if (code == ServerResponses.NOT_ENOUGH_FREE_SPACE.ordinal() ||
+                 code == ServerResponses.UNKNOWN_ERROR.ordinal())
+            statistics.rejected();
+        else
+            throw new IOException(String.format("Unexpected response %d to request %d.", code, requestId));
+    }
+
+    /**
+     * Отправляет накопленные данные и начинает новые запросы, пока сокет их принимает.
+     */
+    private void write() throws IOException {
+        while (!closed) {
+            if (output != null) {
+                channel.write(output);
+                if (output.hasRemaining())
+                    break;
+                output = null;
+                if (state == State.FINISHING) {
+                    close();
+                    return;
+                }
+            } else if (bodyLeft > 0) {
+                long allowed = slow ? Math.min(bodyLeft, budget) : bodyLeft;
+                if (allowed == 0)
+                    break;
+                body.clear();
+                if (body.remaining() > allowed)
+                    body.limit((int) allowed);
+                int len = channel.write(body);
+                bodyLeft -= len;
+                if (slow)
+                    budget -= len;
+                statistics.sent(len);
+                if (body.hasRemaining())
+                    break;
+            } else if (!startNext()) {
+                break;
+            }
+        }
+        updateInterest();
+    }
+
+    /**
+     * Начинает следующий запрос загрузки или завершение соединения.
+     *
+     * @return false, если сейчас отправлять нечего.
+     */
+    private boolean startNext() {
+        if (state != State.RUNNING)
+            return false;
+        if (filesLeft == 0) {
+            if (!pending.isEmpty())
+                return false;
+            output = ByteBuffer.wrap(new byte[] {(byte) ClientRequests.FINISH.ordinal()});
+            state = State.FINISHING;
+            return true;
+        }
+        if (pending.size() >= generator.getOptions().getWindow())
+            return false;
+
+        filesLeft--;
+        long size = generator.nextSize();
+        int requestId = nextRequestId++;
+        output = FileSender.uploadHeader(ClientRequests.UPLOAD, requestId, size,
+                                         generator.nextName(client).getBytes(CHARSET));
+        bodyLeft = size;
+        pending.put(requestId, System.nanoTime());
+        return true;
+    }
+
+    private void updateInterest() {
+        if (closed)
+            return;
+        int ops = 0;
+        if (state == State.CONNECTING)
+            ops = SelectionKey.OP_CONNECT;
+        else if (!slow || state == State.NEGOTIATING)
+            ops = SelectionKey.OP_READ;
+        // Медленный клиент без разрешенного объема ждет следующего тика
+        if (output != null || bodyLeft > 0 && (!slow || budget > 0))
+            ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+}
@@ -0,0 +1,136 @@
+package org.polushin.networks.file_transfer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.polushin.networks.file_transfer.Utils.formatSpeed;
+
+/**
+ * Статистика генератора нагрузки: сохраненные файлы, переданный объем, ошибки и время ответов сервера.
+ *
+ * Время до подтверждения и до сохранения учитывается в гистограммах за весь прогон и за текущий период
+ * вывода: периодическая сводка показывает процентили только последнего периода.
+ */
+final class LoadStatistics {
+
+    private final long startTime = System.nanoTime();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    // Файлы, в загрузке которых сервер отказал
+    private final LongAdder rejected = new LongAdder();
+    // Соединения, прерванные ошибкой
+    private final LongAdder connectionErrors = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LatencyHistogram totalApprove = new LatencyHistogram();
+    private final LatencyHistogram totalSave = new LatencyHistogram();
+    private volatile LatencyHistogram intervalApprove = new LatencyHistogram();
+    private volatile LatencyHistogram intervalSave = new LatencyHistogram();
+
+    private long lastTime = startTime;
+    private long lastFiles;
+    private long lastBytes;
+    private long lastRejected;
+    private long lastConnectionErrors;
+
+    /**
+     * Учитывает подтверждение загрузки.
+     *
+     * @param begin Момент отправки запроса.
+     */
+    void approved(long begin) {
+        long time = micros(begin);
+        totalApprove.record(time);
+        intervalApprove.record(time);
+    }
+
+    /**
+     * Учитывает сохраненный файл.
+     *
+     * @param begin Момент отправки запроса или -1, если время ответа не учитывается.
+     */
+    void saved(long begin) {
+        files.increment();
+        if (begin < 0)
+            return;
+        long time = micros(begin);
+        totalSave.record(time);
+        intervalSave.record(time);
+    }
+
+    /**
+     * Учитывает отправленные байты тел файлов.
+     */
+    void sent(long count) {
+        bytes.add(count);
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void connectionOpened() {
+        connections.increment();
+    }
+
+    void connectionFailed() {
+        connectionErrors.increment();
+    }
+
+    /**
+     * Выводит сводку за период с предыдущего вызова.
+     *
+     * @param active Количество открытых соединений.
+     */
+    void report(int active) {
+        LatencyHistogram approve = intervalApprove;
+        LatencyHistogram save = intervalSave;
+        intervalApprove = new LatencyHistogram();
+        intervalSave = new LatencyHistogram();
+
+        long time = System.nanoTime();
+        long interval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(time - lastTime));
+        long currentFiles = files.sum();
+        long currentBytes = bytes.sum();
+        long currentRejected = rejected.sum();
+        long currentConnectionErrors = connectionErrors.sum();
+        System.out.format("%5d s: %d files/sec, %s, rejected %d, connection errors %d, connections %d. " +
+                          "Approve %s, save %s\n", TimeUnit.NANOSECONDS.toSeconds(time - startTime),
+                          (currentFiles - lastFiles) * 1000 / interval,
+                          formatSpeed((currentBytes - lastBytes) * 1000 / interval),
+                          currentRejected - lastRejected, currentConnectionErrors - lastConnectionErrors, active,
+                          percentiles(approve), percentiles(save));
+        lastTime = time;
+        lastFiles = currentFiles;
+        lastBytes = currentBytes;
+        lastRejected = currentRejected;
+        lastConnectionErrors = currentConnectionErrors;
+    }
+
+    /**
+     * Выводит итоговую сводку за весь прогон.
+     */
+    void printSummary() {
+        long interval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        System.out.format("Stored %d files, sent %d Mb in %d s: %d files/sec, %s. Rejected %d files, " +
+                          "%d of %d connections failed.\n", files.sum(), bytes.sum() / (1024 * 1024),
+                          interval / 1000, files.sum() * 1000 / interval, formatSpeed(bytes.sum() * 1000 / interval),
+                          rejected.sum(), connectionErrors.sum(), connections.sum());
+        System.out.format("Time to approve: %s\n", percentiles(totalApprove));
+        System.out.format("Time to save: %s\n", percentiles(totalSave));
+    }
+
+    /**
+     * @return Процентили 50, 99, 99.9 и максимум в миллисекундах.
+     */
+    private static String percentiles(LatencyHistogram histogram) {
+        if (histogram.getCount() == 0)
+            return "-";
+        return String.format("p50=%.2f p99=%.2f p999=%.2f max=%.2f ms", histogram.getQuantile(0.5) / 1000.0,
+                             histogram.getQuantile(0.99) / 1000.0, histogram.getQuantile(0.999) / 1000.0,
+                             histogram.getMax() / 1000.0);
+    }
+
+    private static long micros(long begin) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+    }
+}
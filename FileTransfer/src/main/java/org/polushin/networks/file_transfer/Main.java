@@ -1,27 +1,56 @@
 package org.polushin.networks.file_transfer;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Main {
 
-    private static final String USAGE = "Usage: -send <hostname:port> <file> or -storage <port> <storage-path>";
+    private static final String USAGE = "Usage: -send <hostname:port>|--discover=<multicast address> " +
+                                        "[--window=<count>] [--stripes=<count>] " +
+                                        "[--resume] [--retries=<count>] [--dedup] [--compress] [--delta] [--checksum] " +
+                                        "[--connections=<count>] [--metrics-port=<port>] " +
+                                        "<file or directory>... " +
+                                        "or -get <hostname:port> [--ranges=<count>] [--output=<dir>] <name>... " +
+                                        "or -storage <port> <storage-path> " +
+                                        "[--engine=threads|selector] [--selector-threads=<count>] " +
+                                        "[--receive=stream|transfer|pipeline] [--buffers=<count>] " +
+                                        "[--disk-writers=<count>] [--durability=none|per-file|group-commit] " +
+                                        "[--commit-window=<ms>] [--layout=flat|sharded] [--cache-size=<Mb>] " +
+                                        "[--limit=<Kb/sec>] [--client-limit=<Kb/sec>] [--space-margin=<Mb>] " +
+                                        "[--metrics-port=<port>] [--advertise=<multicast address>] " +
+                                        "or -reshard <storage-path> [--threads=<count>] " +
+                                        "or -load <hostname:port> [--clients=<count>] [--threads=<count>] " +
+                                        "[--duration=<sec>] [--tiny-share=<percent>] [--max-size=<Mb>] " +
+                                        "[--files-per-connection=<count>] [--slow-clients=<percent>] " +
+                                        "[--slow-rate=<Kb/sec>] [--window=<count>] [--report-interval=<sec>]";
 
     public static void main(String[] args) {
-        if (args.length < 3)
+        if (args.length < 2)
             exitWithError(USAGE);
 
         switch (args[0]) {
             case "-send":
                 sendFile(args);
                 return;
+            case "-get":
+                getFiles(args);
+                return;
             case "-storage":
                 filesStorage(args);
                 return;
+            case "-reshard":
+                reshardStorage(args);
+                return;
+            case "-load":
+                generateLoad(args);
+                return;
             default:
                 exitWithError(USAGE);
         }
@@ -31,6 +60,74 @@ public class Main {
      * Опция отправки файла.
      */
     private static void sendFile(String[] args) {
+        int port = 0;
+        InetAddress address = null;
+        // Группа объявлений серверов или null, если сервер задан явно
+        InetAddress group = null;
+        int pos = args[1].indexOf(":");
+        try {
+            if (args[1].startsWith("--discover=")) {
+                group = InetAddress.getByName(args[1].substring("--discover=".length()));
+                if (!group.isMulticastAddress())
+                    exitWithError(USAGE);
+            } else if (pos != -1) {
+                port = Integer.parseInt(args[1].substring(pos + 1));
+                address = InetAddress.getByName(args[1].substring(0, pos));
+            } else {
+                exitWithError(USAGE);
+                return;
+            }
+        } catch (NumberFormatException | UnknownHostException e) {
+            exitWithError(USAGE);
+            return;
+        }
+
+        List<String> paths = new ArrayList<>();
+        Map<String, String> values = parseOptions(args, 2, paths);
+        SenderOptions options = new SenderOptions();
+        try {
+            if (values.containsKey("window"))
+                options.setWindow(Integer.parseInt(values.get("window")));
+            if (values.containsKey("stripes"))
+                options.setStripes(Integer.parseInt(values.get("stripes")));
+            if (values.containsKey("retries"))
+                options.setRetries(Integer.parseInt(values.get("retries")));
+            options.setResume(values.containsKey("resume"));
+            options.setDeduplication(values.containsKey("dedup"));
+            options.setCompression(values.containsKey("compress"));
+            options.setDelta(values.containsKey("delta"));
+            options.setChecksum(values.containsKey("checksum"));
+            if (values.containsKey("connections"))
+                options.setConnections(Integer.parseInt(values.get("connections")));
+            if (values.containsKey("metrics-port"))
+                options.setMetricsPort(Integer.parseInt(values.get("metrics-port")));
+        } catch (IllegalArgumentException e) {
+            exitWithError(USAGE);
+            return;
+        }
+
+        List<UploadPool.SourceFile> files = new ArrayList<>();
+        for (String path : paths) {
+            File file = prepareFile(path);
+            if (file != null)
+                files.addAll(UploadPool.collect(file));
+        }
+
+        if (files.isEmpty())
+            exitWithError("No files to send.");
+
+        try (UploadPool pool = group != null ? UploadPool.discover(group, options) :
+                               new UploadPool(address, port, options)) {
+            pool.send(files);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Опция получения файлов из хранилища.
+     */
+    private static void getFiles(String[] args) {
         int pos = args[1].indexOf(":");
         if (pos == -1)
             exitWithError(USAGE);
@@ -45,35 +142,46 @@ public class Main {
             return;
         }
 
-        List<File> files = new ArrayList<>();
-        for (int i = 2; i < args.length; i++) {
-            File file = prepareFile(args[i]);
-            if (file != null)
-                files.add(file);
+        List<String> names = new ArrayList<>();
+        Map<String, String> values = parseOptions(args, 2, names);
+        ReceiverOptions options = new ReceiverOptions();
+        try {
+            if (values.containsKey("ranges"))
+                options.setRanges(Integer.parseInt(values.get("ranges")));
+        } catch (IllegalArgumentException e) {
+            exitWithError(USAGE);
+            return;
         }
 
-        if (files.isEmpty())
-            exitWithError("No files to send.");
+        File output = new File(values.containsKey("output") ? values.get("output") : ".");
+        if (!output.isDirectory())
+            exitWithError(String.format("Output path \"%s\" is not directory.", output.getPath()));
+        if (names.isEmpty())
+            exitWithError("No files to get.");
 
-        try (FileSender sender = new FileSender(address, port)) {
-            files.forEach(sender::sendFile);
+        try (FileReceiver receiver = new FileReceiver(address, port, options)) {
+            for (String name : names) {
+                try {
+                    receiver.receiveFile(name, new File(output, new File(name).getName()));
+                } catch (FileNotFoundException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Проверяет валидность переданного файла.
+     * Проверяет валидность переданного файла или директории.
      */
-    private static File prepareFile(String path) {
+    static File prepareFile(String path) {
         File file = new File(path);
 
         if (!file.exists())
             System.out.format("File \"%s\" not found.\n", path);
-        else if (!file.isFile())
+        else if (!file.isFile() && !file.isDirectory())
             System.out.format("\"%s\" is not file.\n", path);
-        else if (file.length() >= Utils.MAX_FILE_SIZE)
-            System.out.format("\"%s\" is to large.\n", path);
         else
             return file;
 
@@ -84,6 +192,9 @@ public class Main {
      * Опция приема файлов.
      */
     private static void filesStorage(String[] args) {
+        if (args.length < 3)
+            exitWithError(USAGE);
+
         int port;
         try {
             port = Integer.parseInt(args[1]);
@@ -98,9 +209,49 @@ public class Main {
         else if (!storage.isDirectory())
             exitWithError("Storage path must be directory.");
 
+        ServerOptions options = new ServerOptions();
+        Map<String, String> values = parseOptions(args, 3, null);
+        try {
+            if (values.containsKey("engine"))
+                options.setEngine(ServerOptions.Engine.valueOf(values.get("engine").toUpperCase()));
+            if (values.containsKey("receive"))
+                options.setReceiveMode(ServerOptions.ReceiveMode.valueOf(values.get("receive").toUpperCase()));
+            if (values.containsKey("selector-threads"))
+                options.setSelectorThreads(Integer.parseInt(values.get("selector-threads")));
+            if (values.containsKey("buffers"))
+                options.setBuffers(Integer.parseInt(values.get("buffers")));
+            if (values.containsKey("disk-writers"))
+                options.setDiskWriters(Integer.parseInt(values.get("disk-writers")));
+            if (values.containsKey("durability"))
+                options.setDurability(ServerOptions.Durability.valueOf(
+                        values.get("durability").toUpperCase().replace('-', '_')));
+            if (values.containsKey("commit-window"))
+                options.setCommitWindow(Long.parseLong(values.get("commit-window")));
+            if (values.containsKey("layout"))
+                options.setLayout(ServerOptions.Layout.valueOf(values.get("layout").toUpperCase()));
+            if (values.containsKey("cache-size"))
+                options.setCacheSize(Long.parseLong(values.get("cache-size")) * 1024 * 1024);
+            if (values.containsKey("limit"))
+                options.setGlobalLimit(Long.parseLong(values.get("limit")) * 1024);
+            if (values.containsKey("client-limit"))
+                options.setClientLimit(Long.parseLong(values.get("client-limit")) * 1024);
+            if (values.containsKey("space-margin"))
+                options.setSpaceMargin(Long.parseLong(values.get("space-margin")) * 1024 * 1024);
+            if (values.containsKey("metrics-port"))
+                options.setMetricsPort(Integer.parseInt(values.get("metrics-port")));
+            if (values.containsKey("advertise"))
+                options.setAdvertiseGroup(InetAddress.getByName(values.get("advertise")));
+        } catch (IllegalArgumentException | UnknownHostException e) {
+            exitWithError(USAGE);
+            return;
+        }
+        if (options.getEngine() == ServerOptions.Engine.SELECTOR &&
+            (options.getGlobalLimit() != 0 || options.getClientLimit() != 0))
+            exitWithError("Bandwidth limits are not supported with --engine=selector.");
+
         StorageServer server;
         try {
-            server = new StorageServer(port, storage);
+            server = new StorageServer(port, storage, options);
         } catch (IOException e) {
             e.printStackTrace();
             return;
@@ -110,6 +261,113 @@ public class Main {
         Runtime.getRuntime().addShutdownHook(new Thread(server::stopServer));
     }
 
+    /**
+     * Опция переноса хранилища в размещение с шардированием.
+     */
+    private static void reshardStorage(String[] args) {
+        File storage = new File(args[1]);
+        if (!storage.isDirectory())
+            exitWithError(String.format("Storage path \"%s\" is not directory.", args[1]));
+
+        Map<String, String> values = parseOptions(args, 2, null);
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            if (values.containsKey("threads"))
+                threads = Integer.parseInt(values.get("threads"));
+        } catch (NumberFormatException e) {
+            exitWithError(USAGE);
+        }
+        if (threads < 1)
+            exitWithError(USAGE);
+
+        try {
+            StorageMigration.reshard(storage, threads);
+        } catch (IOException e) {
+            exitWithError(e.getMessage());
+        }
+    }
+
+    /**
+     * Опция создания нагрузки на хранилище.
+     */
+    private static void generateLoad(String[] args) {
+        int pos = args[1].indexOf(":");
+        if (pos == -1)
+            exitWithError(USAGE);
+
+        int port;
+        InetAddress address;
+        try {
+            port = Integer.parseInt(args[1].substring(pos + 1));
+            address = InetAddress.getByName(args[1].substring(0, pos));
+        } catch (NumberFormatException | UnknownHostException e) {
+            exitWithError(USAGE);
+            return;
+        }
+
+        Map<String, String> values = parseOptions(args, 2, null);
+        LoadOptions options = new LoadOptions();
+        try {
+            if (values.containsKey("clients"))
+                options.setClients(Integer.parseInt(values.get("clients")));
+            if (values.containsKey("threads"))
+                options.setThreads(Integer.parseInt(values.get("threads")));
+            if (values.containsKey("duration"))
+                options.setDuration(Integer.parseInt(values.get("duration")));
+            if (values.containsKey("tiny-share"))
+                options.setTinyShare(Integer.parseInt(values.get("tiny-share")));
+            if (values.containsKey("max-size"))
+                options.setMaxSize(Long.parseLong(values.get("max-size")) * 1024 * 1024);
+            if (values.containsKey("files-per-connection"))
+                options.setFilesPerConnection(Integer.parseInt(values.get("files-per-connection")));
+            if (values.containsKey("slow-clients"))
+                options.setSlowClients(Integer.parseInt(values.get("slow-clients")));
+            if (values.containsKey("slow-rate"))
+                options.setSlowRate(Long.parseLong(values.get("slow-rate")) * 1024);
+            if (values.containsKey("window"))
+                options.setWindow(Integer.parseInt(values.get("window")));
+            if (values.containsKey("report-interval"))
+                options.setReportInterval(Integer.parseInt(values.get("report-interval")));
+        } catch (IllegalArgumentException e) {
+            exitWithError(USAGE);
+            return;
+        }
+
+        try {
+            new LoadGenerator(address, port, options).run();
+        } catch (IOException e) {
+            exitWithError(e.getMessage());
+        }
+    }
+
+    /**
+     * Разбирает необязательные параметры вида --name=value (или --name без значения).
+     *
+     * @param args Аргументы командной строки.
+     * @param from Индекс первого разбираемого аргумента.
+     * @param positional Список для остальных аргументов или null, если они не допускаются.
+     *
+     * @return Значения параметров по их именам.
+     */
+    private static Map<String, String> parseOptions(String[] args, int from, List<String> positional) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                if (positional == null)
+                    exitWithError(USAGE);
+                else
+                    positional.add(args[i]);
+                continue;
+            }
+            int pos = args[i].indexOf('=');
+            if (pos == -1)
+                options.put(args[i].substring(2), "");
+            else
+                options.put(args[i].substring(2, pos), args[i].substring(pos + 1));
+        }
+        return options;
+    }
+
     private static void exitWithError(String message) {
         System.out.println(message);
         System.exit(-1);
@@ -0,0 +1,63 @@
+package org.polushin.networks.file_transfer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Локальная HTTP-точка, отдающая метрики передачи в текстовом формате Prometheus по пути /metrics.
+ * Принимает соединения только с адреса обратной петли.
+ */
+class MetricsEndpoint implements Closeable {
+
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final TransferMetrics metrics;
+    private final HttpServer server;
+
+    /**
+     * @param port Порт точки.
+     * @param metrics Отдаваемые метрики.
+     */
+    MetricsEndpoint(int port, TransferMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, this::handle);
+    }
+
+    void start() {
+        server.start();
+        System.out.format("Metrics are available at http://%s:%d%s\n", server.getAddress().getHostString(),
+                          server.getAddress().getPort(), PATH);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder();
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(Utils.CHARSET);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
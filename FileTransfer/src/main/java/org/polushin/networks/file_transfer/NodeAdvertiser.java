@@ -0,0 +1,99 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.UUID;
+
+/**
+ * Периодическая рассылка объявлений сервера-хранилища в Multicast-группу (формат см. в {@link StorageNode}).
+ *
+ * В объявлении передаются место, доступное для новых загрузок (с учетом зарезервированного, см. {@link SpaceLedger}),
+ * количество открытых соединений и скорость приема за период между объявлениями. Отправители, которые
+ * выбирают сервер сами (см. {@link NodeDirectory}), считают сервер пропавшим, если объявлений от него
+ * нет несколько периодов.
+ */
+class NodeAdvertiser {
+
+    // Период рассылки объявлений
+    static final long ADVERTISE_INTERVAL = 1000;
+
+    private final InetSocketAddress group;
+    private final int port;
+    private final SpaceLedger spaceLedger;
+    private final TransferMetrics metrics;
+    private final UUID id = UUID.randomUUID();
+    private final DatagramChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(StorageNode.ADVERTISEMENT_SIZE);
+    private final Thread thread;
+    private volatile boolean running = false;
+
+    /**
+     * @param group Multicast-группа объявлений.
+     * @param port Порт, на котором сервер принимает файлы.
+     */
+    NodeAdvertiser(InetAddress group, int port, SpaceLedger spaceLedger, TransferMetrics metrics) throws IOException {
+        this.group = new InetSocketAddress(group, StorageNode.DISCOVERY_PORT);
+        this.port = port;
+        this.spaceLedger = spaceLedger;
+        this.metrics = metrics;
+        channel = DatagramChannel.open(group instanceof Inet6Address ? StandardProtocolFamily.INET6 :
+                                       StandardProtocolFamily.INET);
+        thread = new Thread(this::run, "node-advertiser");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+        System.out.format("Advertising storage node on %s.\n", group);
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() {
+        long sequence = 0;
+        long lastTime = System.currentTimeMillis();
+        long lastReceived = metrics.getBytesReceived();
+        // Ошибка рассылки уже выведена
+        boolean reported = false;
+        while (running) {
+            long time = System.currentTimeMillis();
+            long received = metrics.getBytesReceived();
+            long throughput = (received - lastReceived) * 1000 / Math.max(1, time - lastTime);
+            lastTime = time;
+            lastReceived = received;
+
+            StorageNode.encode(buffer, id, ++sequence, port, spaceLedger.getAvailable(),
+                               (int) metrics.getActiveConnections(), throughput);
+            try {
+                channel.send(buffer, group);
+                reported = false;
+            } catch (IOException e) {
+                if (!running)
+                    return;
+                if (!reported)
+                    System.out.format("Cannot advertise storage node: %s\n", e.getMessage());
+                reported = true;
+            }
+
+            try {
+                Thread.sleep(ADVERTISE_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.polushin.networks.file_transfer;
+
+import org.polushin.networks.find_copies.PeerTable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Таблица серверов-хранилищ, обнаруженных по их объявлениям (см. {@link NodeAdvertiser}).
+ *
+ * Объявления принимаются отдельным потоком через селектор. Сервер считается пропавшим, если от него нет
+ * объявлений {@link #NODE_TIMEOUT} миллисекунд; сроки отслеживает {@link PeerTable}. О появлении и пропаже
+ * серверов сообщается слушателям из потока приема вне блокировки таблицы.
+ */
+class NodeDirectory implements Closeable {
+
+    // Сервер пропал, если пропущены три объявления подряд
+    static final long NODE_TIMEOUT = 3 * NodeAdvertiser.ADVERTISE_INTERVAL;
+    // Точность срока сервера
+    private static final long EXPIRY_TICK = 250;
+
+    private final PeerTable<StorageNode> nodes = new PeerTable<>(NODE_TIMEOUT, EXPIRY_TICK);
+    private final List<PeerTable.Listener<StorageNode>> listeners = new CopyOnWriteArrayList<>();
+    // Появившиеся и пропавшие серверы, о которых еще не сообщено слушателям. Используются только потоком приема
+    private final List<StorageNode> joined = new ArrayList<>();
+    private final List<StorageNode> left = new ArrayList<>();
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(StorageNode.ADVERTISEMENT_SIZE + 1);
+    private final Thread thread;
+    private final long startTime = System.currentTimeMillis();
+    private volatile boolean running = true;
+
+    /**
+     * Присоединяется к группе объявлений на всех включенных интерфейсах с адресами семейства группы.
+     *
+     * @param group Multicast-группа объявлений.
+     */
+    NodeDirectory(InetAddress group) throws IOException {
+        if (!group.isMulticastAddress())
+            throw new IllegalArgumentException(String.format("Address %s is not multicast.", group));
+        boolean ipv6 = group instanceof Inet6Address;
+        channel = DatagramChannel.open(ipv6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(StorageNode.DISCOVERY_PORT));
+            channel.configureBlocking(false);
+            boolean joinedGroup = false;
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if (networkInterface.isUp() && networkInterface.supportsMulticast() &&
+                    hasAddress(networkInterface, ipv6)) {
+                    channel.join(group, networkInterface);
+                    joinedGroup = true;
+                }
+            }
+            if (!joinedGroup)
+                throw new IOException("No network interface to join " + group.getHostAddress());
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        nodes.addListener(new PeerTable.Listener<StorageNode>() {
+            @Override
+            public void onJoin(StorageNode node) {
+                joined.add(node);
+            }
+
+            @Override
+            public void onLeave(StorageNode node) {
+                left.add(node);
+            }
+        });
+        thread = new Thread(this::run, "node-directory");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void addListener(PeerTable.Listener<StorageNode> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return Серверы, от которых недавно были объявления.
+     */
+    synchronized List<StorageNode> getNodes() {
+        return new ArrayList<>(nodes.getPeers());
+    }
+
+    /**
+     * Ждет, пока каждый работающий сервер успеет объявить о себе хотя бы раз, чтобы первые файлы
+     * не достались единственному серверу, обнаруженному раньше остальных.
+     *
+     * @param timeout Наибольшее время ожидания с момента создания таблицы в миллисекундах, если серверов нет.
+     *
+     * @return false, если ни одного сервера не обнаружено.
+     */
+    synchronized boolean awaitNodes(long timeout) {
+        long deadline = startTime + timeout;
+        long complete = startTime + NodeAdvertiser.ADVERTISE_INTERVAL + EXPIRY_TICK;
+        long remaining;
+        while ((remaining = (nodes.size() == 0 ? deadline : complete) - System.currentTimeMillis()) > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return nodes.size() > 0;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean hasAddress(NetworkInterface networkInterface, boolean ipv6) {
+        Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+        while (addresses.hasMoreElements()) {
+            if (addresses.nextElement() instanceof Inet6Address == ipv6)
+                return true;
+        }
+        return false;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                long timeout;
+                synchronized (this) {
+                    long now = System.currentTimeMillis();
+                    nodes.expire(now);
+                    timeout = Math.min(nodes.getNextExpiry() - now, NODE_TIMEOUT);
+                }
+                notifyListeners();
+
+                // Нулевой таймаут интерпретируется как вечный
+                if (selector.select(Math.max(1, timeout)) == 0)
+                    continue;
+                selector.selectedKeys().clear();
+                receive();
+                notifyListeners();
+            }
+        } catch (IOException e) {
+            if (running)
+                System.out.format("Storage nodes discovery stopped: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Принимает накопившиеся объявления.
+     */
+    private void receive() throws IOException {
+        SocketAddress source;
+        while (true) {
+            buffer.clear();
+            if ((source = channel.receive(buffer)) == null)
+                return;
+            if (!StorageNode.isAdvertisement(buffer))
+                continue;
+            StorageNode advertisement = new StorageNode(buffer, ((InetSocketAddress) source).getAddress());
+            synchronized (this) {
+                StorageNode known = nodes.find(advertisement);
+                long now = System.currentTimeMillis();
+                if (known == null) {
+                    nodes.refresh(advertisement, now);
+                    notifyAll();
+                } else if (known.update(advertisement)) {
+                    // Повторы и запоздавшие объявления срок сервера не продлевают
+                    nodes.refresh(known, now);
+                }
+            }
+        }
+    }
+
+    private void notifyListeners() {
+        for (StorageNode node : joined) {
+            System.out.format("Storage node %s joined.\n", node);
+            for (PeerTable.Listener<StorageNode> listener : listeners)
+                listener.onJoin(node);
+        }
+        joined.clear();
+        for (StorageNode node : left) {
+            System.out.format("Storage node %s is gone.\n", node);
+            for (PeerTable.Listener<StorageNode> listener : listeners)
+                listener.onLeave(node);
+        }
+        left.clear();
+    }
+}
@@ -0,0 +1,36 @@
+package org.polushin.networks.file_transfer;
+
+/**
+ * Настройки получателя файлов.
+ */
+public class ReceiverOptions {
+
+    private int ranges = 1;
+    private long rangeThreshold = 64L * 1024 * 1024;
+
+    /**
+     * @return Количество параллельных соединений для получения одного большого файла.
+     */
+    public int getRanges() {
+        return ranges;
+    }
+
+    public void setRanges(int ranges) {
+        if (ranges < 1)
+            throw new IllegalArgumentException("Ranges count must be positive.");
+        this.ranges = ranges;
+    }
+
+    /**
+     * @return Минимальный размер файла, который получается диапазонами.
+     */
+    public long getRangeThreshold() {
+        return rangeThreshold;
+    }
+
+    public void setRangeThreshold(long rangeThreshold) {
+        if (rangeThreshold < 1)
+            throw new IllegalArgumentException("Range threshold must be positive.");
+        this.rangeThreshold = rangeThreshold;
+    }
+}
@@ -0,0 +1,186 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Возобновляемая загрузка файла.
+ *
+ * Данные принимаются в файл во временной директории хранилища. Рядом с ним хранится контрольная точка:
+ * имя и размер файла и количество байт, гарантированно записанных на диск. После разрыва соединения
+ * клиент продолжает отправку с этой позиции. Итоговое имя файла выбирается только после получения
+ * всего файла.
+ */
+class ResumableUpload implements Closeable {
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final ResumableUploads registry;
+    private final String key;
+    private final String filename;
+    private final long size;
+    private final File dataFile;
+    private final File checkpointFile;
+    private final FileChannel channel;
+    private final Closeable owner;
+    private long committed;
+
+    /**
+     * Открывает загрузку, продолжая ее с контрольной точки, если та относится к тому же файлу.
+     *
+     * @param registry Реестр загрузок.
+     * @param directory Директория незавершенных загрузок.
+     * @param key Ключ загрузки.
+     * @param filename Имя файла, переданное клиентом.
+     * @param size Размер файла.
+     * @param owner Соединение, принимающее загрузку.
+     */
+    ResumableUpload(ResumableUploads registry, File directory, String key, String filename, long size,
+                    Closeable owner) throws IOException {
+        this.registry = registry;
+        this.key = key;
+        this.filename = filename;
+        this.size = size;
+        this.owner = owner;
+        dataFile = new File(directory, key + DATA_SUFFIX);
+        checkpointFile = new File(directory, key + CHECKPOINT_SUFFIX);
+
+        committed = readCheckpoint();
+        RandomAccessFile output = new RandomAccessFile(dataFile, "rw");
+        try {
+            // Данные после контрольной точки могли не дойти до диска
+            if (output.length() < committed)
+                committed = 0;
+            output.setLength(committed);
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+        channel = output.getChannel();
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Количество байт, записанных на диск на момент последней контрольной точки.
+     */
+    long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * @return Канал файла с принимаемыми данными.
+     */
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    Closeable getOwner() {
+        return owner;
+    }
+
+    /**
+     * Сбрасывает принятые данные на диск и сохраняет контрольную точку.
+     *
+     * @param offset Количество принятых байт от начала файла.
+     */
+    void checkpoint(long offset) throws IOException {
+        channel.force(false);
+
+        // Контрольная точка заменяется целиком, чтобы после сбоя не остаться с наполовину записанной
+        File temp = new File(checkpointFile.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream fileOutput = new FileOutputStream(temp)) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            output.writeUTF(filename);
+            output.writeLong(size);
+            output.writeLong(offset);
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        committed = offset;
+    }
+
+    /**
+     * Сохраняет контрольную точку по фактически записанным данным. Используется после разрыва соединения.
+     */
+    void checkpointReceived() throws IOException {
+        // Данные записываются последовательно, поэтому весь файл до его конца уже получен
+        long received = Math.min(channel.size(), size);
+        if (received > committed)
+            checkpoint(received);
+    }
+
+    /**
+     * Отбрасывает данные, начиная с указанной позиции, и сохраняет ее контрольной точкой.
+     * Используется, если часть принятых данных испорчена при передаче.
+     *
+     * @param offset Позиция первого испорченного байта.
+     */
+    void rollback(long offset) throws IOException {
+        channel.truncate(offset);
+        checkpoint(offset);
+    }
+
+    /**
+     * Фиксирует полностью полученный файл в хранилище под свободным именем и удаляет контрольную точку.
+     *
+     * @param committer Фиксация файлов хранилища.
+     *
+     * @return Сохраненный файл.
+     */
+    File complete(FileCommitter committer) throws IOException {
+        channel.close();
+        // Ключ загрузки освобождается только после фиксации, поэтому повторная отправка ее не застанет
+        File file = committer.commitAndWait(dataFile, filename);
+        if (!checkpointFile.delete() && checkpointFile.exists())
+            System.out.format("Cannot delete checkpoint of \"%s\"\n", filename);
+        return file;
+    }
+
+    /**
+     * Закрывает файл и освобождает ключ загрузки. Незавершенная загрузка остается на диске.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            registry.release(this);
+        }
+    }
+
+    /**
+     * @return Сохраненная позиция, если контрольная точка относится к тому же файлу, иначе 0.
+     */
+    private long readCheckpoint() {
+        if (!checkpointFile.exists())
+            return 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(checkpointFile)))) {
+            String savedName = input.readUTF();
+            long savedSize = input.readLong();
+            long offset = input.readLong();
+            if (savedName.equals(filename) && savedSize == size && offset >= 0 && offset <= size)
+                return offset;
+        } catch (IOException e) {
+            System.out.format("Cannot read checkpoint of \"%s\": %s\n", filename, e.getMessage());
+        }
+        return 0;
+    }
+}
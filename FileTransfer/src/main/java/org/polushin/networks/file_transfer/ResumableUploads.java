@@ -0,0 +1,81 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Реестр возобновляемых загрузок, общий для всех соединений сервера.
+ *
+ * Незавершенные загрузки хранятся в скрытой директории хранилища, поэтому они не занимают имена
+ * сохраненных файлов и переживают перезапуск сервера.
+ */
+class ResumableUploads {
+
+    // Директория незавершенных загрузок внутри хранилища
+    static final String PARTIAL_DIRECTORY = ".partial";
+    // Время ожидания, пока прежнее соединение освободит загрузку
+    private static final long TAKEOVER_TIMEOUT = 5 * 1000;
+
+    private final File directory;
+    // Загрузки, принимаемые в данный момент, по ключам
+    private final Map<String, ResumableUpload> active = new HashMap<>();
+
+    /**
+     * @param storage Директория хранилища.
+     */
+    ResumableUploads(File storage) {
+        directory = new File(storage, PARTIAL_DIRECTORY);
+    }
+
+    /**
+     * Открывает загрузку с указанным ключом.
+     *
+     * Если загрузку еще принимает другое соединение, оно считается оборванным: клиент не стал бы
+     * возобновлять отправку по живому соединению. Такое соединение закрывается.
+     *
+     * @param key Ключ загрузки.
+     * @param filename Имя файла, переданное клиентом.
+     * @param size Размер файла.
+     * @param owner Соединение, принимающее загрузку.
+     *
+     * @return Загрузка, которую необходимо закрыть после приема.
+     */
+    synchronized ResumableUpload open(String key, String filename, long size, Closeable owner) throws IOException {
+        ResumableUpload previous = active.get(key);
+        if (previous != null) {
+            try {
+                previous.getOwner().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            long deadline = System.currentTimeMillis() + TAKEOVER_TIMEOUT;
+            while (active.containsKey(key)) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0)
+                    throw new IOException(String.format("Upload of \"%s\" is still in progress", filename));
+                try {
+                    wait(timeout);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory for partial uploads.");
+        ResumableUpload upload = new ResumableUpload(this, directory, key, filename, size, owner);
+        active.put(key, upload);
+        return upload;
+    }
+
+    /**
+     * Освобождает ключ закрытой загрузки.
+     */
+    synchronized void release(ResumableUpload upload) {
+        active.remove(upload.getKey(), upload);
+        notifyAll();
+    }
+}
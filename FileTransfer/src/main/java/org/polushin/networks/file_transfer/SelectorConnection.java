@@ -0,0 +1,379 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import static org.polushin.networks.file_transfer.Utils.*;
+
+/**
+ * Состояние неблокирующего соединения с клиентом.
+ *
+ * Реализует тот же протокол, что и {@link ClientHandler}, в виде конечного автомата,
+ * который продвигается по мере поступления данных в канал.
+ */
+class SelectorConnection {
+
+    // Максимальная длина имени файла в байтах (4096 символов, до 4-х байт каждый)
+    private static final int MAX_FILENAME_SIZE = 4096 * 4;
+    // Размер буфера неотправленных ответов сервера
+    private static final int RESPONSES_BUFFER_SIZE = 64;
+    // Ограничение чтений из канала за пробуждение, чтобы один клиент не задерживал остальные соединения потока
+    private static final int MAX_BATCH = 16;
+
+    /**
+     * Этапы обработки запроса.
+     */
+    private enum State {
+        FILE_SIZE,
+        FILENAME_SIZE,
+        FILENAME,
+        BODY,
+        // Ожидание фиксации принятого файла: новые запросы не принимаются
+        COMMIT,
+        // Ожидание отправки последних ответов перед закрытием соединения
+        CLOSING
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final SpaceLedger spaceLedger;
+    private final FileCommitter committer;
+    private final TransferMetrics metrics;
+    // Поток обработчика, в котором продолжается работа после фиксации файла
+    private final Executor worker;
+    private final InetAddress address;
+
+    private final ByteBuffer sizesBuffer = ByteBuffer.allocate(LONG_IN_BYTES_SIZE);
+    // Ответы сервера, ожидающие отправки (буфер в режиме записи)
+    private final ByteBuffer responses = ByteBuffer.allocate(RESPONSES_BUFFER_SIZE);
+    private ByteBuffer filenameBuffer;
+
+    private State state;
+    private long fileSize;
+    private String filename;
+    private File temp;
+    // Место, зарезервированное под принимаемый файл
+    private SpaceLedger.Reservation reservation;
+    private FileChannel fileChannel;
+    private long received;
+    // Момент получения запроса загрузки
+    private long begin;
+    // Момент начала приема тела файла
+    private long bodyBegin;
+    private boolean closed = false;
+
+    SelectorConnection(SocketChannel channel, SelectionKey key, SpaceLedger spaceLedger, FileCommitter committer,
+                       TransferMetrics metrics, Executor worker) {
+        this.channel = channel;
+        this.key = key;
+        this.spaceLedger = spaceLedger;
+        this.committer = committer;
+        this.metrics = metrics;
+        this.worker = worker;
+        address = channel.socket().getInetAddress();
+        metrics.connectionOpened();
+        expectFileSize();
+    }
+
+    /**
+     * Обрабатывает поступившие данные.
+     *
+     * @param bodyBuffer Общий буфер для приема тела файла.
+     */
+    void onReadable(ByteBuffer bodyBuffer) throws IOException {
+        // Пока отправка ответов заблокирована, новые запросы не принимаются. Непрочитанные данные
+        // остаются в сокете, и селектор снова сообщит о готовности канала
+        for (int reads = 0; reads < MAX_BATCH && state != State.CLOSING && state != State.COMMIT &&
+                            responses.hasRemaining(); reads++) {
+            boolean completed;
+            switch (state) {
+                case FILE_SIZE:
+                    completed = readFully(sizesBuffer) && onFileSize();
+                    break;
+                case FILENAME_SIZE:
+                    completed = readFully(sizesBuffer) && onFilenameSize();
+                    break;
+                case FILENAME:
+                    completed = readFully(filenameBuffer) && onFilename();
+                    break;
+                case BODY:
+                    completed = readBody(bodyBuffer);
+                    break;
+                default:
+                    completed = false;
+            }
+            if (!completed || !channel.isOpen())
+                break;
+        }
+
+        if (channel.isOpen())
+            flushResponses();
+    }
+
+    /**
+     * Продолжает отправку ответов, не поместившихся в буфер сокета.
+     */
+    void onWritable() throws IOException {
+        flushResponses();
+    }
+
+    /**
+     * Закрывает соединение и открытый файл.
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        metrics.connectionClosed();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        closeFile();
+        deleteTemp();
+        releaseSpace();
+    }
+
+    private boolean onFileSize() {
+        fileSize = sizesBuffer.getLong(0);
+        begin = TransferMetrics.begin();
+        // Если размер файла равен 0, передачу следует завершить
+        if (fileSize == 0) {
+            state = State.CLOSING;
+            return false;
+        }
+
+        // Расширенный протокол не поддерживается: отвечаем так же, как сервер без его поддержки,
+        // и продолжаем работать по исходному протоколу
+        if (fileSize != PROTOCOL_HANDSHAKE)
+            reservation = spaceLedger.reserve(fileSize);
+        if (reservation == null) {
+            if (fileSize != PROTOCOL_HANDSHAKE)
+                metrics.failed(0);
+            respond(ServerResponses.NOT_ENOUGH_FREE_SPACE);
+            expectFileSize();
+            return true;
+        }
+
+        // Подтверждаем отправку
+        respond(ServerResponses.UPLOAD_APPROVED);
+        metrics.approved(begin, fileSize);
+        clearSizesBuffer();
+        sizesBuffer.position(LONG_IN_BYTES_SIZE - FILENAME_LEN_SIZE);
+        state = State.FILENAME_SIZE;
+        return true;
+    }
+
+    private boolean onFilenameSize() {
+        int size = sizesBuffer.getInt(INT_IN_BYTES_SIZE);
+        if (size > MAX_FILENAME_SIZE) {
+            System.out.format("Too long filename from %s\n", address);
+            respond(ServerResponses.UNKNOWN_ERROR);
+            state = State.CLOSING;
+            return false;
+        }
+        filenameBuffer = ByteBuffer.allocate(size);
+        state = State.FILENAME;
+        return true;
+    }
+
+    private boolean onFilename() {
+        // Простой протокол не передает пути
+        filename = new File(new String(filenameBuffer.array(), 0, filenameBuffer.limit(), CHARSET)).getName();
+        filenameBuffer = null;
+        temp = committer.tempFile();
+        try {
+            fileChannel = new FileOutputStream(temp).getChannel();
+        } catch (IOException e) {
+            failUpload(e);
+            return false;
+        }
+        System.out.format("Uploading \"%s\" from %s...\n", filename, address);
+        received = 0;
+        bodyBegin = System.nanoTime();
+        state = State.BODY;
+        return true;
+    }
+
+    /**
+     * Принимает очередную порцию тела файла и записывает ее на диск.
+     *
+     * @return true, если часть данных была принята и обработку можно продолжать.
+     */
+    private boolean readBody(ByteBuffer bodyBuffer) throws IOException {
+        bodyBuffer.clear();
+        if (bodyBuffer.remaining() > fileSize - received)
+            bodyBuffer.limit((int) (fileSize - received));
+
+        int len = channel.read(bodyBuffer);
+        if (len == -1)
+            throw new IOException(String.format("Cannot receive file from %s", address));
+        if (len == 0)
+            return false;
+
+        bodyBuffer.flip();
+        try {
+            while (bodyBuffer.hasRemaining())
+                fileChannel.write(bodyBuffer);
+        } catch (IOException e) {
+            failUpload(e);
+            return false;
+        }
+
+        received += len;
+        metrics.received().add(len);
+        reservation.written(len);
+        if (received == fileSize) {
+            closeFile();
+            long average = TransferMetrics.speed(bodyBegin, received);
+            // Фиксация может ждать сброса на диск, поэтому выполняется вне потока селектора
+            File committed = temp;
+            temp = null;
+            state = State.COMMIT;
+            SpaceLedger.Reservation committing = reservation;
+            reservation = null;
+            committer.commit(committed, filename).whenComplete(committing::complete).whenComplete(
+                    (file, error) -> worker.execute(() -> onCommitted(file, error, average)));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Подтверждает получение зафиксированного файла и продолжает прием запросов.
+     */
+    private void onCommitted(File file, Throwable error, long average) {
+        if (error == null)
+            metrics.stored(begin, fileSize, average);
+        else
+            metrics.failed(fileSize);
+        if (!channel.isOpen())
+            return;
+        if (error != null) {
+            error.printStackTrace();
+            respond(ServerResponses.UNKNOWN_ERROR);
+            state = State.CLOSING;
+        } else {
+            System.out.format("File \"%s\" from %s stored. Average speed: %s\n", file.getName(), address,
+                              formatSpeed(average));
+            // Подтверждаем получение
+            respond(ServerResponses.FILE_SAVED);
+            expectFileSize();
+        }
+        try {
+            flushResponses();
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Сообщает клиенту об ошибке сохранения файла и закрывает соединение после отправки ответа.
+     */
+    private void failUpload(IOException e) {
+        e.printStackTrace();
+        closeFile();
+        deleteTemp();
+        releaseSpace();
+        respond(ServerResponses.UNKNOWN_ERROR);
+        state = State.CLOSING;
+    }
+
+    private void expectFileSize() {
+        clearSizesBuffer();
+        sizesBuffer.position(LONG_IN_BYTES_SIZE - FILE_LEN_SIZE);
+        state = State.FILE_SIZE;
+    }
+
+    /**
+     * Очищает буфер размеров и заполняет его нулями.
+     */
+    private void clearSizesBuffer() {
+        sizesBuffer.putLong(0, 0).clear();
+    }
+
+    /**
+     * Дочитывает данные в буфер.
+     *
+     * @return true, если буфер заполнен полностью.
+     */
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+        if (channel.read(buffer) == -1) {
+            // Разрыв соединения между запросами не считается ошибкой
+            if (state == State.FILE_SIZE && sizesBuffer.position() == LONG_IN_BYTES_SIZE - FILE_LEN_SIZE) {
+                System.out.println("Disconnected " + address);
+                close();
+                return false;
+            }
+            throw new IOException("Cannot read bytes");
+        }
+        return !buffer.hasRemaining();
+    }
+
+    private void respond(ServerResponses response) {
+        responses.put((byte) response.ordinal());
+    }
+
+    /**
+     * Отправляет накопленные ответы. Если сокет не принимает данные, ожидает готовности на запись,
+     * а при переполнении буфера ответов приостанавливает чтение запросов.
+     */
+    private void flushResponses() throws IOException {
+        responses.flip();
+        channel.write(responses);
+        responses.compact();
+
+        if (responses.position() > 0) {
+            int ops = SelectionKey.OP_WRITE;
+            if (responses.hasRemaining() && state != State.CLOSING && state != State.COMMIT)
+                ops |= SelectionKey.OP_READ;
+            key.interestOps(ops);
+        } else if (state == State.CLOSING) {
+            System.out.println("Disconnected " + address);
+            close();
+        } else {
+            // Пока файл фиксируется, запросы не читаются
+            key.interestOps(state == State.COMMIT ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    private void closeFile() {
+        if (fileChannel == null)
+            return;
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        fileChannel = null;
+    }
+
+    private void deleteTemp() {
+        if (temp == null)
+            return;
+        if (!temp.delete() && temp.exists())
+            System.out.format("Cannot delete incomplete file \"%s\"\n", temp.getName());
+        temp = null;
+    }
+
+    /**
+     * Освобождает место неудавшейся загрузки.
+     */
+    private void releaseSpace() {
+        if (reservation == null)
+            return;
+        metrics.failed(fileSize);
+        reservation.release();
+        reservation = null;
+    }
+}
@@ -0,0 +1,213 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Неблокирующий движок сервера-хранилища.
+ *
+ * Входящие соединения принимаются отдельным потоком и по кругу распределяются между обработчиками,
+ * каждый из которых обслуживает свои соединения в одном потоке с помощью собственного {@link Selector}.
+ */
+class SelectorEngine {
+
+    // Размер общего для всех соединений одного обработчика буфера приема тела файла
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    // Время ожидания завершения потоков обработчиков при остановке
+    private static final long STOP_TIMEOUT = 5 * 1000;
+
+    private final SpaceLedger spaceLedger;
+    private final FileCommitter committer;
+    private final TransferMetrics metrics;
+    private final ServerSocketChannel serverChannel;
+    private final Worker[] workers;
+    private final Thread accepterThread;
+
+    private volatile boolean running = false;
+
+    SelectorEngine(int port, SpaceLedger spaceLedger, FileCommitter committer, TransferMetrics metrics,
+                   int threads) throws IOException {
+        this.spaceLedger = spaceLedger;
+        this.committer = committer;
+        this.metrics = metrics;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++)
+            workers[i] = new Worker(i);
+        accepterThread = new Thread(this::run, "selector-accepter");
+    }
+
+    /**
+     * Запускает обработчики и прием входящих соединений.
+     */
+    void start() {
+        if (running)
+            return;
+        running = true;
+        for (Worker worker : workers)
+            worker.thread.start();
+        accepterThread.start();
+    }
+
+    /**
+     * Останавливает прием соединений и закрывает все обслуживаемые соединения.
+     */
+    void stop() {
+        if (!running)
+            return;
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Worker worker : workers)
+            worker.selector.wakeup();
+        try {
+            for (Worker worker : workers)
+                worker.thread.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() {
+        System.out.println("Server started.");
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                workers[next].register(channel);
+                next = (next + 1) % workers.length;
+            } catch (IOException e) {
+                if (serverChannel.isOpen())
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Поток, обслуживающий часть соединений через собственный селектор.
+     */
+    private class Worker implements Runnable, Executor {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Действия других потоков над соединениями (например, завершение фиксации файла)
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        // Поток обработчика один, поэтому буфер приема может быть общим для всех его соединений
+        private final ByteBuffer bodyBuffer = ByteBuffer.allocateDirect(BODY_BUFFER_SIZE);
+
+        Worker(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "selector-worker-" + index);
+        }
+
+        /**
+         * Передает новое соединение в обработку этому потоку.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Выполняет действие в потоке этого обработчика.
+         */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPending();
+                    runTasks();
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        handleKey(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new SelectorConnection(channel, key, spaceLedger, committer, metrics, this));
+                    System.out.println("Connected " + channel.socket().getInetAddress());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+
+        private void handleKey(SelectionKey key) {
+            SelectorConnection connection = (SelectorConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable())
+                    connection.onWritable();
+                if (key.isValid() && key.isReadable())
+                    connection.onReadable(bodyBuffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                connection.close();
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys())
+                if (key.attachment() != null)
+                    ((SelectorConnection) key.attachment()).close();
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null)
+                closeQuietly(channel);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.polushin.networks.file_transfer;
+
+/**
+ * Настройки отправителя файлов.
+ */
+public class SenderOptions {
+
+    private int window = 64;
+    private int stripes = 1;
+    private long stripeThreshold = 64L * 1024 * 1024;
+    private boolean resume = false;
+    private int retries = 5;
+    private long resumeThreshold = 64L * 1024 * 1024;
+    private boolean deduplication = false;
+    private long deduplicationThreshold = 1024 * 1024;
+    private boolean compression = false;
+    private int connections = 1;
+    private boolean delta = false;
+    private long deltaThreshold = 1024 * 1024;
+    private boolean checksum = false;
+    private int metricsPort = 0;
+
+    /**
+     * @return Максимальное количество файлов, отправленных без подтверждения сохранения.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("Window must be positive.");
+        this.window = window;
+    }
+
+    /**
+     * @return Количество параллельных соединений для загрузки одного большого файла.
+     */
+    public int getStripes() {
+        return stripes;
+    }
+
+    public void setStripes(int stripes) {
+        if (stripes < 1)
+            throw new IllegalArgumentException("Stripes count must be positive.");
+        this.stripes = stripes;
+    }
+
+    /**
+     * @return Минимальный размер файла, который загружается частями.
+     */
+    public long getStripeThreshold() {
+        return stripeThreshold;
+    }
+
+    public void setStripeThreshold(long stripeThreshold) {
+        if (stripeThreshold < 1)
+            throw new IllegalArgumentException("Stripe threshold must be positive.");
+        this.stripeThreshold = stripeThreshold;
+    }
+
+    /**
+     * @return true, если после разрыва соединения отправитель подключается заново и продолжает загрузку.
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @return Количество попыток переподключения и повторной отправки файла без продвижения загрузки.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        if (retries < 0)
+            throw new IllegalArgumentException("Retries count must not be negative.");
+        this.retries = retries;
+    }
+
+    /**
+     * @return Минимальный размер файла, загрузка которого продолжается с места разрыва.
+     * Файлы меньшего размера после разрыва отправляются заново целиком.
+     */
+    public long getResumeThreshold() {
+        return resumeThreshold;
+    }
+
+    public void setResumeThreshold(long resumeThreshold) {
+        if (resumeThreshold < 0)
+            throw new IllegalArgumentException("Resume threshold must not be negative.");
+        this.resumeThreshold = resumeThreshold;
+    }
+
+    /**
+     * @return true, если перед загрузкой файла на сервере ищется файл с тем же содержимым.
+     */
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+
+    public void setDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    /**
+     * @return Минимальный размер файла, для которого ищется копия. Мелкие файлы дешевле отправить сразу.
+     */
+    public long getDeduplicationThreshold() {
+        return deduplicationThreshold;
+    }
+
+    public void setDeduplicationThreshold(long deduplicationThreshold) {
+        if (deduplicationThreshold < 0)
+            throw new IllegalArgumentException("Deduplication threshold must not be negative.");
+        this.deduplicationThreshold = deduplicationThreshold;
+    }
+
+    /**
+     * @return true, если тела файлов передаются сжатыми блоками (при поддержке сервером).
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return Количество соединений, между которыми распределяются файлы (см. {@link UploadPool}).
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        if (connections < 1)
+            throw new IllegalArgumentException("Connections count must be positive.");
+        this.connections = connections;
+    }
+
+    /**
+     * @return true, если файлы, уже сохраненные на сервере под тем же именем, обновляются передачей
+     * только измененных данных.
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * @return Минимальный размер файла, который обновляется разностью. Мелкие файлы дешевле отправить целиком.
+     */
+    public long getDeltaThreshold() {
+        return deltaThreshold;
+    }
+
+    public void setDeltaThreshold(long deltaThreshold) {
+        if (deltaThreshold < 0)
+            throw new IllegalArgumentException("Delta threshold must not be negative.");
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    /**
+     * @return true, если вместе с телами файлов отправляются контрольные суммы их блоков (при поддержке сервером).
+     * Данные при этом передаются через память процесса, а не напрямую из файла в сокет.
+     */
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return Порт локальной точки с метриками в формате Prometheus (0 - точка не запускается).
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        if (metricsPort < 0 || metricsPort > 65535)
+            throw new IllegalArgumentException("Invalid metrics port.");
+        this.metricsPort = metricsPort;
+    }
+}
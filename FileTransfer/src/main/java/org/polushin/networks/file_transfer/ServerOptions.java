@@ -0,0 +1,248 @@
+package org.polushin.networks.file_transfer;
+
+import java.net.InetAddress;
+
+/**
+ * Настройки сервера-хранилища.
+ */
+public class ServerOptions {
+
+    /**
+     * Способ обработки входящих соединений.
+     */
+    public enum Engine {
+        // Отдельный поток на каждое соединение (блокирующий ввод-вывод)
+        THREADS,
+        // Неблокирующий ввод-вывод, по одному селектору на ядро
+        SELECTOR
+    }
+
+    /**
+     * Способ приема тела файла в {@link ClientHandler}.
+     */
+    public enum ReceiveMode {
+        // Чтение через поток сокета в массив и запись в поток файла
+        STREAM,
+        // Передача из канала сокета в канал файла через FileChannel.transferFrom
+        TRANSFER,
+        // Чтение сокета в буферы из общего пула, запись на диск отдельными потоками (см. DiskWriters)
+        PIPELINE
+    }
+
+    /**
+     * Гарантии сохранности файлов, о получении которых сервер сообщил клиенту (см. {@link FileCommitter}).
+     */
+    public enum Durability {
+        // Данные не сбрасываются на диск принудительно и могут быть потеряны при сбое системы
+        NONE,
+        // Каждый файл и директория хранилища сбрасываются на диск перед подтверждением
+        PER_FILE,
+        // Файлы, завершенные в пределах окна, сбрасываются группой и подтверждаются вместе
+        GROUP_COMMIT
+    }
+
+    /**
+     * Размещение файлов в новом хранилище (см. {@link StorageLayout}).
+     */
+    public enum Layout {
+        // Все файлы в директории хранилища
+        FLAT,
+        // Файлы в поддиректориях по хешу имени
+        SHARDED
+    }
+
+    // Минимальный размер буфера пула, чтобы потокам записи не доставались слишком мелкие части
+    private static final int MIN_BUFFER_SIZE = 4096 * 4;
+
+    private Engine engine = Engine.THREADS;
+    private ReceiveMode receiveMode = ReceiveMode.PIPELINE;
+    private int selectorThreads = Runtime.getRuntime().availableProcessors();
+    private int buffers = 256;
+    private int bufferSize = 256 * 1024;
+    private int diskWriters = 2;
+    private Durability durability = Durability.NONE;
+    private long commitWindow = 5;
+    private Layout layout = Layout.FLAT;
+    private long cacheSize = 64L * 1024 * 1024;
+    private long globalLimit = 0;
+    private long clientLimit = 0;
+    private long spaceMargin = 0;
+    private int metricsPort = 0;
+    private InetAddress advertiseGroup = null;
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public ReceiveMode getReceiveMode() {
+        return receiveMode;
+    }
+
+    public void setReceiveMode(ReceiveMode receiveMode) {
+        this.receiveMode = receiveMode;
+    }
+
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    public void setSelectorThreads(int selectorThreads) {
+        if (selectorThreads < 1)
+            throw new IllegalArgumentException("Selector threads count must be positive.");
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * @return Количество буферов в общем пуле приема данных.
+     */
+    public int getBuffers() {
+        return buffers;
+    }
+
+    public void setBuffers(int buffers) {
+        if (buffers < 1)
+            throw new IllegalArgumentException("Buffers count must be positive.");
+        this.buffers = buffers;
+    }
+
+    /**
+     * @return Размер одного буфера пула в байтах.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < MIN_BUFFER_SIZE)
+            throw new IllegalArgumentException("Buffer size must be at least " + MIN_BUFFER_SIZE + " bytes.");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return Количество потоков записи на диск.
+     */
+    public int getDiskWriters() {
+        return diskWriters;
+    }
+
+    public void setDiskWriters(int diskWriters) {
+        if (diskWriters < 1)
+            throw new IllegalArgumentException("Disk writers count must be positive.");
+        this.diskWriters = diskWriters;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * @return Время в миллисекундах, в течение которого завершенные файлы собираются в одну группу сброса.
+     */
+    public long getCommitWindow() {
+        return commitWindow;
+    }
+
+    public void setCommitWindow(long commitWindow) {
+        if (commitWindow < 0)
+            throw new IllegalArgumentException("Commit window must not be negative.");
+        this.commitWindow = commitWindow;
+    }
+
+    /**
+     * @return Размещение файлов, если хранилище еще пустое. Размещение непустого хранилища определяется
+     * его манифестом.
+     */
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * @return Объем кеша небольших файлов для отправки клиентам в байтах (0 - кеш отключен).
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(long cacheSize) {
+        if (cacheSize < 0)
+            throw new IllegalArgumentException("Cache size must not be negative.");
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return Ограничение общей скорости передачи сервера в байт/секунду (0 - без ограничения).
+     */
+    public long getGlobalLimit() {
+        return globalLimit;
+    }
+
+    public void setGlobalLimit(long globalLimit) {
+        if (globalLimit < 0)
+            throw new IllegalArgumentException("Limit must not be negative.");
+        this.globalLimit = globalLimit;
+    }
+
+    /**
+     * @return Ограничение скорости передачи одного адреса клиента в байт/секунду (0 - без ограничения).
+     */
+    public long getClientLimit() {
+        return clientLimit;
+    }
+
+    public void setClientLimit(long clientLimit) {
+        if (clientLimit < 0)
+            throw new IllegalArgumentException("Limit must not be negative.");
+        this.clientLimit = clientLimit;
+    }
+
+    /**
+     * @return Место в байтах, которое всегда остается свободным: загрузки, которые его займут, отклоняются.
+     */
+    public long getSpaceMargin() {
+        return spaceMargin;
+    }
+
+    public void setSpaceMargin(long spaceMargin) {
+        if (spaceMargin < 0)
+            throw new IllegalArgumentException("Space margin must not be negative.");
+        this.spaceMargin = spaceMargin;
+    }
+
+    /**
+     * @return Порт локальной точки с метриками в формате Prometheus (0 - точка не запускается).
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        if (metricsPort < 0 || metricsPort > 65535)
+            throw new IllegalArgumentException("Invalid metrics port.");
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * @return Multicast-группа, в которой сервер объявляет о себе отправителям (null - сервер не объявляет о себе).
+     */
+    public InetAddress getAdvertiseGroup() {
+        return advertiseGroup;
+    }
+
+    public void setAdvertiseGroup(InetAddress advertiseGroup) {
+        if (advertiseGroup != null && !advertiseGroup.isMulticastAddress())
+            throw new IllegalArgumentException("Advertise group must be multicast address.");
+        this.advertiseGroup = advertiseGroup;
+    }
+}
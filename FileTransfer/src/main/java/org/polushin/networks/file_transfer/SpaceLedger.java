@@ -0,0 +1,166 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.File;
+
+/**
+ * Учет свободного места хранилища, общий для всех соединений.
+ *
+ * Перед подтверждением загрузки место под весь файл резервируется, поэтому одновременные загрузки
+ * не могут получить одно и то же место. Свободное место файловой системы измеряется фоновым потоком,
+ * а не при каждой загрузке. Данные, уже записанные незавершенными загрузками, измерение учитывает,
+ * поэтому они возвращаются к измеренному месту: иначе они учитывались бы дважды, в измерении и в резерве.
+ * Место сохраненного файла вычитается из последнего измерения сразу, не дожидаясь следующего.
+ */
+class SpaceLedger {
+
+    // Период измерения свободного места
+    private static final long REFRESH_INTERVAL = 1000;
+
+    private final File storage;
+    private final long margin;
+    // Свободное место по последнему измерению без данных незавершенных загрузок и за вычетом файлов,
+    // сохраненных после него
+    private long freeSpace;
+    // Место, зарезервированное незавершенными загрузками
+    private long reserved;
+    // Записанные на диск данные незавершенных загрузок
+    private long written;
+    // Записанные данные загрузок, завершенных во время текущего измерения
+    private long finishedWritten;
+    private final Thread refreshThread;
+    private volatile boolean running = false;
+
+    /**
+     * @param storage Директория хранилища.
+     * @param margin Место, которое всегда остается свободным.
+     */
+    SpaceLedger(File storage, long margin) {
+        this.storage = storage;
+        this.margin = margin;
+        freeSpace = storage.getFreeSpace();
+        refreshThread = new Thread(this::run, "space-ledger");
+        refreshThread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        refreshThread.start();
+    }
+
+    void stop() {
+        running = false;
+        refreshThread.interrupt();
+    }
+
+    /**
+     * Резервирует место под файл.
+     *
+     * @param size Размер файла.
+     *
+     * @return Резерв или null, если места недостаточно.
+     */
+    synchronized Reservation reserve(long size) {
+        if (freeSpace - reserved - margin <= size)
+            return null;
+        reserved += size;
+        return new Reservation(size);
+    }
+
+    /**
+     * @return Свободное место, доступное для новых загрузок.
+     */
+    synchronized long getAvailable() {
+        return Math.max(0, freeSpace - reserved - margin);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(REFRESH_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Записанные данные учитываются до измерения: записанное позже измерение может не учесть
+            long counted;
+            synchronized (this) {
+                counted = written;
+                finishedWritten = 0;
+            }
+            // Измерение выполняется вне блокировки, чтобы не задерживать резервирование
+            long measured = storage.getFreeSpace();
+            synchronized (this) {
+                freeSpace = measured + counted - finishedWritten;
+            }
+        }
+    }
+
+    private synchronized void finish(long size, long sizeWritten, boolean stored) {
+        reserved -= size;
+        written -= sizeWritten;
+        finishedWritten += sizeWritten;
+        if (stored)
+            freeSpace -= size;
+    }
+
+    private synchronized void written(long bytes) {
+        written += bytes;
+    }
+
+    /**
+     * Место, зарезервированное под один файл. Освобождается один раз: сохранением файла или отменой.
+     */
+    class Reservation {
+
+        private final long size;
+        // Записанная на диск часть файла
+        private long written;
+        private boolean finished = false;
+
+        private Reservation(long size) {
+            this.size = size;
+        }
+
+        /**
+         * Учитывает данные файла, записанные на диск.
+         *
+         * @param bytes Количество записанных байт.
+         */
+        synchronized void written(long bytes) {
+            if (finished)
+                return;
+            long counted = Math.min(bytes, size - written);
+            written += counted;
+            SpaceLedger.this.written(counted);
+        }
+
+        /**
+         * Отмечает, что файл сохранен и занимает зарезервированное место.
+         */
+        synchronized void stored() {
+            if (finished)
+                return;
+            finished = true;
+            finish(size, written, true);
+        }
+
+        /**
+         * Завершает резерв по результату фиксации файла.
+         */
+        void complete(Object file, Throwable error) {
+            if (error == null)
+                stored();
+            else
+                release();
+        }
+
+        /**
+         * Возвращает место, если файл не был сохранен.
+         */
+        synchronized void release() {
+            if (finished)
+                return;
+            finished = true;
+            finish(size, written, false);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.polushin.networks.file_transfer;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import static org.polushin.networks.file_transfer.Utils.formatSpeed;
+
+/**
+ * Счетчик скорости передачи одного файла.
+ *
+ * Учет очередной части не обращается к часам: время измеряется только в начале передачи
+ * и при запросе средней скорости. Текущая скорость всех передач выводится сводкой {@link TransferMetrics}.
+ * Если данные передаются сжатыми, отдельно учитывается объем, переданный по сети.
+ */
+class SpeedMeter {
+
+    private final long beginTime;
+    // Общий счетчик переданных байт или null
+    private final LongAdder total;
+    // Получатель количества байт каждой учтенной части или null
+    private final LongConsumer listener;
+
+    private long fullLen;
+    private long wireLen;
+
+    SpeedMeter() {
+        this(null);
+    }
+
+    /**
+     * @param total Общий счетчик, в котором дополнительно учитываются переданные байты, или null.
+     */
+    SpeedMeter(LongAdder total) {
+        this(total, null);
+    }
+
+    /**
+     * @param total Общий счетчик, в котором дополнительно учитываются переданные байты, или null.
+     * @param listener Получатель количества байт каждой учтенной части файла или null.
+     */
+    SpeedMeter(LongAdder total, LongConsumer listener) {
+        this.total = total;
+        this.listener = listener;
+        beginTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Учитывает переданную часть файла.
+     *
+     * @param len Количество переданных байт.
+     */
+    void add(long len) {
+        add(len, len);
+    }
+
+    /**
+     * Учитывает переданную часть файла.
+     *
+     * @param len Количество байт файла.
+     * @param wire Количество байт, переданных по сети.
+     */
+    void add(long len, long wire) {
+        fullLen += len;
+        wireLen += wire;
+        if (total != null)
+            total.add(len);
+        if (listener != null)
+            listener.accept(len);
+    }
+
+    /**
+     * @return Количество переданных байт.
+     */
+    long getTransferred() {
+        return fullLen;
+    }
+
+    /**
+     * @return Средняя скорость передачи в байт/секунду.
+     */
+    long getAverageSpeed() {
+        return fullLen * 1000 / Math.max(1, System.currentTimeMillis() - beginTime);
+    }
+
+    /**
+     * @return Средняя скорость передачи по сети в байт/секунду.
+     */
+    long getAverageWireSpeed() {
+        return wireLen * 1000 / Math.max(1, System.currentTimeMillis() - beginTime);
+    }
+
+    /**
+     * @return Описание скорости передачи по сети, если она отличается от скорости передачи файла, иначе пустая строка.
+     */
+    String formatWireSpeed() {
+        if (wireLen == fullLen)
+            return "";
+        return String.format(" (on wire %s, %d%% of size)", formatSpeed(getAverageWireSpeed()),
+                             wireLen * 100 / Math.max(1, fullLen));
+    }
+}
@@ -0,0 +1,322 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Размещение файлов в директории хранилища.
+ *
+ * В плоском размещении файл хранится прямо в директории хранилища под своим именем. В размещении
+ * с шардированием файл хранится в поддиректориях вида "3f/a0/name", выбираемых по хешу имени, поэтому
+ * в одной директории оказывается немного файлов даже при миллионах файлов в хранилище. Для такого
+ * хранилища ведется манифест: параметры размещения и журнал имен сохраненных файлов, по которому
+ * имена загружаются при запуске без обхода всех поддиректорий.
+ *
+ * Имя файла в хранилище может быть относительным путем с разделителем "/": такой файл хранится
+ * в соответствующих поддиректориях (при шардировании - внутри поддиректорий своего шарда).
+ */
+class StorageLayout implements Closeable {
+
+    // Манифест размещения с шардированием внутри хранилища
+    static final String MANIFEST_FILE = ".layout";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String SHARDED = "sharded";
+    // Количество уровней поддиректорий и количество поддиректорий на каждом уровне
+    static final int SHARD_LEVELS = 2;
+    private static final int SHARD_FAN_OUT = 256;
+
+    private final File storage;
+    private final boolean sharded;
+    // Журнал имен манифеста (только для размещения с шардированием)
+    private FileOutputStream manifestOutput;
+    private DataOutputStream manifest;
+
+    private StorageLayout(File storage, boolean sharded) {
+        this.storage = storage;
+        this.sharded = sharded;
+    }
+
+    /**
+     * Определяет размещение хранилища по его манифесту.
+     *
+     * @param storage Директория хранилища.
+     * @param requested Размещение из настроек сервера: используется, только если хранилище еще пустое.
+     */
+    static StorageLayout open(File storage, ServerOptions.Layout requested) throws IOException {
+        File manifestFile = new File(storage, MANIFEST_FILE);
+        if (manifestFile.exists()) {
+            Manifest manifest = Manifest.read(manifestFile);
+            if (!manifest.ready)
+                throw new IOException("Storage resharding is not finished, run it again.");
+            StorageLayout layout = new StorageLayout(storage, true);
+            layout.openManifest();
+            return layout;
+        }
+
+        if (requested == ServerOptions.Layout.FLAT)
+            return new StorageLayout(storage, false);
+        if (!listStoredFiles(storage, true).isEmpty())
+            throw new IOException("Storage is not empty, reshard it first.");
+        new Manifest(true, new ArrayList<>()).write(manifestFile);
+        StorageLayout layout = new StorageLayout(storage, true);
+        layout.openManifest();
+        return layout;
+    }
+
+    boolean isSharded() {
+        return sharded;
+    }
+
+    /**
+     * @param name Имя файла в хранилище.
+     *
+     * @return Расположение файла.
+     */
+    File resolve(String name) {
+        return sharded ? new File(storage, shardPath(name) + File.separator + name) : new File(storage, name);
+    }
+
+    /**
+     * Ищет сохраненный файл по имени, переданному клиентом.
+     *
+     * @return Файл или null, если его нет или имя принадлежит служебному файлу сервера.
+     */
+    File find(String name) {
+        name = normalize(name);
+        if (name == null)
+            return null;
+        File file = resolve(name);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * @param file Сохраненный файл.
+     *
+     * @return Имя файла в хранилище.
+     */
+    String nameOf(File file) {
+        Path path = storage.toPath().relativize(file.toPath());
+        StringBuilder name = new StringBuilder();
+        for (int i = sharded ? SHARD_LEVELS : 0; i < path.getNameCount(); i++) {
+            if (name.length() > 0)
+                name.append('/');
+            name.append(path.getName(i));
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return Имена файлов хранилища. Для плоского размещения - все имена в директории хранилища
+     * и ее поддиректориях.
+     */
+    List<String> names() throws IOException {
+        if (!sharded) {
+            List<String> names = new ArrayList<>();
+            collectFiles(storage, "", true, true, names);
+            return names;
+        }
+        return Manifest.read(new File(storage, MANIFEST_FILE)).names;
+    }
+
+    /**
+     * Создает поддиректории для файла.
+     *
+     * @param file Расположение файла.
+     * @param changed Директории, записи которых изменились: родительская директория файла
+     * и родители созданных директорий.
+     */
+    void prepareDirectories(File file, Set<File> changed) throws IOException {
+        File directory = file.getParentFile();
+        changed.add(directory);
+        if (directory.isDirectory())
+            return;
+        // Недостающие уровни создаются сверху вниз
+        List<File> missing = new ArrayList<>();
+        for (File current = directory; !current.isDirectory(); current = current.getParentFile())
+            missing.add(0, current);
+        for (File current : missing) {
+            // Директорию могла одновременно создать другая загрузка
+            if (!current.mkdir() && !current.isDirectory())
+                throw new IOException(String.format("Cannot create directory \"%s\"", current));
+            changed.add(current.getParentFile());
+        }
+    }
+
+    /**
+     * Записывает имя сохраненного файла в журнал манифеста.
+     *
+     * Если запись не удалась, файл остается в хранилище, но после перезапуска его имя не будет известно
+     * индексу имен и при повторном выборе будет пропущено как занятое.
+     */
+    synchronized void added(String name) {
+        if (manifest == null)
+            return;
+        try {
+            manifest.writeUTF(name);
+            manifest.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Сбрасывает журнал манифеста на диск.
+     */
+    synchronized void sync() throws IOException {
+        if (manifestOutput != null)
+            manifestOutput.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (manifest == null)
+            return;
+        manifest.close();
+        manifest = null;
+        manifestOutput = null;
+    }
+
+    private void openManifest() throws IOException {
+        manifestOutput = new FileOutputStream(new File(storage, MANIFEST_FILE), true);
+        manifest = new DataOutputStream(new BufferedOutputStream(manifestOutput));
+    }
+
+    /**
+     * @return Путь поддиректорий для имени относительно хранилища.
+     */
+    static String shardPath(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        long hash = crc.getValue();
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < SHARD_LEVELS; i++) {
+            if (i > 0)
+                path.append(File.separatorChar);
+            path.append(String.format("%02x", hash % SHARD_FAN_OUT));
+            hash /= SHARD_FAN_OUT;
+        }
+        return path.toString();
+    }
+
+    /**
+     * Приводит имя, переданное клиентом, к имени в хранилище.
+     *
+     * Разделителями считаются "/" и "\", пустые компоненты и "." отбрасываются. Имена с компонентом ".."
+     * отклоняются, как и имена, первый компонент которых совпадает с именем служебного файла сервера:
+     * такой файл в плоском хранилище заменил бы служебный.
+     *
+     * @return Имя в хранилище или null, если имя недопустимо.
+     */
+    static String normalize(String name) {
+        StringBuilder result = new StringBuilder();
+        String[] components = name.split("[/\\\\]");
+        for (String component : components) {
+            if (component.isEmpty() || component.equals("."))
+                continue;
+            if (component.equals(".."))
+                return null;
+            if (result.length() > 0)
+                result.append('/');
+            else if (isServiceFile(component))
+                return null;
+            result.append(component);
+        }
+        return result.length() == 0 ? null : result.toString();
+    }
+
+    /**
+     * @param nested Включать файлы поддиректорий.
+     *
+     * @return Имена сохраненных файлов плоского хранилища (без служебных файлов).
+     */
+    static List<String> listStoredFiles(File storage, boolean nested) {
+        List<String> result = new ArrayList<>();
+        collectFiles(storage, "", nested, false, result);
+        return result;
+    }
+
+    /**
+     * Собирает имена файлов директории плоского хранилища.
+     *
+     * @param prefix Путь директории относительно хранилища с завершающим "/" (пустой для корня).
+     */
+    private static void collectFiles(File directory, String prefix, boolean nested, boolean serviceFiles,
+                                     List<String> result) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isFile() && (serviceFiles || !prefix.isEmpty() || !isServiceFile(name)))
+                result.add(name);
+            else if (nested && file.isDirectory() && !(prefix.isEmpty() && isServiceFile(name)))
+                collectFiles(file, name + "/", true, serviceFiles, result);
+        }
+    }
+
+    /**
+     * @return true, если файл или директория с таким именем в корне хранилища принадлежит самому серверу.
+     */
+    private static boolean isServiceFile(String name) {
+        return name.equals(MANIFEST_FILE) || name.startsWith(MANIFEST_FILE + ".") ||
+               name.equals(DigestIndex.INDEX_FILE) || name.startsWith(DigestIndex.INDEX_FILE + ".") ||
+               name.startsWith(FileCommitter.TEMP_PREFIX) || name.equals(ResumableUploads.PARTIAL_DIRECTORY);
+    }
+
+    /**
+     * Содержимое манифеста: заголовок и имена сохраненных файлов.
+     */
+    static class Manifest {
+
+        // Перенос файлов в поддиректории завершен
+        final boolean ready;
+        final List<String> names;
+
+        Manifest(boolean ready, List<String> names) {
+            this.ready = ready;
+            this.names = names;
+        }
+
+        /**
+         * Записывает манифест целиком, заменяя прежний атомарно.
+         */
+        void write(File file) throws IOException {
+            File temp = new File(file.getPath() + TEMP_SUFFIX);
+            try (FileOutputStream fileOutput = new FileOutputStream(temp)) {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+                output.writeUTF(SHARDED);
+                output.writeInt(SHARD_LEVELS);
+                output.writeBoolean(ready);
+                for (String name : names)
+                    output.writeUTF(name);
+                output.flush();
+                fileOutput.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static Manifest read(File file) throws IOException {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (!SHARDED.equals(input.readUTF()) || input.readInt() != SHARD_LEVELS)
+                    throw new IOException("Unsupported storage layout.");
+                boolean ready = input.readBoolean();
+                List<String> names = new ArrayList<>();
+                try {
+                    while (true)
+                        names.add(input.readUTF());
+                } catch (EOFException | UTFDataFormatException ignored) {
+                    // Последняя запись могла быть дописана не полностью
+                }
+                return new Manifest(ready, names);
+            }
+        }
+    }
+}
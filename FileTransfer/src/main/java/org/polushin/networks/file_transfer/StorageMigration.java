@@ -0,0 +1,109 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Перенос плоского хранилища в размещение с шардированием. Выполняется при остановленном сервере.
+ *
+ * Сначала записывается манифест со списком всех переносимых файлов и отметкой о незавершенном переносе,
+ * затем файлы параллельно переносятся в свои поддиректории, и только после этого манифест отмечается
+ * готовым. Прерванный перенос продолжается повторным запуском: уже перенесенные файлы пропускаются.
+ */
+final class StorageMigration {
+
+    private StorageMigration() {
+    }
+
+    /**
+     * Переносит файлы хранилища в поддиректории.
+     *
+     * @param storage Директория хранилища.
+     * @param threads Количество потоков переноса.
+     */
+    static void reshard(File storage, int threads) throws IOException {
+        File manifestFile = new File(storage, StorageLayout.MANIFEST_FILE);
+        List<String> names;
+        if (manifestFile.exists()) {
+            StorageLayout.Manifest manifest = StorageLayout.Manifest.read(manifestFile);
+            if (manifest.ready) {
+                System.out.println("Storage is already sharded.");
+                return;
+            }
+            // Продолжаем прерванный перенос, добавляя файлы, появившиеся в корне хранилища.
+            // Поддиректории уже содержат перенесенные файлы, поэтому не просматриваются
+            names = manifest.names;
+            HashSet<String> known = new HashSet<>(names);
+            for (String name : StorageLayout.listStoredFiles(storage, false))
+                if (known.add(name))
+                    names.add(name);
+        } else {
+            names = StorageLayout.listStoredFiles(storage, true);
+        }
+        new StorageLayout.Manifest(false, names).write(manifestFile);
+
+        System.out.format("Resharding %d files with %d threads...\n", names.size(), threads);
+        long beginTime = System.currentTimeMillis();
+        AtomicInteger moved = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Каждый поток переносит свою часть списка, чтобы не создавать задачу на каждый файл
+        for (int i = 0; i < threads; i++) {
+            int first = i;
+            pool.execute(() -> {
+                for (int j = first; j < names.size(); j += threads) {
+                    if (moveToShard(storage, names.get(j)))
+                        moved.incrementAndGet();
+                    else
+                        failed.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+                System.out.format("Moved %d of %d files.\n", moved.get(), names.size());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while resharding storage.", e);
+        }
+
+        if (failed.get() > 0)
+            throw new IOException(String.format("%d files were not moved, run resharding again.", failed.get()));
+        new StorageLayout.Manifest(true, names).write(manifestFile);
+        System.out.format("Storage resharded in %d ms.\n", System.currentTimeMillis() - beginTime);
+    }
+
+    /**
+     * Переносит файл из корня хранилища в его поддиректорию.
+     *
+     * @return true, если файл перенесен, был перенесен ранее или пропал из хранилища.
+     */
+    private static boolean moveToShard(File storage, String name) {
+        File source = new File(storage, name);
+        File target = new File(storage, StorageLayout.shardPath(name) + File.separator + name);
+        if (!source.exists()) {
+            if (!target.isFile())
+                System.out.format("File \"%s\" is missing, skipped.\n", name);
+            return true;
+        }
+        try {
+            File directory = target.getParentFile();
+            // Директорию могла одновременно создать другая задача
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+                throw new IOException(String.format("Cannot create directory \"%s\"", directory));
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.format("Cannot move \"%s\": %s\n", name, e.getMessage());
+            return false;
+        }
+    }
+}
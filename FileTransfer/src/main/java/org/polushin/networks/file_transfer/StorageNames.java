@@ -0,0 +1,116 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Индекс имен файлов хранилища.
+ *
+ * Свободное имя выбирается без обращений к файловой системе: занятые имена хранятся в памяти, а для
+ * каждого имени, переданного клиентами, запоминается следующий номер копии вида "name (N).ext".
+ * Имя резервируется атомарно, поэтому одновременные загрузки с одинаковыми именами получают разные имена.
+ * Индекс строится при запуске сервера и пополняется при каждом сохранении. Имена файлов, удаленных
+ * в обход сервера, повторно не выдаются до его перезапуска.
+ */
+class StorageNames {
+
+    // Имя копии: префикс, номер в скобках и расширение исходного имени
+    private static final Pattern NUMBERED_NAME = Pattern.compile("(.*) \\((\\d{1,9})\\)");
+
+    private final StorageLayout layout;
+    // Занятые и зарезервированные имена
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    // Следующий номер копии для исходного имени
+    private final Map<String, AtomicInteger> nextNumbers = new ConcurrentHashMap<>();
+
+    /**
+     * @param layout Размещение файлов хранилища.
+     */
+    StorageNames(StorageLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Заполняет индекс именами файлов хранилища. Имена разбираются параллельно.
+     */
+    void load() {
+        List<String> existing;
+        try {
+            existing = layout.names();
+        } catch (IOException e) {
+            // Занятые имена все равно не будут заменены: файл сохраняется под именем, только если оно свободно
+            e.printStackTrace();
+            return;
+        }
+        existing.parallelStream().forEach(this::occupied);
+        if (!existing.isEmpty())
+            System.out.format("Indexed %d names of storage.\n", existing.size());
+    }
+
+    /**
+     * Резервирует свободное имя для файла.
+     *
+     * @param filename Имя файла, переданное клиентом.
+     *
+     * @return Зарезервированное имя: исходное или с номером копии.
+     *
+     * @throws IOException Имя недопустимо (см. {@link StorageLayout#normalize(String)}).
+     */
+    String reserve(String filename) throws IOException {
+        String normalized = StorageLayout.normalize(filename);
+        if (normalized == null)
+            throw new IOException(String.format("Invalid filename \"%s\"", filename));
+        filename = normalized;
+        if (names.add(filename))
+            return filename;
+
+        int pos = extensionPosition(filename);
+        String prefix = pos == -1 ? filename : filename.substring(0, pos);
+        String suffix = pos == -1 ? "" : filename.substring(pos);
+        AtomicInteger next = nextNumbers.computeIfAbsent(filename, name -> new AtomicInteger(1));
+        while (true) {
+            String candidate = String.format("%s (%d)%s", prefix, next.getAndIncrement(), suffix);
+            if (names.add(candidate))
+                return candidate;
+        }
+    }
+
+    /**
+     * Освобождает зарезервированное имя, если файл под ним так и не был сохранен.
+     */
+    void release(String name) {
+        names.remove(name);
+    }
+
+    /**
+     * Отмечает имя занятым файлом, появившимся в хранилище.
+     */
+    void occupied(String name) {
+        names.add(name);
+
+        // Копия "name (N).ext" сдвигает следующий номер для "name.ext"
+        int pos = extensionPosition(name);
+        String prefix = pos == -1 ? name : name.substring(0, pos);
+        String suffix = pos == -1 ? "" : name.substring(pos);
+        Matcher matcher = NUMBERED_NAME.matcher(prefix);
+        if (!matcher.matches())
+            return;
+        int number = Integer.parseInt(matcher.group(2));
+        nextNumbers.computeIfAbsent(matcher.group(1) + suffix, base -> new AtomicInteger(1))
+                   .accumulateAndGet(number + 1, Math::max);
+    }
+
+    /**
+     * @return Позиция точки перед расширением в последнем компоненте имени или -1.
+     */
+    private static int extensionPosition(String name) {
+        int pos = name.lastIndexOf('.');
+        return pos > name.lastIndexOf('/') ? pos : -1;
+    }
+}
@@ -0,0 +1,135 @@
+package org.polushin.networks.file_transfer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Сервер-хранилище, объявляющий о себе через Multicast (см. {@link NodeAdvertiser}), и формат его объявления.
+ *
+ * Объявление: сигнатура (4 байта), идентификатор сервера (16 байт), номер объявления (8 байт), порт (2 байта),
+ * свободное место (8 байт), количество открытых соединений (4 байта) и скорость приема за последний
+ * период в байт/секунду (8 байт). Идентификатор выбирается при запуске сервера, серверы сравниваются
+ * только по нему.
+ */
+final class StorageNode {
+
+    // Порт, на который рассылаются объявления
+    static final int DISCOVERY_PORT = 17121;
+    private static final int MAGIC = 0x46544E31; // "FTN1"
+    private static final int ID_OFFSET = 4;
+    private static final int SEQUENCE_OFFSET = ID_OFFSET + 16;
+    private static final int PORT_OFFSET = SEQUENCE_OFFSET + 8;
+    private static final int AVAILABLE_OFFSET = PORT_OFFSET + 2;
+    private static final int CONNECTIONS_OFFSET = AVAILABLE_OFFSET + 8;
+    private static final int THROUGHPUT_OFFSET = CONNECTIONS_OFFSET + 4;
+    static final int ADVERTISEMENT_SIZE = THROUGHPUT_OFFSET + 8;
+
+    private final long high;
+    private final long low;
+    private final InetSocketAddress address;
+    private volatile long sequence;
+    private volatile long available;
+    private volatile int connections;
+    private volatile long throughput;
+
+    /**
+     * Разбирает объявление.
+     *
+     * @param buffer Объявление, проверенное {@link #isAdvertisement(ByteBuffer)}.
+     * @param host Адрес, с которого пришло объявление.
+     */
+    StorageNode(ByteBuffer buffer, InetAddress host) {
+        high = buffer.getLong(ID_OFFSET);
+        low = buffer.getLong(ID_OFFSET + 8);
+        address = new InetSocketAddress(host, buffer.getShort(PORT_OFFSET) & 0xFFFF);
+        sequence = buffer.getLong(SEQUENCE_OFFSET);
+        available = buffer.getLong(AVAILABLE_OFFSET);
+        connections = buffer.getInt(CONNECTIONS_OFFSET);
+        throughput = buffer.getLong(THROUGHPUT_OFFSET);
+    }
+
+    /**
+     * Записывает объявление в начало буфера.
+     */
+    static void encode(ByteBuffer buffer, UUID id, long sequence, int port, long available, int connections,
+                       long throughput) {
+        buffer.clear();
+        buffer.putInt(MAGIC).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits())
+              .putLong(sequence).putShort((short) port).putLong(available).putInt(connections).putLong(throughput);
+        buffer.flip();
+    }
+
+    /**
+     * @param buffer Буфер после приема датаграммы (в режиме записи).
+     *
+     * @return true, если в буфере объявление сервера.
+     */
+    static boolean isAdvertisement(ByteBuffer buffer) {
+        return buffer.position() == ADVERTISEMENT_SIZE && buffer.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Обновляет состояние сервера по более новому объявлению.
+     *
+     * @return false, если объявление не новее последнего принятого.
+     */
+    boolean update(StorageNode advertisement) {
+        if (advertisement.sequence <= sequence)
+            return false;
+        sequence = advertisement.sequence;
+        available = advertisement.available;
+        connections = advertisement.connections;
+        throughput = advertisement.throughput;
+        return true;
+    }
+
+    /**
+     * @return Адрес, по которому сервер принимает файлы.
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return Место, доступное для новых загрузок, по последнему объявлению.
+     */
+    long getAvailable() {
+        return available;
+    }
+
+    /**
+     * @return Количество открытых соединений сервера по последнему объявлению.
+     */
+    int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return Скорость приема тел файлов сервером по последнему объявлению в байт/секунду.
+     */
+    long getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof StorageNode))
+            return false;
+        StorageNode node = (StorageNode) o;
+        return high == node.high && low == node.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high ^ low);
+    }
+
+    @Override
+    public String toString() {
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+}
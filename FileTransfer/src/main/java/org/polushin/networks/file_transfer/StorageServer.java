@@ -2,7 +2,8 @@ package org.polushin.networks.file_transfer;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -13,15 +14,66 @@ import java.util.concurrent.TimeUnit;
 public class StorageServer {
 
     private final File storage;
-    private final ServerSocket serverSocket;
+    private final ServerOptions options;
+    private final StorageLayout layout;
+    private final StorageNames names;
+    private final FileCommitter committer;
+    private final StripedUploads stripedUploads;
+    private final ResumableUploads resumableUploads;
+    private final DigestIndex digestIndex;
+    private final FileCache fileCache;
+    private final SpaceLedger spaceLedger;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final TransferMetrics metrics = new TransferMetrics("server");
+    // Точка с метриками или null, если она не запускается
+    private MetricsEndpoint metricsEndpoint;
+    // Рассылка объявлений или null, если сервер не объявляет о себе
+    private NodeAdvertiser advertiser;
+    // Общий пул буферов приема и потоки записи на диск (только для обработки соединений потоками)
+    private final BufferPool bufferPool;
+    private final DiskWriters diskWriters;
+    // Блокирующий канал, чтобы у принятых сокетов был SocketChannel для передачи данных без копирования
+    private final ServerSocketChannel serverChannel;
     private final ExecutorService threadpool;
     private final Thread accepterThread;
+    // Неблокирующий движок, если он выбран в настройках
+    private final SelectorEngine selectorEngine;
 
+    private final int port;
     private volatile boolean running = false;
 
     public StorageServer(int port, File storage) throws IOException {
+        this(port, storage, new ServerOptions());
+    }
+
+    public StorageServer(int port, File storage, ServerOptions options) throws IOException {
         this.storage = storage;
-        serverSocket = new ServerSocket(port);
+        this.options = options;
+        layout = StorageLayout.open(storage, options.getLayout());
+        names = new StorageNames(layout);
+        fileCache = new FileCache(options.getCacheSize());
+        spaceLedger = new SpaceLedger(storage, options.getSpaceMargin());
+        committer = new FileCommitter(storage, names, layout, fileCache, options);
+        stripedUploads = new StripedUploads(committer);
+        resumableUploads = new ResumableUploads(storage);
+        digestIndex = new DigestIndex(storage, layout, committer);
+        bandwidthLimiter = new BandwidthLimiter(options.getGlobalLimit(), options.getClientLimit());
+        metrics.addQueue(committer::getQueueDepth);
+        this.port = port;
+        if (options.getEngine() == ServerOptions.Engine.SELECTOR) {
+            selectorEngine = new SelectorEngine(port, spaceLedger, committer, metrics, options.getSelectorThreads());
+            bufferPool = null;
+            diskWriters = null;
+            serverChannel = null;
+            threadpool = null;
+            accepterThread = null;
+            return;
+        }
+        selectorEngine = null;
+        bufferPool = new BufferPool(options.getBuffers(), options.getBufferSize());
+        diskWriters = new DiskWriters(options.getDiskWriters(), bufferPool);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
         threadpool = Executors.newCachedThreadPool();
         accepterThread = new Thread(this::run);
     }
@@ -33,7 +85,21 @@ public class StorageServer {
         if (running)
             return;
         running = true;
-        accepterThread.start();
+        committer.start();
+        spaceLedger.start();
+        names.load();
+        digestIndex.start();
+        metrics.register("server-" + port);
+        metrics.startReports();
+        startMetricsEndpoint();
+        if (selectorEngine != null) {
+            selectorEngine.start();
+        } else {
+            // Ограничения скорости применяются только при обработке соединений потоками
+            bandwidthLimiter.register(port);
+            accepterThread.start();
+        }
+        startAdvertiser();
     }
 
     /**
@@ -43,8 +109,22 @@ public class StorageServer {
         if (!running)
             return;
         running = false;
+        // Отправители перестают выбирать сервер, пока завершаются текущие загрузки
+        if (advertiser != null)
+            advertiser.stop();
+        if (selectorEngine != null) {
+            System.out.println("Stopping server...");
+            selectorEngine.stop();
+            committer.stop();
+            spaceLedger.stop();
+            digestIndex.stop();
+            closeLayout();
+            fileCache.printStatistics();
+            stopMetrics();
+            return;
+        }
         try {
-            serverSocket.close();
+            serverChannel.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -55,15 +135,111 @@ public class StorageServer {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        committer.stop();
+        spaceLedger.stop();
+        digestIndex.stop();
+        closeLayout();
+        fileCache.printStatistics();
+        bandwidthLimiter.unregister();
+        stopMetrics();
+    }
+
+    private void startMetricsEndpoint() {
+        if (options.getMetricsPort() == 0)
+            return;
+        try {
+            metricsEndpoint = new MetricsEndpoint(options.getMetricsPort(), metrics);
+            metricsEndpoint.start();
+        } catch (IOException e) {
+            System.out.format("Cannot start metrics endpoint: %s\n", e.getMessage());
+        }
+    }
+
+    private void startAdvertiser() {
+        if (options.getAdvertiseGroup() == null)
+            return;
+        try {
+            advertiser = new NodeAdvertiser(options.getAdvertiseGroup(), port, spaceLedger, metrics);
+            advertiser.start();
+        } catch (IOException e) {
+            System.out.format("Cannot advertise storage node: %s\n", e.getMessage());
+        }
+    }
+
+    private void stopMetrics() {
+        metrics.stopReports();
+        metrics.unregister();
+        if (metricsEndpoint != null)
+            metricsEndpoint.close();
+    }
+
+    private void closeLayout() {
+        try {
+            layout.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    File getStorage() {
+        return storage;
+    }
+
+    ServerOptions getOptions() {
+        return options;
+    }
+
+    StorageLayout getLayout() {
+        return layout;
+    }
+
+    FileCommitter getCommitter() {
+        return committer;
+    }
+
+    StripedUploads getStripedUploads() {
+        return stripedUploads;
+    }
+
+    ResumableUploads getResumableUploads() {
+        return resumableUploads;
+    }
+
+    DigestIndex getDigestIndex() {
+        return digestIndex;
+    }
+
+    FileCache getFileCache() {
+        return fileCache;
+    }
+
+    SpaceLedger getSpaceLedger() {
+        return spaceLedger;
+    }
+
+    BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    DiskWriters getDiskWriters() {
+        return diskWriters;
     }
 
     private void run() {
         System.out.println("Server started.");
         while (running) {
             try {
-                threadpool.submit(new ClientHandler(serverSocket.accept(), storage));
+                threadpool.submit(new ClientHandler(serverChannel.accept().socket(), this));
             } catch (IOException e) {
-                if (!serverSocket.isClosed())
+                if (serverChannel.isOpen())
                     e.printStackTrace();
             }
         }
@@ -0,0 +1,76 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.polushin.networks.file_transfer.Utils.*;
+
+/**
+ * Отправляет одну часть файла по отдельному соединению.
+ */
+class StripeSender implements Runnable {
+
+    private final InetAddress host;
+    private final int port;
+    private final File file;
+    private final long key;
+    private final long offset;
+    private final long length;
+    private final TransferMetrics metrics;
+    private final Runnable onFailure;
+
+    /**
+     * @param key Ключ загрузки, выданный сервером.
+     * @param offset Смещение части в файле.
+     * @param length Размер части.
+     * @param metrics Метрики отправителя файла.
+     * @param onFailure Вызывается, если часть не удалось отправить.
+     */
+    StripeSender(InetAddress host, int port, File file, long key, long offset, long length, TransferMetrics metrics,
+                 Runnable onFailure) {
+        this.host = host;
+        this.port = port;
+        this.file = file;
+        this.key = key;
+        this.offset = offset;
+        this.length = length;
+        this.metrics = metrics;
+        this.onFailure = onFailure;
+    }
+
+    @Override
+    public void run() {
+        metrics.connectionOpened();
+        try (SocketChannel channel = FileSender.connect(host, port);
+             FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+            int features = FileSender.negotiate(channel, ProtocolFeatures.STRIPING.mask());
+            if (features == FileSender.LEGACY_PROTOCOL || (features & ProtocolFeatures.STRIPING.mask()) == 0)
+                throw new IOException("Server does not accept stripes.");
+
+            ByteBuffer header = ByteBuffer.allocate(1 + REQUEST_ID_SIZE + 2 * LONG_IN_BYTES_SIZE + FILE_LEN_SIZE);
+            header.put((byte) ClientRequests.STRIPE.ordinal()).putInt(0).putLong(key).putLong(offset);
+            FileSender.putFileSize(header, length);
+            header.flip();
+            FileSender.writeFully(channel, header);
+
+            FileSender.sendRange(fileChannel, offset, length, channel, new SpeedMeter(metrics.sent()), null);
+
+            ByteBuffer response = ByteBuffer.allocate(REQUEST_ID_SIZE + 1);
+            if (!FileSender.readFully(channel, response) ||
+                response.get(REQUEST_ID_SIZE) != ServerResponses.FILE_SAVED.ordinal())
+                throw new IOException(String.format("Server rejected stripe at %d of \"%s\"", offset, file));
+
+            FileSender.writeFully(channel, ByteBuffer.wrap(new byte[] {(byte) ClientRequests.FINISH.ordinal()}));
+        } catch (IOException e) {
+            e.printStackTrace();
+            onFailure.run();
+        } finally {
+            metrics.connectionClosed();
+        }
+    }
+}
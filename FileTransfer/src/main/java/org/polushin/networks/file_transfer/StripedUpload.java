@@ -0,0 +1,217 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+import static org.polushin.networks.file_transfer.Utils.ServerResponses;
+import static org.polushin.networks.file_transfer.Utils.formatSpeed;
+
+/**
+ * Файл, загружаемый частями по нескольким соединениям.
+ *
+ * Временный файл заранее создается полного размера, а каждая часть записывается по своему смещению.
+ * Загрузка завершается, только когда получены все диапазоны файла: тогда файл фиксируется под итоговым именем.
+ */
+class StripedUpload {
+
+    private final long key;
+    private final FileCommitter committer;
+    private final String filename;
+    private final File temp;
+    private final long size;
+    private final SpaceLedger.Reservation reservation;
+    private final FileChannel channel;
+    private final BiConsumer<ServerResponses, File> listener;
+    private final long beginTime = System.currentTimeMillis();
+
+    // Полученные диапазоны файла: начало -> конец (не включая)
+    private final TreeMap<Long, Long> landed = new TreeMap<>();
+    private boolean finished = false;
+    // Итоговый ответ отправлен
+    private boolean responded = false;
+    // Количество частей, принимаемых в данный момент, и время последнего изменения
+    private int activeStripes = 0;
+    private long lastActivityTime = beginTime;
+
+    /**
+     * @param key Ключ загрузки, по которому соединения с частями находят файл.
+     * @param committer Фиксация файла в хранилище.
+     * @param filename Имя файла, переданное клиентом.
+     * @param size Размер файла.
+     * @param reservation Место, зарезервированное под файл.
+     * @param listener Получатель итогового ответа: {@link ServerResponses#FILE_SAVED} с сохраненным файлом или
+     * {@link ServerResponses#UNKNOWN_ERROR} без него.
+     */
+    StripedUpload(long key, FileCommitter committer, String filename, long size, SpaceLedger.Reservation reservation,
+                  BiConsumer<ServerResponses, File> listener) throws IOException {
+        this.key = key;
+        this.committer = committer;
+        this.filename = filename;
+        this.size = size;
+        this.reservation = reservation;
+        this.listener = listener;
+        temp = committer.tempFile();
+
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+        try {
+            output.setLength(size);
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+        channel = output.getChannel();
+    }
+
+    long getKey() {
+        return key;
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Место, зарезервированное под файл: в нем учитываются части, записанные на диск.
+     */
+    SpaceLedger.Reservation getReservation() {
+        return reservation;
+    }
+
+    /**
+     * @return Канал файла. Запись в него ведется только позиционно и допускается из нескольких потоков.
+     */
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Отмечает начало приема очередной части.
+     */
+    synchronized void stripeStarted() {
+        activeStripes++;
+        lastActivityTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Ожидает завершения загрузки.
+     *
+     * @param idleTimeout Максимальное время без принимаемых частей, после которого ожидание прекращается.
+     *
+     * @return true, если загрузка завершена (успешно или нет) и итоговый ответ отправлен.
+     */
+    synchronized boolean awaitCompletion(long idleTimeout) throws InterruptedException {
+        while (!responded) {
+            if (finished) {
+                wait();
+                continue;
+            }
+            long idle = System.currentTimeMillis() - lastActivityTime;
+            if (activeStripes == 0 && idle >= idleTimeout)
+                return false;
+            wait(activeStripes == 0 ? idleTimeout - idle : idleTimeout);
+        }
+        return true;
+    }
+
+    /**
+     * Отмечает диапазон файла полученным. Когда получен весь файл, закрывает и фиксирует его.
+     *
+     * @param offset Смещение диапазона.
+     * @param length Длина диапазона.
+     *
+     * @return true, если файл получен полностью.
+     */
+    boolean landed(long offset, long length) {
+        synchronized (this) {
+            activeStripes--;
+            lastActivityTime = System.currentTimeMillis();
+            notifyAll();
+            if (finished)
+                return false;
+            long begin = offset;
+            long end = offset + length;
+
+            // Объединяем диапазон с пересекающимися и соседними
+            Map.Entry<Long, Long> before = landed.floorEntry(begin);
+            if (before != null && before.getValue() >= begin) {
+                begin = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> after;
+            while ((after = landed.ceilingEntry(begin)) != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                landed.remove(after.getKey());
+            }
+            landed.put(begin, end);
+
+            if (begin != 0 || end != size)
+                return false;
+            finished = true;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            deleteTemp();
+            complete(ServerResponses.UNKNOWN_ERROR, null);
+            return false;
+        }
+        long average = size * 1000 / Math.max(1, System.currentTimeMillis() - beginTime);
+        committer.commit(temp, filename).whenComplete((file, error) -> {
+            if (error != null) {
+                error.printStackTrace();
+                complete(ServerResponses.UNKNOWN_ERROR, null);
+                return;
+            }
+            System.out.format("File \"%s\" stored from stripes. Average speed: %s\n", file.getName(),
+                              formatSpeed(average));
+            complete(ServerResponses.FILE_SAVED, file);
+        });
+        return true;
+    }
+
+    /**
+     * Прерывает загрузку и удаляет недогруженный файл.
+     */
+    void abort() {
+        synchronized (this) {
+            if (finished)
+                return;
+            finished = true;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        deleteTemp();
+        complete(ServerResponses.UNKNOWN_ERROR, null);
+    }
+
+    private void deleteTemp() {
+        if (!temp.delete())
+            System.out.format("Cannot delete incomplete file \"%s\"\n", filename);
+    }
+
+    /**
+     * Отправляет итоговый ответ и будит ожидающих завершения.
+     */
+    private void complete(ServerResponses response, File file) {
+        listener.accept(response, file);
+        synchronized (this) {
+            responded = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.polushin.networks.file_transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import static org.polushin.networks.file_transfer.Utils.ServerResponses;
+
+/**
+ * Реестр файлов, загружаемых частями, общий для всех соединений сервера.
+ */
+class StripedUploads {
+
+    // Ключи случайны, чтобы чужое соединение не могло дописать данные в файл, перебирая ключи
+    private final Random random = new SecureRandom();
+    private final Map<Long, StripedUpload> uploads = new ConcurrentHashMap<>();
+    private final FileCommitter committer;
+
+    StripedUploads(FileCommitter committer) {
+        this.committer = committer;
+    }
+
+    /**
+     * Создает временный файл полного размера и регистрирует загрузку.
+     *
+     * @param filename Имя файла, переданное клиентом.
+     * @param size Размер файла.
+     * @param reservation Место, зарезервированное под файл.
+     * @param listener Получатель итогового ответа о сохранении файла и сохраненного файла.
+     *
+     * @return Новая загрузка.
+     */
+    StripedUpload create(String filename, long size, SpaceLedger.Reservation reservation,
+                         BiConsumer<ServerResponses, File> listener) throws IOException {
+        long generated;
+        do {
+            generated = random.nextLong();
+        } while (uploads.containsKey(generated));
+
+        final long key = generated;
+        // Загрузка удаляется из реестра только после отправки ответа, чтобы ее можно было дождаться
+        StripedUpload upload = new StripedUpload(key, committer, filename, size, reservation, (response, file) -> {
+            listener.accept(response, file);
+            uploads.remove(key);
+        });
+        uploads.put(key, upload);
+        return upload;
+    }
+
+    /**
+     * @return Загрузка с указанным ключом или null, если она не найдена или уже завершена.
+     */
+    StripedUpload get(long key) {
+        return uploads.get(key);
+    }
+
+    /**
+     * Прерывает незавершенную загрузку.
+     */
+    void abort(long key) {
+        StripedUpload upload = uploads.get(key);
+        if (upload != null)
+            upload.abort();
+    }
+}
@@ -0,0 +1,342 @@
+package org.polushin.networks.file_transfer;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.polushin.networks.file_transfer.Utils.formatSpeed;
+
+/**
+ * Метрики передачи файлов сервера или отправителя.
+ *
+ * Счетчики - {@link LongAdder}, поэтому потоки соединений обновляют их без общей блокировки.
+ * Время до подтверждения и до сохранения файла и скорость передачи файлов учитываются гистограммами
+ * {@link LatencyHistogram}. Метрики доступны через JMX, в текстовом формате Prometheus
+ * (см. {@link MetricsEndpoint}) и в сводке, которую один поток выводит раз в несколько секунд.
+ */
+class TransferMetrics implements TransferMetricsMBean {
+
+    private static final String MBEAN_NAME = "org.polushin.networks.file_transfer:type=TransferMetrics,name=";
+    // Период вывода сводки
+    private static final long REPORT_INTERVAL = 3 * 1000;
+
+    // Роль в метках Prometheus: server или sender
+    private final String role;
+    private final LongAdder filesStored = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final Gauge activeConnections = new Gauge();
+    private final Gauge queueDepth = new Gauge();
+    private final Gauge bytesInFlight = new Gauge();
+    private final LatencyHistogram timeToApprove = new LatencyHistogram();
+    private final LatencyHistogram timeToSave = new LatencyHistogram();
+    private final LatencyHistogram fileThroughput = new LatencyHistogram();
+    private ObjectName mbeanName;
+    private Thread reportThread;
+    private volatile boolean running = false;
+
+    /**
+     * @param role Роль стороны передачи: server или sender.
+     */
+    TransferMetrics(String role) {
+        this.role = role;
+    }
+
+    String getRole() {
+        return role;
+    }
+
+    /**
+     * @return Момент начала запроса для последующего учета времени до подтверждения и сохранения.
+     */
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return Средняя скорость передачи указанного объема с момента начала запроса в байт/секунду.
+     */
+    static long speed(long begin, long bytes) {
+        return (long) (bytes * 1e9 / Math.max(1, System.nanoTime() - begin));
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+        activeConnections.add(1);
+    }
+
+    void connectionClosed() {
+        activeConnections.add(-1);
+    }
+
+    /**
+     * Учитывает подтверждение загрузки.
+     *
+     * @param begin Момент начала запроса.
+     * @param size Размер файла, который становится передаваемым.
+     */
+    void approved(long begin, long size) {
+        timeToApprove.record(micros(begin));
+        bytesInFlight.add(size);
+    }
+
+    /**
+     * Учитывает сохраненный файл.
+     *
+     * @param begin Момент начала запроса.
+     * @param inFlight Размер, учтенный при подтверждении загрузки.
+     * @param speed Средняя скорость передачи файла в байт/секунду или -1, если тело не передавалось.
+     */
+    void stored(long begin, long inFlight, long speed) {
+        timeToSave.record(micros(begin));
+        if (speed >= 0)
+            fileThroughput.record(speed);
+        filesStored.increment();
+        bytesInFlight.add(-inFlight);
+    }
+
+    /**
+     * Учитывает файл, который не удалось сохранить.
+     *
+     * @param inFlight Размер, учтенный при подтверждении загрузки, или 0, если загрузка не была подтверждена.
+     */
+    void failed(long inFlight) {
+        filesFailed.increment();
+        bytesInFlight.add(-inFlight);
+    }
+
+    /**
+     * @return Счетчик принятых байт тел файлов для {@link SpeedMeter}.
+     */
+    LongAdder received() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return Счетчик отправленных байт тел файлов для {@link SpeedMeter}.
+     */
+    LongAdder sent() {
+        return bytesSent;
+    }
+
+    /**
+     * Добавляет источник длины очереди, например, очередь одного из отправителей.
+     */
+    void addQueue(LongSupplier source) {
+        queueDepth.addSource(source);
+    }
+
+    /**
+     * Регистрирует метрики в JMX.
+     *
+     * @param name Имя, отличающее метрики от других в том же процессе.
+     */
+    void register(String name) {
+        try {
+            mbeanName = new ObjectName(MBEAN_NAME + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, mbeanName);
+        } catch (JMException e) {
+            mbeanName = null;
+            System.out.format("Transfer metrics are not available over JMX: %s\n", e.getMessage());
+        }
+    }
+
+    void unregister() {
+        if (mbeanName == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        mbeanName = null;
+    }
+
+    /**
+     * Запускает периодический вывод сводки. Сводка выводится, только если за период были переданы данные.
+     */
+    void startReports() {
+        if (running)
+            return;
+        running = true;
+        reportThread = new Thread(this::run, "transfer-metrics");
+        reportThread.setDaemon(true);
+        reportThread.start();
+    }
+
+    void stopReports() {
+        if (!running)
+            return;
+        running = false;
+        reportThread.interrupt();
+    }
+
+    @Override
+    public long getFilesStored() {
+        return filesStored.sum();
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return bytesInFlight.get();
+    }
+
+    @Override
+    public String getTimeToApprove() {
+        return timeToApprove.describe();
+    }
+
+    @Override
+    public String getTimeToSave() {
+        return timeToSave.describe();
+    }
+
+    @Override
+    public String getFileThroughput() {
+        return fileThroughput.describe();
+    }
+
+    /**
+     * Добавляет метрики в текстовом формате Prometheus.
+     */
+    void writePrometheus(StringBuilder output) {
+        counter(output, "files_stored_total", "Files stored.", getFilesStored());
+        counter(output, "files_failed_total", "Files that were not stored.", getFilesFailed());
+        counter(output, "received_bytes_total", "Bytes of file bodies received.", getBytesReceived());
+        counter(output, "sent_bytes_total", "Bytes of file bodies sent.", getBytesSent());
+        counter(output, "connections_opened_total", "Connections opened.", getConnectionsOpened());
+        gauge(output, "active_connections", "Open connections.", getActiveConnections());
+        gauge(output, "queue_depth", "Files waiting to be sent or committed.", getQueueDepth());
+        gauge(output, "in_flight_bytes", "Sizes of approved files that are not stored yet.", getBytesInFlight());
+        summary(output, "time_to_approve_seconds", "Time from upload request to approval.", timeToApprove, 1e-6);
+        summary(output, "time_to_save_seconds", "Time from upload request to stored file.", timeToSave, 1e-6);
+        summary(output, "file_throughput_bytes_per_second", "Average transfer speed of a file.", fileThroughput, 1);
+    }
+
+    private void counter(StringBuilder output, String name, String help, long value) {
+        sample(output, name, help, "counter", value);
+    }
+
+    private void gauge(StringBuilder output, String name, String help, long value) {
+        sample(output, name, help, "gauge", value);
+    }
+
+    private void sample(StringBuilder output, String name, String help, String type, long value) {
+        header(output, name, help, type);
+        output.append("file_transfer_").append(name).append("{role=\"").append(role).append("\"} ")
+              .append(value).append('\n');
+    }
+
+    private void summary(StringBuilder output, String name, String help, LatencyHistogram histogram,
+                         double scale) {
+        header(output, name, help, "summary");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            output.append("file_transfer_").append(name).append("{role=\"").append(role)
+                  .append("\",quantile=\"").append(quantile).append("\"} ")
+                  .append(histogram.getQuantile(quantile) * scale).append('\n');
+        }
+        output.append("file_transfer_").append(name).append("_sum{role=\"").append(role).append("\"} ")
+              .append(histogram.getSum() * scale).append('\n');
+        output.append("file_transfer_").append(name).append("_count{role=\"").append(role).append("\"} ")
+              .append(histogram.getCount()).append('\n');
+    }
+
+    private static void header(StringBuilder output, String name, String help, String type) {
+        output.append("# HELP file_transfer_").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE file_transfer_").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static long micros(long begin) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+    }
+
+    private void run() {
+        long lastTime = System.currentTimeMillis();
+        long lastReceived = 0;
+        long lastSent = 0;
+        while (running) {
+            try {
+                Thread.sleep(REPORT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long time = System.currentTimeMillis();
+            long received = getBytesReceived();
+            long sent = getBytesSent();
+            if (received != lastReceived || sent != lastSent) {
+                long interval = Math.max(1, time - lastTime);
+                System.out.format("Connections: %d, receiving %s, sending %s. Files stored: %d, failed: %d, " +
+                                  "in flight: %d Mb\n", getActiveConnections(),
+                                  formatSpeed((received - lastReceived) * 1000 / interval),
+                                  formatSpeed((sent - lastSent) * 1000 / interval), getFilesStored(),
+                                  getFilesFailed(), getBytesInFlight() / (1024 * 1024));
+            }
+            lastTime = time;
+            lastReceived = received;
+            lastSent = sent;
+        }
+    }
+
+    /**
+     * Текущее значение: сумма изменений и значений источников.
+     */
+    private static class Gauge {
+
+        private final LongAdder value = new LongAdder();
+        private final List<LongSupplier> sources = new CopyOnWriteArrayList<>();
+
+        void add(long delta) {
+            value.add(delta);
+        }
+
+        void addSource(LongSupplier source) {
+            sources.add(source);
+        }
+
+        long get() {
+            long total = value.sum();
+            for (LongSupplier source : sources)
+                total += source.getAsLong();
+            return total;
+        }
+    }
+}
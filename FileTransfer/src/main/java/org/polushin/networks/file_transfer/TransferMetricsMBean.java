@@ -0,0 +1,45 @@
+package org.polushin.networks.file_transfer;
+
+/**
+ * Метрики передачи файлов, доступные через JMX (см. {@link TransferMetrics}).
+ * Распределения описываются строками с процентилями 50, 99, 99.9 и максимумом.
+ */
+public interface TransferMetricsMBean {
+
+    long getFilesStored();
+
+    long getFilesFailed();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getConnectionsOpened();
+
+    long getActiveConnections();
+
+    /**
+     * @return Количество файлов, ожидающих отправки или фиксации.
+     */
+    long getQueueDepth();
+
+    /**
+     * @return Суммарный размер подтвержденных, но еще не сохраненных файлов.
+     */
+    long getBytesInFlight();
+
+    /**
+     * @return Время от запроса загрузки до подтверждения сервером в микросекундах.
+     */
+    String getTimeToApprove();
+
+    /**
+     * @return Время от запроса загрузки до сохранения файла в микросекундах.
+     */
+    String getTimeToSave();
+
+    /**
+     * @return Средняя скорость передачи файлов в байт/секунду.
+     */
+    String getFileThroughput();
+}
@@ -0,0 +1,546 @@
+package org.polushin.networks.file_transfer;
+
+import org.polushin.networks.find_copies.PeerTable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Отправка файлов через несколько соединений с сервером, каждое из которых обслуживает свой {@link FileSender}.
+ *
+ * Файлы распределяются между соединениями заранее, от больших к меньшим: очередной файл достается
+ * соединению с наименьшим объемом назначенных файлов. Поэтому соединения заканчивают работу примерно
+ * одновременно, а последними отправляются мелкие файлы, которые не задерживают завершение.
+ *
+ * В режиме обнаружения серверы-хранилища находятся по их объявлениям (см. {@link NodeDirectory}), и к каждому
+ * открывается одно соединение. Файлы назначаются по одному, по мере завершения загрузок: очередной файл
+ * достается серверу, у которого достаточно места с учетом уже назначенных ему файлов и наименьшая нагрузка -
+ * меньше всего открытых соединений, затем меньше назначенных этим отправителем байт, затем меньше скорость
+ * приема. Число неподтвержденных файлов на сервер ограничено окном. Соединение открывается отдельным
+ * потоком при появлении сервера, пока оно открывается, файлы назначаются остальным серверам. Отклоненный
+ * сервером файл отправляется на другой сервер. Если сервер пропал из таблицы или соединение с ним
+ * потеряно, оно разрывается, а незавершенные файлы сервера отправляются на другие серверы.
+ */
+public class UploadPool implements Closeable {
+
+    // Время ожидания объявлений серверов перед началом отправки
+    private static final long DISCOVERY_WAIT = 2 * NodeAdvertiser.ADVERTISE_INTERVAL;
+    // Период проверки таблицы серверов, пока файлу не найден сервер
+    private static final long DISPATCH_INTERVAL = 100;
+    // Порядок серверов от наименее нагруженного
+    private static final Comparator<NodeState> LOAD_ORDER =
+            Comparator.comparingInt((NodeState state) -> state.node.getConnections())
+                      .thenComparingLong(state -> state.outstandingBytes)
+                      .thenComparingLong(state -> state.node.getThroughput());
+
+    private final SenderOptions options;
+    private final List<FileSender> senders = new ArrayList<>();
+    private final TransferMetrics metrics = new TransferMetrics("sender");
+    // Точка с метриками или null, если она не запускается
+    private MetricsEndpoint metricsEndpoint;
+    private UploadProgress progress;
+
+    // Таблица серверов или null, если сервер задан явно
+    private final NodeDirectory directory;
+    // Состояние отправки на обнаруженные серверы. Здесь и далее доступ под блокировкой пула
+    private final Map<StorageNode, NodeState> nodes = new HashMap<>();
+    // Файлы, ожидающие назначения серверу
+    private final Deque<Task> queue = new ArrayDeque<>();
+    // Пул закрывается, открытые после этого соединения сразу закрываются
+    private boolean closing = false;
+
+    /**
+     * @param options Настройки отправителей, количество соединений задается {@link SenderOptions#getConnections()}.
+     */
+    public UploadPool(InetAddress host, int port, SenderOptions options) throws IOException {
+        this.options = options;
+        directory = null;
+        try {
+            for (int i = 0; i < options.getConnections(); i++)
+                senders.add(new FileSender(host, port, options, metrics));
+        } catch (IOException e) {
+            senders.forEach(FileSender::close);
+            throw e;
+        }
+        startMetrics();
+    }
+
+    private UploadPool(NodeDirectory directory, SenderOptions options) {
+        this.options = options;
+        this.directory = directory;
+        directory.addListener(new PeerTable.Listener<StorageNode>() {
+            @Override
+            public void onJoin(StorageNode node) {
+                onNodeJoined(node);
+            }
+
+            @Override
+            public void onLeave(StorageNode node) {
+                onNodeLeft(node);
+            }
+        });
+        startMetrics();
+    }
+
+    /**
+     * Создает пул, который сам выбирает серверы-хранилища по их объявлениям в Multicast-группе.
+     * Количество соединений из настроек не используется: к каждому серверу открывается одно соединение.
+     *
+     * @param group Группа, в которой серверы объявляют о себе.
+     */
+    public static UploadPool discover(InetAddress group, SenderOptions options) throws IOException {
+        return new UploadPool(new NodeDirectory(group), options);
+    }
+
+    private void startMetrics() {
+        metrics.register("sender");
+        if (options.getMetricsPort() != 0) {
+            try {
+                metricsEndpoint = new MetricsEndpoint(options.getMetricsPort(), metrics);
+                metricsEndpoint.start();
+            } catch (IOException e) {
+                System.out.format("Cannot start metrics endpoint: %s\n", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Распределяет файлы между соединениями и запускает вывод хода загрузки.
+     */
+    public void send(List<SourceFile> files) {
+        List<SourceFile> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparingLong((SourceFile file) -> file.size).reversed());
+        long totalBytes = 0;
+        for (SourceFile file : sorted)
+            totalBytes += file.size;
+        progress = new UploadProgress(sorted.size(), totalBytes);
+        progress.start();
+        if (directory != null) {
+            sendDiscovered(sorted);
+            return;
+        }
+        for (FileSender sender : senders)
+            sender.setProgress(progress);
+
+        // Соединения по объему назначенных файлов
+        PriorityQueue<Assignment> assignments = new PriorityQueue<>();
+        for (FileSender sender : senders)
+            assignments.add(new Assignment(sender, 0));
+        for (SourceFile file : sorted) {
+            Assignment least = assignments.poll();
+            try {
+                least.sender.sendFile(file.file, file.name);
+            } catch (IllegalStateException e) {
+                System.out.println(String.format("Cannot upload file: \"%s\"", file.file.getAbsolutePath()));
+                progress.finished(file.size, false);
+            }
+            assignments.add(new Assignment(least.sender, least.bytes + file.size));
+        }
+    }
+
+    /**
+     * Назначает файлы обнаруженным серверам и ждет завершения всех загрузок.
+     */
+    private void sendDiscovered(List<SourceFile> files) {
+        if (!directory.awaitNodes(DISCOVERY_WAIT))
+            System.out.println("No storage nodes found.");
+        synchronized (this) {
+            for (SourceFile file : files)
+                queue.add(new Task(file));
+        }
+
+        while (true) {
+            Task task;
+            NodeState target;
+            synchronized (this) {
+                while (true) {
+                    task = queue.peekFirst();
+                    if (task == null && !hasOutstanding())
+                        return;
+                    target = task == null ? null : choose(task);
+                    if (target != null && target.sender == null) {
+                        connect(target);
+                        continue;
+                    }
+                    if (target != null)
+                        break;
+                    if (task != null && !canStore(task)) {
+                        queue.pollFirst();
+                        System.out.format("No storage node can store \"%s\".\n", task.file.file.getAbsolutePath());
+                        progress.finished(task.file.size, false);
+                        continue;
+                    }
+                    try {
+                        wait(DISPATCH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                queue.pollFirst();
+                target.assign(task);
+            }
+
+            try {
+                target.sender.sendFile(task.file.file, task.file.name);
+            } catch (IllegalStateException e) {
+                onFinished(target, task.file.file, false);
+                synchronized (this) {
+                    markDown(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Наименее нагруженный сервер, который может принять файл сейчас, или null.
+     */
+    private NodeState choose(Task task) {
+        NodeState best = null;
+        for (StorageNode node : directory.getNodes()) {
+            if (task.tried.contains(node))
+                continue;
+            NodeState state = nodes.computeIfAbsent(node, NodeState::new);
+            if (state.down || state.connecting || state.outstanding.size() >= options.getWindow() ||
+                node.getAvailable() - state.outstandingBytes <= task.file.size)
+                continue;
+            if (best == null || LOAD_ORDER.compare(state, best) < 0)
+                best = state;
+        }
+        return best;
+    }
+
+    /**
+     * @return true, если файл может принять хотя бы один из серверов, на которые он еще не отправлялся.
+     */
+    private boolean canStore(Task task) {
+        for (StorageNode node : directory.getNodes()) {
+            NodeState state = nodes.get(node);
+            if (!task.tried.contains(node) && (state == null || !state.down) &&
+                node.getAvailable() > task.file.size)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean hasOutstanding() {
+        for (NodeState state : nodes.values()) {
+            if (!state.outstanding.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Открывает соединение с сервером в отдельном потоке, чтобы подключение не задерживало назначение
+     * файлов. Пока соединение открывается, сервер не выбирается.
+     */
+    private void connect(NodeState state) {
+        state.connecting = true;
+        Thread connector = new Thread(() -> {
+            InetSocketAddress address = state.node.getAddress();
+            FileSender sender = null;
+            try {
+                sender = new FileSender(address.getAddress(), address.getPort(), options, metrics);
+                sender.setListener((file, stored) -> onFinished(state, file, stored));
+            } catch (IOException e) {
+                System.out.format("Cannot connect to storage node %s: %s\n", state.node, e.getMessage());
+            }
+            onConnected(state, sender);
+        }, "node-connector");
+        connector.start();
+    }
+
+    /**
+     * Передает открытое соединение пулу. Сервер, к которому подключиться не удалось, больше не выбирается,
+     * пока он заново не появится в таблице.
+     *
+     * @param sender Отправитель или null, если подключиться не удалось.
+     */
+    private void onConnected(NodeState state, FileSender sender) {
+        synchronized (this) {
+            state.connecting = false;
+            if (sender == null)
+                markDown(state);
+            else if (!state.down && !closing)
+                state.sender = sender;
+            notifyAll();
+            if (sender == null || state.sender == sender)
+                return;
+        }
+        // Сервер пропал или пул закрывается, пока соединение открывалось
+        sender.close();
+    }
+
+    /**
+     * Учитывает завершенную загрузку файла на сервере. Отклоненный файл повторяется на другом сервере,
+     * а если отправитель больше не может передавать файлы, сервер перестает выбираться.
+     */
+    private synchronized void onFinished(NodeState state, File file, boolean stored) {
+        Task task = state.finish(file);
+        if (task == null)
+            return;
+        if (stored)
+            progress.finished(task.file.size, true);
+        else
+            retry(task);
+        if (!stored && state.sender != null && state.sender.isFailed())
+            markDown(state);
+        notifyAll();
+    }
+
+    private void retry(Task task) {
+        if (task.tried.size() > options.getRetries()) {
+            progress.finished(task.file.size, false);
+            return;
+        }
+        System.out.format("Sending \"%s\" to another storage node.\n", task.file.file.getAbsolutePath());
+        queue.addFirst(task);
+    }
+
+    /**
+     * Разрывает соединение с сервером. Незавершенные файлы сервера отправляются заново после закрытия
+     * отправителя, которое не должно задерживать назначение файлов.
+     */
+    private void markDown(NodeState state) {
+        if (state.down)
+            return;
+        state.down = true;
+        FileSender sender = state.sender;
+        if (sender == null) {
+            state.closed = true;
+            return;
+        }
+        sender.abort();
+        Thread closer = new Thread(() -> {
+            sender.close();
+            onClosed(state);
+        }, "node-closer");
+        closer.start();
+    }
+
+    private synchronized void onClosed(NodeState state) {
+        state.closed = true;
+        for (Task task : state.outstanding.values())
+            retry(task);
+        state.outstanding.clear();
+        state.outstandingBytes = 0;
+        // Сервер появился снова, пока соединение с ним закрывалось
+        if (state.rejoined)
+            nodes.remove(state.node, state);
+        notifyAll();
+    }
+
+    /**
+     * Начинает подключение к появившемуся серверу, чтобы к началу отправки соединения были открыты.
+     */
+    private synchronized void onNodeJoined(StorageNode node) {
+        NodeState state = nodes.get(node);
+        if (state != null && state.down) {
+            if (state.closed)
+                nodes.remove(node);
+            else
+                state.rejoined = true;
+        }
+        if (!nodes.containsKey(node) && !closing) {
+            state = new NodeState(node);
+            nodes.put(node, state);
+            connect(state);
+        }
+        notifyAll();
+    }
+
+    private synchronized void onNodeLeft(StorageNode node) {
+        NodeState state = nodes.get(node);
+        if (state != null)
+            markDown(state);
+        notifyAll();
+    }
+
+    /**
+     * Завершает отправку всех файлов и закрывает соединения.
+     */
+    @Override
+    public void close() {
+        senders.forEach(FileSender::close);
+        if (directory != null) {
+            List<FileSender> discovered = new ArrayList<>();
+            synchronized (this) {
+                closing = true;
+                for (NodeState state : nodes.values()) {
+                    if (state.sender != null)
+                        discovered.add(state.sender);
+                }
+            }
+            discovered.forEach(FileSender::close);
+            directory.close();
+        }
+        if (progress != null)
+            progress.stop();
+        metrics.unregister();
+        if (metricsEndpoint != null)
+            metricsEndpoint.close();
+    }
+
+    /**
+     * Собирает файлы для отправки. Директория обходится параллельно, ее файлы сохраняются под путями
+     * относительно родителя директории, то есть вместе с ее именем.
+     *
+     * @param path Файл или директория.
+     *
+     * @return Файлы для отправки.
+     */
+    public static List<SourceFile> collect(File path) {
+        if (path.isDirectory())
+            return ForkJoinPool.commonPool().invoke(new DirectoryWalk(path, path.getName() + "/"));
+        List<SourceFile> result = new ArrayList<>();
+        if (acceptable(path))
+            result.add(new SourceFile(path, path.getName()));
+        return result;
+    }
+
+    private static boolean acceptable(File file) {
+        if (file.length() < Utils.PROTOCOL_HANDSHAKE)
+            return true;
+        System.out.format("\"%s\" is too large.\n", file.getPath());
+        return false;
+    }
+
+    /**
+     * Файл для отправки и его имя на сервере.
+     */
+    public static class SourceFile {
+
+        private final File file;
+        private final String name;
+        private final long size;
+
+        /**
+         * @param name Имя или относительный путь с разделителем "/".
+         */
+        public SourceFile(File file, String name) {
+            this.file = file;
+            this.name = name;
+            size = file.length();
+        }
+    }
+
+    /**
+     * Соединение и объем назначенных ему файлов.
+     */
+    private static class Assignment implements Comparable<Assignment> {
+
+        private final FileSender sender;
+        private final long bytes;
+
+        Assignment(FileSender sender, long bytes) {
+            this.sender = sender;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int compareTo(Assignment other) {
+            return Long.compare(bytes, other.bytes);
+        }
+    }
+
+    /**
+     * Файл, ожидающий назначения серверу или отправленный на сервер в режиме обнаружения.
+     */
+    private static class Task {
+
+        private final SourceFile file;
+        // Серверы, на которые файл уже отправлялся
+        private final Set<StorageNode> tried = new HashSet<>();
+
+        Task(SourceFile file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Соединение с обнаруженным сервером и файлы, назначенные ему.
+     */
+    private static class NodeState {
+
+        // Сервер из таблицы, его нагрузка обновляется по объявлениям
+        private final StorageNode node;
+        private FileSender sender;
+        // Незавершенные файлы сервера по объектам файлов, переданным отправителю
+        private final Map<File, Task> outstanding = new IdentityHashMap<>();
+        private long outstandingBytes;
+        // Сервер больше не выбирается
+        private boolean down = false;
+        // Соединение открывается, сервер пока не выбирается
+        private boolean connecting = false;
+        // Отправитель закрыт, незавершенные файлы переданы другим серверам
+        private boolean closed = false;
+        private boolean rejoined = false;
+
+        NodeState(StorageNode node) {
+            this.node = node;
+        }
+
+        void assign(Task task) {
+            task.tried.add(node);
+            outstanding.put(task.file.file, task);
+            outstandingBytes += task.file.size;
+        }
+
+        /**
+         * @return Завершенный файл или null, если он уже не числится за сервером.
+         */
+        Task finish(File file) {
+            Task task = outstanding.remove(file);
+            if (task != null)
+                outstandingBytes -= task.file.size;
+            return task;
+        }
+    }
+
+    /**
+     * Обход директории: поддиректории обходятся отдельными задачами.
+     */
+    private static class DirectoryWalk extends RecursiveTask<List<SourceFile>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+        // Путь директории на сервере с завершающим "/"
+        private final String prefix;
+
+        DirectoryWalk(File directory, String prefix) {
+            this.directory = directory;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<SourceFile> compute() {
+            List<SourceFile> result = new ArrayList<>();
+            File[] files = directory.listFiles();
+            if (files == null) {
+                System.out.format("Cannot read directory \"%s\".\n", directory.getPath());
+                return result;
+            }
+
+            List<DirectoryWalk> subdirectories = new ArrayList<>();
+            for (File file : files) {
+                // Ссылки на директории не обходятся, чтобы не зациклиться
+                if (file.isDirectory() && !Files.isSymbolicLink(file.toPath()))
+                    subdirectories.add(new DirectoryWalk(file, prefix + file.getName() + "/"));
+                else if (file.isFile() && acceptable(file))
+                    result.add(new SourceFile(file, prefix + file.getName()));
+            }
+            for (DirectoryWalk walk : ForkJoinTask.invokeAll(subdirectories))
+                result.addAll(walk.join());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.polushin.networks.file_transfer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.polushin.networks.file_transfer.Utils.formatSpeed;
+
+/**
+ * Общий учет завершенных загрузок нескольких отправителей с периодическим выводом
+ * количества файлов и объема, сохраненных сервером за секунду.
+ */
+public class UploadProgress {
+
+    // Период вывода хода загрузки
+    private static final long REPORT_INTERVAL = 3 * 1000;
+
+    private final long totalFiles;
+    private final long totalBytes;
+    private final LongAdder storedFiles = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder failedFiles = new LongAdder();
+    private final Thread reportThread;
+    private volatile boolean running = false;
+    private long beginTime;
+
+    /**
+     * @param totalFiles Количество файлов для отправки.
+     * @param totalBytes Общий размер файлов.
+     */
+    public UploadProgress(long totalFiles, long totalBytes) {
+        this.totalFiles = totalFiles;
+        this.totalBytes = totalBytes;
+        reportThread = new Thread(this::run, "upload-progress");
+        reportThread.setDaemon(true);
+    }
+
+    public void start() {
+        beginTime = System.currentTimeMillis();
+        running = true;
+        reportThread.start();
+    }
+
+    /**
+     * Останавливает вывод хода загрузки и выводит итог.
+     */
+    public void stop() {
+        running = false;
+        reportThread.interrupt();
+        long time = Math.max(1, System.currentTimeMillis() - beginTime);
+        System.out.format("Uploaded %d of %d files (%d failed) in %d ms. Average: %d files/sec, %s\n",
+                          storedFiles.sum(), totalFiles, failedFiles.sum(), time, storedFiles.sum() * 1000 / time,
+                          formatSpeed(storedBytes.sum() * 1000 / time));
+    }
+
+    /**
+     * Учитывает завершенную загрузку.
+     *
+     * @param size Размер файла.
+     * @param stored Файл сохранен сервером.
+     */
+    void finished(long size, boolean stored) {
+        if (stored) {
+            storedFiles.increment();
+            storedBytes.add(size);
+        } else {
+            failedFiles.increment();
+        }
+    }
+
+    public long getStoredFiles() {
+        return storedFiles.sum();
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.sum();
+    }
+
+    public long getFailedFiles() {
+        return failedFiles.sum();
+    }
+
+    private void run() {
+        long lastTime = beginTime;
+        long lastFiles = 0;
+        long lastBytes = 0;
+        while (running) {
+            try {
+                Thread.sleep(REPORT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long time = System.currentTimeMillis();
+            long files = storedFiles.sum();
+            long bytes = storedBytes.sum();
+            long interval = Math.max(1, time - lastTime);
+            System.out.format("Uploaded %d of %d files, %d of %d Mb. Current: %d files/sec, %s\n", files,
+                              totalFiles, bytes / (1024 * 1024), totalBytes / (1024 * 1024),
+                              (files - lastFiles) * 1000 / interval, formatSpeed((bytes - lastBytes) * 1000 / interval));
+            lastTime = time;
+            lastFiles = files;
+            lastBytes = bytes;
+        }
+    }
+}
@@ -23,6 +23,17 @@ public class Utils {
     // Длина числа длины имени файла в байтах
     public static final int FILENAME_LEN_SIZE = 2;
 
+    // Размер файла, зарезервированный под запрос перехода на расширенный протокол.
+    // Это максимальное значение поля размера: старый сервер примет его за обычный файл и откажет
+    // из-за нехватки места (соединение остается в исходном протоколе) либо подтвердит загрузку.
+    public static final long PROTOCOL_HANDSHAKE = MAX_FILE_SIZE - 1;
+    // Длина идентификатора запроса в расширенном протоколе в байтах
+    public static final int REQUEST_ID_SIZE = 4;
+    // Длина маски возможностей расширенного протокола в байтах
+    public static final int FEATURES_SIZE = 4;
+    // Длина ключа возобновляемой загрузки в байтах
+    public static final int UPLOAD_KEY_SIZE = 16;
+
     /**
      * Коды ответы сервера являются ordinal-ами констант.
      */
@@ -30,6 +41,95 @@ public class Utils {
         UPLOAD_APPROVED,
         NOT_ENOUGH_FREE_SPACE,
         FILE_SAVED,
-        UNKNOWN_ERROR
+        UNKNOWN_ERROR,
+        // Сервер поддерживает расширенный протокол, следом передается маска его возможностей
+        PROTOCOL_ACCEPTED,
+        // Файл для загрузки частями создан, следом передается его ключ (8 байт)
+        STRIPES_APPROVED,
+        // Загрузка возобновляется, следом передается смещение, с которого клиент отправляет тело (8 байт)
+        RESUME_FROM,
+        // Файл с таким содержимым уже есть в хранилище, под новым именем сохранена его копия
+        FILE_LINKED,
+        // Файла с таким содержимым в хранилище нет, клиент должен загрузить его
+        DIGEST_UNKNOWN,
+        // Запрошенный файл найден: следом передаются размер файла (8 байт), длина диапазона (8 байт)
+        // и данные диапазона
+        FILE_CONTENT,
+        // Запрошенного файла в хранилище нет
+        FILE_NOT_FOUND,
+        // Сигнатуры блоков сохраненной версии файла для разностной загрузки (см. DeltaSync)
+        BLOCK_SIGNATURES,
+        // Контрольные суммы принятого тела не совпали с переданными клиентом, файл не сохранен
+        CHECKSUM_MISMATCH
+    }
+
+    /**
+     * Коды запросов клиента в расширенном протоколе являются ordinal-ами констант.
+     */
+    public enum ClientRequests {
+        // Загрузка файла: идентификатор, размер, длина имени, имя и тело файла без ожидания подтверждения
+        UPLOAD,
+        // Завершение передачи: сервер закрывает соединение после отправки всех ответов
+        FINISH,
+        // Загрузка файла частями: идентификатор, размер, длина имени и имя без тела файла
+        STRIPED_UPLOAD,
+        // Часть файла: идентификатор, ключ файла (8 байт), смещение (8 байт), размер части и ее данные
+        STRIPE,
+        // Возобновляемая загрузка: идентификатор, ключ загрузки, размер, длина имени и имя.
+        // Тело отправляется после ответа сервера, начиная с сохраненного им смещения
+        RESUMABLE_UPLOAD,
+        // Поиск копии файла по содержимому: идентификатор, дайджест (32 байта), размер, длина имени и имя
+        DIGEST_PROBE,
+        // Получение файла из хранилища: идентификатор, смещение (8 байт), длина диапазона (8 байт),
+        // длина имени и имя. Диапазон, выходящий за конец файла, сокращается
+        DOWNLOAD,
+        // Разностная загрузка новой версии сохраненного файла: идентификатор, размер, длина имени и имя.
+        // Разность отправляется после получения сигнатур блоков сохраненной версии
+        DELTA_UPLOAD
+    }
+
+    /**
+     * Дополнительные возможности расширенного протокола. Бит возможности в маске равен 1 << ordinal.
+     */
+    public enum ProtocolFeatures {
+        // Параллельная загрузка одного файла частями по нескольким соединениям
+        STRIPING,
+        // Продолжение прерванной загрузки с последней сохраненной сервером позиции
+        RESUME,
+        // Поиск в хранилище копии файла по дайджесту его содержимого вместо повторной загрузки
+        DEDUPLICATION,
+        // Тело файла в запросе UPLOAD передается блоками со сжатием (см. BlockCompression)
+        COMPRESSION,
+        // Получение сохраненных файлов и их диапазонов
+        DOWNLOAD,
+        // Имена файлов - относительные пути с разделителем "/", файлы сохраняются в поддиректориях
+        PATHS,
+        // Обновление сохраненного файла передачей только измененных блоков
+        DELTA,
+        // После тела файла в запросах UPLOAD и RESUMABLE_UPLOAD передаются контрольные суммы его блоков
+        // (см. BlockChecksums)
+        CHECKSUM;
+
+        public int mask() {
+            return 1 << ordinal();
+        }
+    }
+
+    /**
+     * Создает форматированную стоку с отображением скорости передачи данных.
+     *
+     * @param speed Скорость в байт/секунду
+     *
+     * @return Форматированная строка.
+     */
+    public static String formatSpeed(long speed) {
+        if (speed < 1024)
+            return speed + " Bytes/sec";
+        else if (speed < 1024 * 1024)
+            return speed / 1024 + " Kb/sec";
+        else if (speed < 1024 * 1024 * 1024)
+            return speed / (1024 * 1024) + " Mb/sec";
+        else
+            return speed / (1024 * 1024 * 1024) + " Gb/sec";
     }
 }
@@ -0,0 +1,203 @@
+package org.polushin.networks.file_transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaSyncTest {
+
+    private static final int BASE_SIZE = 200 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void identicalFileIsSentAsCopies() throws IOException {
+        byte[] base = randomBytes(BASE_SIZE);
+
+        Delta delta = sync(base, base);
+
+        assertArrayEquals(base, delta.result);
+        assertEquals(0, delta.literalBytes);
+    }
+
+    @Test
+    public void shiftedBlocksAreFoundByRollingChecksum() throws IOException {
+        byte[] base = randomBytes(BASE_SIZE);
+        // Сдвиг на байт: ни один блок новой версии не начинается на границе блока прежней
+        byte[] updated = concat(randomBytes(1), base);
+
+        Delta delta = sync(base, updated);
+
+        assertArrayEquals(updated, delta.result);
+        assertEquals(1, delta.literalBytes);
+    }
+
+    @Test
+    public void insertedDataIsSentAsLiteral() throws IOException {
+        byte[] base = randomBytes(BASE_SIZE);
+        int blockSize = DeltaSync.blockSize(BASE_SIZE);
+        int position = 10 * blockSize + 123;
+        byte[] inserted = randomBytes(777);
+        byte[] updated = concat(Arrays.copyOf(base, position), inserted,
+                                Arrays.copyOfRange(base, position, base.length));
+
+        Delta delta = sync(base, updated);
+
+        assertArrayEquals(updated, delta.result);
+        // Передается вставка и блок, в который она попала
+        assertTrue(delta.literalBytes >= inserted.length);
+        assertTrue(delta.literalBytes <= inserted.length + blockSize);
+    }
+
+    @Test
+    public void truncatedFileReusesWholeBlocks() throws IOException {
+        byte[] base = randomBytes(BASE_SIZE);
+        int blockSize = DeltaSync.blockSize(BASE_SIZE);
+        byte[] updated = Arrays.copyOf(base, 40 * blockSize + 1000);
+
+        Delta delta = sync(base, updated);
+
+        assertArrayEquals(updated, delta.result);
+        // Короткий остаток не совпадает с полным блоком прежней версии
+        assertEquals(1000, delta.literalBytes);
+    }
+
+    @Test
+    public void fileTruncatedToBlockBoundaryIsSentAsCopies() throws IOException {
+        byte[] base = randomBytes(BASE_SIZE);
+        byte[] updated = Arrays.copyOf(base, 7 * DeltaSync.blockSize(BASE_SIZE));
+
+        Delta delta = sync(base, updated);
+
+        assertArrayEquals(updated, delta.result);
+        assertEquals(0, delta.literalBytes);
+    }
+
+    @Test
+    public void shortLastBlockMatchesOnlyAtEnd() throws IOException {
+        byte[] base = randomBytes(BASE_SIZE);
+        int blockSize = DeltaSync.blockSize(BASE_SIZE);
+        int tail = BASE_SIZE % blockSize;
+        byte[] suffix = Arrays.copyOfRange(base, BASE_SIZE - tail, BASE_SIZE);
+        byte[] updated = concat(randomBytes(500), base);
+
+        Delta delta = sync(base, updated);
+        assertArrayEquals(updated, delta.result);
+        assertEquals(500, delta.literalBytes);
+
+        // Тот же остаток в середине файла передается как есть
+        updated = concat(suffix, randomBytes(blockSize - 1));
+        delta = sync(base, updated);
+        assertArrayEquals(updated, delta.result);
+        assertEquals(updated.length, delta.literalBytes);
+    }
+
+    @Test
+    public void emptyVersions() throws IOException {
+        byte[] base = randomBytes(BASE_SIZE);
+
+        Delta delta = sync(base, new byte[0]);
+        assertEquals(0, delta.result.length);
+
+        byte[] updated = randomBytes(5000);
+        delta = sync(new byte[0], updated);
+        assertArrayEquals(updated, delta.result);
+        assertEquals(updated.length, delta.literalBytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedDeltaIsRejected() throws IOException {
+        byte[] base = randomBytes(BASE_SIZE);
+        byte[] updated = concat(randomBytes(100), base);
+        File baseFile = write(base);
+        DeltaSync.Signatures signatures;
+        try (FileChannel channel = FileChannel.open(baseFile.toPath())) {
+            signatures = DeltaSync.compute(channel);
+        }
+
+        byte[] commands = encode(signatures, write(updated));
+        // Искажение первого байта данных команды LITERAL
+        commands[5] ^= 1;
+        apply(commands, baseFile, signatures, updated.length);
+    }
+
+    private Delta sync(byte[] base, byte[] updated) throws IOException {
+        File baseFile = write(base);
+        DeltaSync.Signatures signatures;
+        try (FileChannel channel = FileChannel.open(baseFile.toPath())) {
+            signatures = DeltaSync.compute(channel);
+        }
+        assertEquals(base.length, signatures.getFileSize());
+
+        byte[] commands = encode(signatures, write(updated));
+        Delta delta = new Delta();
+        File target = folder.newFile();
+        delta.literalBytes = apply(commands, baseFile, signatures, updated.length, target);
+        delta.result = Files.readAllBytes(target.toPath());
+        return delta;
+    }
+
+    private byte[] encode(DeltaSync.Signatures signatures, File file) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            new DeltaSync.Encoder(signatures, Channels.newChannel(output), new SpeedMeter()).encode(channel);
+        }
+        return output.toByteArray();
+    }
+
+    private long apply(byte[] commands, File baseFile, DeltaSync.Signatures signatures, long size)
+            throws IOException {
+        return apply(commands, baseFile, signatures, size, folder.newFile());
+    }
+
+    private long apply(byte[] commands, File baseFile, DeltaSync.Signatures signatures, long size, File target)
+            throws IOException {
+        try (FileChannel base = FileChannel.open(baseFile.toPath());
+             FileChannel output = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            return DeltaSync.apply(new ByteArrayInputStream(commands), base, signatures, output, size);
+        }
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            output.write(part, 0, part.length);
+        return output.toByteArray();
+    }
+
+    private static class Delta {
+
+        private byte[] result;
+        private long literalBytes;
+    }
+}
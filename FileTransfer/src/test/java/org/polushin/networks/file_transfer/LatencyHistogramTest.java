@@ -0,0 +1,118 @@
+package org.polushin.networks.file_transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getQuantile(0.5));
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < 128; value++)
+            assertEquals(value, bucketHighest(value));
+    }
+
+    @Test
+    public void bucketsDoubleEverySixtyFourBuckets() {
+        // Первые корзины шириной 2
+        assertEquals(129, bucketHighest(128));
+        assertEquals(129, bucketHighest(129));
+        assertEquals(131, bucketHighest(130));
+        assertEquals(255, bucketHighest(254));
+        // Следующий порядок - корзины шириной 4
+        assertEquals(259, bucketHighest(256));
+        assertEquals(259, bucketHighest(259));
+        assertEquals(263, bucketHighest(260));
+        assertEquals(511, bucketHighest(508));
+        assertEquals(1023, bucketHighest(1016));
+        assertEquals(1039, bucketHighest(1024));
+    }
+
+    @Test
+    public void bucketsCoverValuesWithoutGaps() {
+        long previous = -1;
+        for (long value = 0; value < 1 << 16; value++) {
+            long highest = bucketHighest(value);
+            assertTrue(highest >= value);
+            // Значения до границы корзины попадают в одну корзину
+            if (previous >= value)
+                assertEquals(previous, highest);
+            previous = highest;
+        }
+    }
+
+    @Test
+    public void relativeErrorIsBounded() {
+        for (long value = 128; value > 0 && value < Long.MAX_VALUE / 2; value = value * 3 / 2 + 1) {
+            long highest = bucketHighest(value);
+            assertTrue(highest >= value);
+            assertTrue(highest - value <= value / 64);
+        }
+    }
+
+    @Test
+    public void largestValueIsRecorded() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, histogram.getQuantile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100; value++)
+            histogram.record(value);
+
+        assertEquals(1, histogram.getQuantile(0));
+        assertEquals(1, histogram.getQuantile(0.01));
+        assertEquals(50, histogram.getQuantile(0.5));
+        assertEquals(51, histogram.getQuantile(0.505));
+        assertEquals(99, histogram.getQuantile(0.99));
+        assertEquals(100, histogram.getQuantile(1));
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+    }
+
+    @Test
+    public void quantileIsLimitedByMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+
+        // Корзина значения 1000 простирается до 1007, но больших значений не было
+        assertEquals(1000, histogram.getQuantile(0.99));
+    }
+
+    @Test
+    public void negativeValuesAreCountedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(10);
+
+        assertEquals(0, histogram.getQuantile(0.5));
+        assertEquals(10, histogram.getSum());
+        assertEquals(2, histogram.getCount());
+    }
+
+    /**
+     * @return Наибольшее значение корзины, в которую попадает значение.
+     */
+    private static long bucketHighest(long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        // Значение из последней корзины снимает ограничение процентиля максимумом
+        histogram.record(Long.MAX_VALUE);
+        return histogram.getQuantile(0.5);
+    }
+}
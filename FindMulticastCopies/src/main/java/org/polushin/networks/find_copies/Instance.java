@@ -0,0 +1,89 @@
+package org.polushin.networks.find_copies;
+
+import java.net.SocketAddress;
+import java.util.UUID;
+
+/**
+ * Запущенная копия программы.
+ *
+ * Копии различаются только случайным идентификатором, который выбирается при запуске, поэтому копии
+ * на одном узле или за одним NAT не смешиваются. Адрес и номер последнего сообщения в сравнении не участвуют.
+ */
+public final class Instance {
+
+    private long high;
+    private long low;
+    private final SocketAddress address;
+    // Номер последнего принятого сообщения
+    private long sequence;
+
+    /**
+     * @param address Адрес, с которого копия была обнаружена.
+     */
+    Instance(long high, long low, long sequence, SocketAddress address) {
+        this.high = high;
+        this.low = low;
+        this.sequence = sequence;
+        this.address = address;
+    }
+
+    /**
+     * @return Новая копия со случайным идентификатором.
+     */
+    static Instance random() {
+        UUID id = UUID.randomUUID();
+        return new Instance(id.getMostSignificantBits(), id.getLeastSignificantBits(), 0, null);
+    }
+
+    long getHigh() {
+        return high;
+    }
+
+    long getLow() {
+        return low;
+    }
+
+    /**
+     * Меняет идентификатор. Используется только для временного ключа поиска, который не попадает в таблицу.
+     */
+    void setId(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return Адрес, с которого копия была обнаружена.
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Instance))
+            return false;
+        Instance instance = (Instance) o;
+        return high == instance.high && low == instance.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high ^ low);
+    }
+
+    @Override
+    public String toString() {
+        String id = new UUID(high, low).toString();
+        return address == null ? id : id + " at " + address;
+    }
+}
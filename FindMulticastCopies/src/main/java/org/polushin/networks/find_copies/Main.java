@@ -1,74 +1,81 @@
 package org.polushin.networks.find_copies;
 
 import java.io.IOException;
-import java.net.*;
-import java.nio.charset.Charset;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 
 public class Main {
 
-    private static final String IDENTIFY_MESSAGE = "Hello from me to me!";
-    private static final Charset CHARSET = Charset.forName("UTF-8");
     private static final int PORT = 17120;
 
     private static final long MULTICAST_DELAY = 10 * 1000;
     private static final long ALIVE_TIMEOUT = 20 * 1000;
+    // Точность срока жизни копии
+    private static final long EXPIRY_TICK = 1000;
 
     public static void main(String[] args) throws IOException {
-        if (args.length < 1) {
-            System.out.println("Usage: <multicast-IPv4 or multicast-IPv6 address>");
-            System.exit(1);
+        List<InetAddress> groups = new ArrayList<>();
+        List<NetworkInterface> interfaces = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--interface=")) {
+                String name = arg.substring("--interface=".length());
+                NetworkInterface networkInterface = NetworkInterface.getByName(name);
+                if (networkInterface == null) {
+                    System.err.format("Interface %s not found.\n", name);
+                    System.exit(1);
+                }
+                interfaces.add(networkInterface);
+                continue;
+            }
+            try {
+                groups.add(InetAddress.getByName(arg));
+            } catch (UnknownHostException e) {
+                System.err.format("Address: %s is incorrect.\n", arg);
+                System.exit(1);
+            }
         }
-
-        InetAddress group = null;
-        try {
-             group = InetAddress.getByName(args[0]);
-        } catch(UnknownHostException e) {
-            System.err.format("Address: %s is incorrect.\n", args[1]);
+        if (groups.isEmpty()) {
+            System.out.println("Usage: <multicast-IPv4 or multicast-IPv6 address>... [--interface=<name>]...");
+            System.exit(1);
         }
-        final MulticastSocket serverSocket = new MulticastSocket(PORT);
-        final DatagramSocket clientSocket = new DatagramSocket();
-        final DatagramPacket receivePacket = new DatagramPacket(new byte[IDENTIFY_MESSAGE.length()],
-                                                                IDENTIFY_MESSAGE.length());
-        final DatagramPacket sendPacket = new DatagramPacket(IDENTIFY_MESSAGE.getBytes(CHARSET),
-                                                             IDENTIFY_MESSAGE.length(), group, PORT);
-
-        serverSocket.joinGroup(group);
+        if (interfaces.isEmpty())
+            interfaces = getMulticastInterfaces();
 
-        final Map<InetAddress, Long> knownCopies = new HashMap<>();
-        long nextMulticastTime = 0;
-
-        //noinspection InfiniteLoopStatement
-        while (true) {
-            if (nextMulticastTime < System.currentTimeMillis()) {
-                nextMulticastTime = System.currentTimeMillis() + MULTICAST_DELAY;
-                clientSocket.send(sendPacket);
+        final PeerTable<Instance> knownCopies = new PeerTable<>(ALIVE_TIMEOUT, EXPIRY_TICK);
+        knownCopies.addListener(new PeerTable.Listener<Instance>() {
+            @Override
+            public void onJoin(Instance peer) {
+                System.out.println("New copy: " + peer);
             }
 
-            knownCopies.entrySet().removeIf(entry -> {
-                if (entry.getValue() < System.currentTimeMillis()) {
-                    System.out.println("Lost: " + entry.getKey());
-                    return true;
-                }
-                return false;
-            });
-
-            int timeout = (int) (nextMulticastTime - System.currentTimeMillis());
-            if (timeout <= 0)
-                timeout = 1; // Нулевой таймаут интерпретируется как вечный
-            serverSocket.setSoTimeout(timeout);
-
-            try {
-                serverSocket.receive(receivePacket);
-            } catch (SocketTimeoutException e) {
-                continue;
+            @Override
+            public void onLeave(Instance peer) {
+                System.out.println("Lost: " + peer);
             }
+        });
 
-            if (new String(receivePacket.getData(), CHARSET).equals(IDENTIFY_MESSAGE))
-                if (knownCopies.put(receivePacket.getAddress(), System.currentTimeMillis() + ALIVE_TIMEOUT) == null)
-                    System.out.println("New copy: " + receivePacket.getAddress());
+        try (MulticastEngine engine = new MulticastEngine(groups, interfaces, PORT, knownCopies, MULTICAST_DELAY)) {
+            System.out.println("Started as " + engine.getSelf());
+            engine.run();
+        }
+    }
 
+    /**
+     * @return Включенные интерфейсы, поддерживающие Multicast.
+     */
+    private static List<NetworkInterface> getMulticastInterfaces() throws SocketException {
+        List<NetworkInterface> result = new ArrayList<>();
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (networkInterface.isUp() && networkInterface.supportsMulticast())
+                result.add(networkInterface);
         }
+        return result;
     }
 }
@@ -0,0 +1,233 @@
+package org.polushin.networks.find_copies;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Рассылка и прием сообщений о присутствии копий через Multicast.
+ *
+ * Для каждого семейства адресов (IPv4, IPv6) открывается один неблокирующий канал, который присоединяется
+ * ко всем группам этого семейства на всех заданных интерфейсах. Все каналы обслуживаются одним потоком
+ * через селектор. При каждом пробуждении из канала вычитываются все накопившиеся датаграммы в один и тот же
+ * буфер, а сообщения разбираются прямо в буфере, без создания объектов для известных копий.
+ *
+ * Формат сообщения: сигнатура (4 байта), идентификатор копии (16 байт) и номер сообщения (8 байт).
+ * Сообщение рассылается в каждую группу через каждый интерфейс, поэтому одно и то же сообщение может прийти
+ * несколько раз. Срок копии продлевают только сообщения с номером больше последнего принятого.
+ */
+public class MulticastEngine implements Closeable {
+
+    private static final int MAGIC = 0x464D4331; // "FMC1"
+    private static final int ID_OFFSET = 4;
+    private static final int SEQUENCE_OFFSET = ID_OFFSET + 16;
+    static final int HEARTBEAT_SIZE = SEQUENCE_OFFSET + 8;
+    // Больше датаграммы обрезаются и не проходят проверку размера
+    private static final int RECEIVE_BUFFER_SIZE = 512;
+    // Ограничение датаграмм, читаемых из канала за пробуждение, чтобы поток успевал рассылать сообщения
+    private static final int MAX_BATCH = 1024;
+
+    private final PeerTable<Instance> peers;
+    private final long heartbeatInterval;
+    private final Instance self = Instance.random();
+    // Временный ключ для поиска известных копий
+    private final Instance probe = new Instance(0, 0, 0, null);
+    private final Selector selector;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<Membership> memberships = new ArrayList<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final ByteBuffer heartbeat = ByteBuffer.allocateDirect(HEARTBEAT_SIZE);
+    private volatile boolean running = true;
+
+    /**
+     * Открывает каналы и присоединяется к группам.
+     *
+     * @param groups Multicast-группы IPv4 и IPv6.
+     * @param interfaces Интерфейсы, через которые принимаются и рассылаются сообщения.
+     * @param port Порт сообщений.
+     * @param peers Таблица, в которую заносятся обнаруженные копии.
+     * @param heartbeatInterval Период рассылки сообщений в миллисекундах.
+     * @throws IOException Не удалось присоединиться ни к одной группе.
+     */
+    public MulticastEngine(List<InetAddress> groups, List<NetworkInterface> interfaces, int port,
+                           PeerTable<Instance> peers, long heartbeatInterval) throws IOException {
+        if (heartbeatInterval < 1)
+            throw new IllegalArgumentException("Heartbeat interval must be positive.");
+        for (InetAddress group : groups) {
+            if (!group.isMulticastAddress())
+                throw new IllegalArgumentException(String.format("Address %s is not multicast.", group));
+        }
+        this.peers = peers;
+        this.heartbeatInterval = heartbeatInterval;
+        heartbeat.putInt(0, MAGIC).putLong(ID_OFFSET, self.getHigh()).putLong(ID_OFFSET + 8, self.getLow());
+
+        selector = Selector.open();
+        try {
+            open(StandardProtocolFamily.INET, Inet4Address.class, groups, interfaces, port);
+            open(StandardProtocolFamily.INET6, Inet6Address.class, groups, interfaces, port);
+            if (memberships.isEmpty())
+                throw new IOException("Cannot join any multicast group.");
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Идентификатор этой копии.
+     */
+    public Instance getSelf() {
+        return self;
+    }
+
+    /**
+     * Рассылает и принимает сообщения, пока движок не будет закрыт.
+     */
+    public void run() throws IOException {
+        long nextHeartbeat = 0;
+        while (running) {
+            long now = System.currentTimeMillis();
+            if (now >= nextHeartbeat) {
+                nextHeartbeat = now + heartbeatInterval;
+                sendHeartbeat();
+            }
+
+            peers.expire(now);
+
+            long timeout = Math.min(nextHeartbeat, peers.getNextExpiry()) - now;
+            // Нулевой таймаут интерпретируется как вечный
+            if (selector.select(Math.max(1, timeout)) == 0)
+                continue;
+
+            now = System.currentTimeMillis();
+            for (SelectionKey key : selector.selectedKeys())
+                drain((DatagramChannel) key.channel(), now);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        for (DatagramChannel channel : channels)
+            channel.close();
+        selector.close();
+    }
+
+    /**
+     * Открывает канал семейства адресов и присоединяет его к группам этого семейства.
+     */
+    private void open(ProtocolFamily family, Class<? extends InetAddress> type, List<InetAddress> groups,
+                      List<NetworkInterface> interfaces, int port) throws IOException {
+        List<InetAddress> familyGroups = new ArrayList<>();
+        for (InetAddress group : groups) {
+            if (type.isInstance(group))
+                familyGroups.add(group);
+        }
+        if (familyGroups.isEmpty())
+            return;
+
+        DatagramChannel channel = DatagramChannel.open(family);
+        channels.add(channel);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+
+        for (NetworkInterface networkInterface : interfaces) {
+            if (!hasAddress(networkInterface, type))
+                continue;
+            for (InetAddress group : familyGroups) {
+                try {
+                    channel.join(group, networkInterface);
+                    memberships.add(new Membership(channel, new InetSocketAddress(group, port), networkInterface));
+                } catch (IOException e) {
+                    System.err.format("Cannot join %s on %s: %s\n", group.getHostAddress(),
+                                      networkInterface.getName(), e.getMessage());
+                }
+            }
+        }
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    private static boolean hasAddress(NetworkInterface networkInterface, Class<? extends InetAddress> type) {
+        Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+        while (addresses.hasMoreElements()) {
+            if (type.isInstance(addresses.nextElement()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Рассылает очередное сообщение во все группы через все интерфейсы.
+     */
+    private void sendHeartbeat() {
+        heartbeat.putLong(SEQUENCE_OFFSET, heartbeat.getLong(SEQUENCE_OFFSET) + 1);
+        for (Membership membership : memberships) {
+            try {
+                membership.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, membership.networkInterface);
+                heartbeat.clear();
+                membership.channel.send(heartbeat, membership.group);
+            } catch (IOException e) {
+                System.err.format("Cannot send to %s via %s: %s\n", membership.group.getAddress().getHostAddress(),
+                                  membership.networkInterface.getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Вычитывает накопившиеся в канале датаграммы.
+     */
+    private void drain(DatagramChannel channel, long now) throws IOException {
+        for (int i = 0; i < MAX_BATCH; i++) {
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+            if (source == null)
+                return;
+            if (receiveBuffer.position() == HEARTBEAT_SIZE && receiveBuffer.getInt(0) == MAGIC)
+                onHeartbeat(source, now);
+        }
+    }
+
+    private void onHeartbeat(SocketAddress source, long now) {
+        long high = receiveBuffer.getLong(ID_OFFSET);
+        long low = receiveBuffer.getLong(ID_OFFSET + 8);
+        long sequence = receiveBuffer.getLong(SEQUENCE_OFFSET);
+        if (high == self.getHigh() && low == self.getLow())
+            return;
+
+        probe.setId(high, low);
+        Instance known = peers.find(probe);
+        if (known == null) {
+            peers.refresh(new Instance(high, low, sequence, source), now);
+        } else if (sequence > known.getSequence()) {
+            // Повторы через другие группы и интерфейсы и запоздавшие сообщения срок не продлевают
+            known.setSequence(sequence);
+            peers.refresh(known, now);
+        }
+    }
+
+    /**
+     * Группа, к которой канал присоединен на интерфейсе.
+     */
+    private static class Membership {
+
+        private final DatagramChannel channel;
+        private final InetSocketAddress group;
+        private final NetworkInterface networkInterface;
+
+        Membership(DatagramChannel channel, InetSocketAddress group, NetworkInterface networkInterface) {
+            this.channel = channel;
+            this.group = group;
+            this.networkInterface = networkInterface;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.polushin.networks.find_copies;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Таблица обнаруженных копий, которые перестают считаться живыми, если от них долго нет сообщений.
+ *
+ * Сроки хранятся в хешированном колесе таймеров: копия лежит в ячейке тика, на который приходится
+ * ее срок, и при каждом сообщении переносится в другую ячейку. Продление срока и удаление копии
+ * выполняются за O(1), а проверка сроков просматривает только ячейки прошедших тиков, а не всю таблицу.
+ * Копия удаляется не раньше своего срока и не позже чем через тик после него.
+ *
+ * О появлении и пропаже копий сообщается слушателям. Таблица не потокобезопасна.
+ *
+ * @param <K> Идентификатор копии.
+ */
+public class PeerTable<K> {
+
+    /**
+     * Слушатель появления и пропажи копий.
+     */
+    public interface Listener<K> {
+
+        void onJoin(K peer);
+
+        void onLeave(K peer);
+    }
+
+    private final long timeout;
+    private final long tick;
+    // Ячейки колеса: двусвязные списки копий. Колесо охватывает срок жизни целиком
+    private final Entry<K>[] wheel;
+    private final Map<K, Entry<K>> entries = new HashMap<>();
+    private final List<Listener<K>> listeners = new ArrayList<>();
+    // Номер следующего непроверенного тика
+    private long nextTick = -1;
+
+    /**
+     * @param timeout Время жизни копии без сообщений в миллисекундах.
+     * @param tick Точность срока в миллисекундах.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PeerTable(long timeout, long tick) {
+        if (timeout < 1 || tick < 1)
+            throw new IllegalArgumentException("Timeout and tick must be positive.");
+        this.timeout = timeout;
+        this.tick = tick;
+        wheel = new Entry[(int) ((timeout + tick - 1) / tick) + 2];
+    }
+
+    public void addListener(Listener<K> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener<K> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Продлевает срок копии или добавляет новую.
+     *
+     * @param peer Копия, от которой пришло сообщение.
+     * @param now Текущее время в миллисекундах.
+     */
+    public void refresh(K peer, long now) {
+        if (nextTick < 0)
+            nextTick = now / tick;
+        Entry<K> entry = entries.get(peer);
+        boolean joined = entry == null;
+        if (joined) {
+            entry = new Entry<>(peer);
+            entries.put(peer, entry);
+        } else {
+            unlink(entry);
+        }
+        entry.deadline = now + timeout;
+        link(entry);
+        if (joined) {
+            for (Listener<K> listener : listeners)
+                listener.onJoin(peer);
+        }
+    }
+
+    /**
+     * Удаляет копии, срок которых истек, и сообщает о них слушателям.
+     *
+     * @param now Текущее время в миллисекундах.
+     */
+    public void expire(long now) {
+        if (nextTick < 0)
+            return;
+        long last = now / tick;
+        // После долгого перерыва достаточно одного оборота колеса
+        long from = Math.max(nextTick, last - wheel.length + 1);
+        for (long current = from; current <= last; current++) {
+            int slot = (int) (current % wheel.length);
+            Entry<K> entry = wheel[slot];
+            while (entry != null) {
+                Entry<K> next = entry.next;
+                if (entry.deadline <= now) {
+                    unlink(entry);
+                    entries.remove(entry.peer);
+                    for (Listener<K> listener : listeners)
+                        listener.onLeave(entry.peer);
+                }
+                entry = next;
+            }
+        }
+        nextTick = last + 1;
+    }
+
+    /**
+     * @return Время, когда стоит вызвать {@link #expire(long)}, или {@link Long#MAX_VALUE}, если копий нет.
+     */
+    public long getNextExpiry() {
+        return entries.isEmpty() ? Long.MAX_VALUE : nextTick * tick;
+    }
+
+    public boolean contains(K peer) {
+        return entries.containsKey(peer);
+    }
+
+    /**
+     * Позволяет найти копию по временному ключу, не создавая постоянного.
+     *
+     * @return Ключ, под которым копия хранится в таблице, или null, если копия неизвестна.
+     */
+    public K find(K peer) {
+        Entry<K> entry = entries.get(peer);
+        return entry == null ? null : entry.peer;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Живые копии.
+     */
+    public Set<K> getPeers() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Помещает копию в ячейку тика, в котором истекает ее срок (с округлением вверх).
+     */
+    private void link(Entry<K> entry) {
+        int slot = (int) (((entry.deadline + tick - 1) / tick) % wheel.length);
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = wheel[slot];
+        if (entry.next != null)
+            entry.next.prev = entry;
+        wheel[slot] = entry;
+    }
+
+    private void unlink(Entry<K> entry) {
+        if (entry.prev != null)
+            entry.prev.next = entry.next;
+        else
+            wheel[entry.slot] = entry.next;
+        if (entry.next != null)
+            entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    private static class Entry<K> {
+
+        private final K peer;
+        private long deadline;
+        private int slot;
+        private Entry<K> prev;
+        private Entry<K> next;
+
+        Entry(K peer) {
+            this.peer = peer;
+        }
+    }
+}
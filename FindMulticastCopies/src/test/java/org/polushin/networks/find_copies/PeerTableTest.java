@@ -0,0 +1,166 @@
+package org.polushin.networks.find_copies;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PeerTableTest {
+
+    private static final long TIMEOUT = 1000;
+    private static final long TICK = 100;
+    // Время, не кратное ни тику, ни обороту колеса
+    private static final long START = 1_000_000_037L;
+
+    @Test
+    public void peerExpiresWithinTickAfterDeadline() {
+        PeerTable<String> table = new PeerTable<>(TIMEOUT, TICK);
+        table.refresh("a", START);
+
+        table.expire(START + TIMEOUT - 1);
+        assertTrue(table.contains("a"));
+
+        table.expire(START + TIMEOUT + TICK);
+        assertFalse(table.contains("a"));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void refreshExtendsDeadline() {
+        PeerTable<String> table = new PeerTable<>(TIMEOUT, TICK);
+        table.refresh("a", START);
+        table.refresh("b", START);
+        table.refresh("a", START + TIMEOUT / 2);
+
+        table.expire(START + TIMEOUT + TICK);
+        assertTrue(table.contains("a"));
+        assertFalse(table.contains("b"));
+
+        table.expire(START + TIMEOUT / 2 + TIMEOUT + TICK);
+        assertFalse(table.contains("a"));
+    }
+
+    @Test
+    public void refreshedPeerSurvivesManyWheelTurns() {
+        PeerTable<String> table = new PeerTable<>(TIMEOUT, TICK);
+        Events events = new Events();
+        table.addListener(events);
+
+        // Около двадцати оборотов колеса: копия каждый раз переносится в ячейку, которую колесо уже прошло
+        long now = START;
+        for (int i = 0; i < 100; i++, now += TIMEOUT / 5) {
+            table.refresh("a", now);
+            table.expire(now);
+        }
+        assertTrue(table.contains("a"));
+        assertEquals(Collections.singletonList("+a"), events.log);
+
+        table.expire(now + TIMEOUT + TICK);
+        assertFalse(table.contains("a"));
+        assertEquals(Arrays.asList("+a", "-a"), events.log);
+    }
+
+    @Test
+    public void expiryMatchesDeadlinesAcrossWraparound() {
+        PeerTable<Integer> table = new PeerTable<>(TIMEOUT, TICK);
+        Map<Integer, Long> deadlines = new HashMap<>();
+        Random random = new Random(1);
+
+        // Проверка сроков с шагом меньше тика, больше тика и почти в оборот колеса
+        long now = START;
+        for (int step = 0; step < 5000; step++) {
+            now += random.nextInt(3) == 0 ? random.nextInt((int) TIMEOUT) : random.nextInt((int) TICK / 2);
+            for (int i = random.nextInt(3); i > 0; i--) {
+                int peer = random.nextInt(50);
+                table.refresh(peer, now);
+                deadlines.put(peer, now + TIMEOUT);
+            }
+            table.expire(now);
+
+            for (Map.Entry<Integer, Long> entry : deadlines.entrySet()) {
+                long deadline = entry.getValue();
+                long latest = (deadline + TICK - 1) / TICK * TICK;
+                if (table.contains(entry.getKey()))
+                    assertTrue("Peer outlived its deadline", now < latest);
+                else
+                    assertTrue("Peer removed before its deadline", deadline <= now);
+            }
+            long checked = now;
+            deadlines.values().removeIf(deadline -> deadline <= checked - TICK);
+        }
+    }
+
+    @Test
+    public void longPauseExpiresEveryPeer() {
+        PeerTable<String> table = new PeerTable<>(TIMEOUT, TICK);
+        table.refresh("a", START);
+        table.refresh("b", START + TIMEOUT / 3);
+        table.refresh("c", START + TIMEOUT / 2);
+
+        // Пауза в несколько оборотов колеса
+        long now = START + 7 * TIMEOUT + 3;
+        table.expire(now);
+        assertEquals(0, table.size());
+        assertEquals(Long.MAX_VALUE, table.getNextExpiry());
+
+        table.refresh("a", now);
+        table.expire(now + TIMEOUT - 1);
+        assertTrue(table.contains("a"));
+        table.expire(now + TIMEOUT + TICK);
+        assertFalse(table.contains("a"));
+    }
+
+    @Test
+    public void nextExpiryFollowsCheckedTicks() {
+        PeerTable<String> table = new PeerTable<>(TIMEOUT, TICK);
+        assertEquals(Long.MAX_VALUE, table.getNextExpiry());
+
+        table.refresh("a", START);
+        table.expire(START + 250);
+        long next = table.getNextExpiry();
+        assertTrue(next > START + 250);
+        assertTrue(next <= START + 250 + TICK);
+        assertEquals(0, next % TICK);
+    }
+
+    @Test
+    public void findReturnsStoredKey() {
+        PeerTable<String> table = new PeerTable<>(TIMEOUT, TICK);
+        String stored = new String("a");
+        table.refresh(stored, START);
+
+        assertSame(stored, table.find(new String("a")));
+        assertNull(table.find("b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroTick() {
+        new PeerTable<String>(TIMEOUT, 0);
+    }
+
+    private static class Events implements PeerTable.Listener<String> {
+
+        private final List<String> log = new ArrayList<>();
+
+        @Override
+        public void onJoin(String peer) {
+            log.add("+" + peer);
+        }
+
+        @Override
+        public void onLeave(String peer) {
+            log.add("-" + peer);
+        }
+    }
+}